@@ -42,10 +42,10 @@ import androidx.drawerlayout.widget.DrawerLayout
 import me.jahnen.libaums.javafs.JavaFsFileSystemCreator
 import me.jahnen.libaums.core.UsbMassStorageDevice
 import me.jahnen.libaums.core.UsbMassStorageDevice.Companion.getMassStorageDevices
+import me.jahnen.libaums.core.fs.CopyEngine
 import me.jahnen.libaums.core.fs.FileSystem
 import me.jahnen.libaums.core.fs.FileSystemFactory.registerFileSystem
 import me.jahnen.libaums.core.fs.UsbFile
-import me.jahnen.libaums.core.fs.UsbFileInputStream
 import me.jahnen.libaums.core.fs.UsbFileStreamFactory.createBufferedOutputStream
 import me.jahnen.libaums.server.http.UsbFileHttpServerService
 import me.jahnen.libaums.server.http.UsbFileHttpServerService.ServiceBinder
@@ -224,23 +224,16 @@ class MainActivity : AppCompatActivity(), AdapterView.OnItemClickListener {
             val time = System.currentTimeMillis()
             param = params[0]
             try {
-                val out: OutputStream = BufferedOutputStream(FileOutputStream(param!!.to))
-                val inputStream: InputStream = UsbFileInputStream(param!!.from!!)
-                val bytes = ByteArray(currentFs.chunkSize)
-                var count: Int
-                var total: Long = 0
-                Log.d(TAG, "Copy file with length: " + param!!.from!!.length)
-                while (inputStream.read(bytes).also { count = it } != -1) {
-                    out.write(bytes, 0, count)
-                    total += count.toLong()
-                    var progress = total.toInt()
-                    if (param!!.from!!.length > Int.MAX_VALUE) {
-                        progress = (total / 1024).toInt()
+                val length = param!!.from!!.length
+                Log.d(TAG, "Copy file with length: $length")
+                CopyEngine().copy(param!!.from!!, param!!.to!!, CopyEngine.Listener { copied, _ ->
+                    var progress = copied.toInt()
+                    if (length > Int.MAX_VALUE) {
+                        progress = (copied / 1024).toInt()
                     }
                     publishProgress(progress)
-                }
-                out.close()
-                inputStream.close()
+                    !isCancelled
+                })
             } catch (e: IOException) {
                 Log.e(TAG, "error copying!", e)
             }
@@ -343,27 +336,18 @@ class MainActivity : AppCompatActivity(), AdapterView.OnItemClickListener {
             }
             try {
                 val file = adapter.currentDir.createFile(name!!)
-                if (size > 0) {
-                    file.length = size
-                }
-                val inputStream = contentResolver.openInputStream(param!!.from!!)
-                val outputStream: OutputStream = createBufferedOutputStream(file, currentFs)
-                val bytes = ByteArray(1337)
-                var count: Int
-                var total: Long = 0
-                while (inputStream!!.read(bytes).also { count = it } != -1) {
-                    outputStream.write(bytes, 0, count)
-                    if (size > 0) {
-                        total += count.toLong()
-                        var progress = total.toInt()
-                        if (size > Int.MAX_VALUE) {
-                            progress = (total / 1024).toInt()
+                contentResolver.openInputStream(param!!.from!!)!!.use { inputStream ->
+                    CopyEngine().copy(inputStream, file, size, CopyEngine.Listener { copied, total ->
+                        if (total > 0) {
+                            var progress = copied.toInt()
+                            if (total > Int.MAX_VALUE) {
+                                progress = (copied / 1024).toInt()
+                            }
+                            publishProgress(progress)
                         }
-                        publishProgress(progress)
-                    }
+                        !isCancelled
+                    })
                 }
-                outputStream.close()
-                inputStream.close()
             } catch (e: IOException) {
                 Log.e(TAG, "error copying!", e)
             }
@@ -428,25 +412,18 @@ class MainActivity : AppCompatActivity(), AdapterView.OnItemClickListener {
             try {
                 val usbFile = currentUsbDir.createFile(file.name!!)
                 size = file.length()
-                usbFile.length = file.length()
-                val inputStream = contentResolver.openInputStream(file.uri)
-                val outputStream: OutputStream = createBufferedOutputStream(usbFile, currentFs!!)
-                val bytes = ByteArray(1337)
-                var count: Int
-                var total: Long = 0
-                while (inputStream!!.read(bytes).also { count = it } != -1) {
-                    outputStream.write(bytes, 0, count)
-                    if (size > 0) {
-                        total += count.toLong()
-                        var progress = total.toInt()
-                        if (file.length() > Int.MAX_VALUE) {
-                            progress = (total / 1024).toInt()
+                contentResolver.openInputStream(file.uri)!!.use { inputStream ->
+                    CopyEngine().copy(inputStream, usbFile, size, CopyEngine.Listener { copied, total ->
+                        if (total > 0) {
+                            var progress = copied.toInt()
+                            if (total > Int.MAX_VALUE) {
+                                progress = (copied / 1024).toInt()
+                            }
+                            publishProgress(progress)
                         }
-                        publishProgress(progress)
-                    }
+                        !isCancelled
+                    })
                 }
-                outputStream.close()
-                inputStream.close()
             } catch (e: IOException) {
                 Log.e(TAG, "error copying!", e)
             }
@@ -142,6 +142,16 @@ public class UsbFileWrapper extends AbstractUsbFile {
         return array;
     }
 
+    @Override
+    protected UsbFile lookup(String name) throws IOException {
+        FSEntry entry = dir.getEntry(name);
+        if(entry == null) {
+            return null;
+        }
+
+        return new UsbFileWrapper(entry);
+    }
+
     @Override
     public long getLength() {
         if(dir != null) {
@@ -23,6 +23,7 @@ import android.util.Log
 import me.jahnen.libaums.core.driver.BlockDeviceDriver
 import me.jahnen.libaums.core.driver.BlockDeviceDriverFactory
 import me.jahnen.libaums.core.driver.scsi.commands.sense.MediaNotInserted
+import me.jahnen.libaums.core.fs.MountOptions
 import me.jahnen.libaums.core.partition.Partition
 import me.jahnen.libaums.core.partition.PartitionTable
 import me.jahnen.libaums.core.partition.PartitionTableFactory
@@ -92,12 +93,16 @@ private constructor(private val usbManager: UsbManager,
      * @throws IllegalStateException
      * If permission to communicate with the underlying
      * [UsbDevice] is missing.
+     * @param options
+     * Options used for the communication and for mounting the file systems
+     * of the partitions.
      * @see .getUsbDevice
      */
     @Throws(IOException::class)
-    fun init() {
+    @JvmOverloads
+    fun init(options: MountOptions = MountOptions.DEFAULT) {
         if (usbManager.hasPermission(usbDevice))
-            setupDevice()
+            setupDevice(options)
         else
             throw IllegalStateException("Missing permission to access usb device: $usbDevice")
 
@@ -121,9 +126,10 @@ private constructor(private val usbManager: UsbManager,
      * @see .init
      */
     @Throws(IOException::class)
-    private fun setupDevice() {
+    private fun setupDevice(options: MountOptions) {
         usbCommunication = UsbCommunicationFactory
-                .createUsbCommunication(usbManager, usbDevice, usbInterface, outEndpoint, inEndpoint)
+                .createUsbCommunication(usbManager, usbDevice, usbInterface, outEndpoint, inEndpoint,
+                        options.usbCommunication ?: UsbCommunicationFactory.underlyingUsbCommunication)
         val maxLun = ByteArray(1)
         usbCommunication.controlTransfer(161, 254, 0, usbInterface.id, maxLun, 1)
 
@@ -143,7 +149,7 @@ private constructor(private val usbManager: UsbManager,
 
                     val partitionTable = PartitionTableFactory.createPartitionTable(blockDevice)
 
-                    initPartitions(partitionTable, blockDevice)
+                    initPartitions(partitionTable, blockDevice, options)
                 }
                 .flatten()
     }
@@ -156,9 +162,10 @@ private constructor(private val usbManager: UsbManager,
      * If reading from the [.blockDevice] fails.
      */
     @Throws(IOException::class)
-    private fun initPartitions(partitionTable: PartitionTable, blockDevice: BlockDeviceDriver) =
+    private fun initPartitions(partitionTable: PartitionTable, blockDevice: BlockDeviceDriver,
+                               options: MountOptions) =
             partitionTable.partitionTableEntries.mapNotNull {
-                Partition.createPartition(it, blockDevice)
+                Partition.createPartition(it, blockDevice, options)
             }
 
     /**
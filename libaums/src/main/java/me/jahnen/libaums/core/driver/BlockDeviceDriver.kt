@@ -97,4 +97,15 @@ interface BlockDeviceDriver {
      */
     @Throws(IOException::class)
     fun write(deviceOffset: Long, buffer: ByteBuffer)
+
+    /**
+     * Commits data which may still be buffered by the block device or the underlying storage.
+     * The default implementation does nothing, because most devices write immediately.
+     *
+     * @throws IOException
+     * If flushing fails.
+     */
+    @Throws(IOException::class)
+    fun flush() {
+    }
 }
@@ -0,0 +1,29 @@
+@file:JvmName("BlockDeviceDriverSuspending")
+
+package me.jahnen.libaums.core.driver
+
+import me.jahnen.libaums.core.util.call
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+
+/*
+ * Suspending variants of the blocking BlockDeviceDriver methods, see
+ * me.jahnen.libaums.core.fs.UsbFileSuspending.
+ */
+
+/**
+ * @see BlockDeviceDriver.read
+ */
+suspend fun BlockDeviceDriver.readSuspending(deviceOffset: Long, buffer: ByteBuffer, executor: Executor) =
+        executor.call { read(deviceOffset, buffer) }
+
+/**
+ * @see BlockDeviceDriver.write
+ */
+suspend fun BlockDeviceDriver.writeSuspending(deviceOffset: Long, buffer: ByteBuffer, executor: Executor) =
+        executor.call { write(deviceOffset, buffer) }
+
+/**
+ * @see BlockDeviceDriver.flush
+ */
+suspend fun BlockDeviceDriver.flushSuspending(executor: Executor) = executor.call { flush() }
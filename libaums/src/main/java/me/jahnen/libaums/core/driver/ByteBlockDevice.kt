@@ -53,8 +53,10 @@ open class ByteBlockDevice @JvmOverloads constructor(private val targetBlockDevi
 
             targetBlockDevice.read(devOffset, buffer)
 
-            if (dest.remaining() % blockSize != 0) {
-                System.arraycopy(buffer.array(), 0, dest.array(), dest.position(), dest.remaining())
+            if (buffer !== dest) {
+                buffer.clear()
+                buffer.limit(dest.remaining())
+                dest.put(buffer)
             }
 
             dest.position(dest.limit())
@@ -74,7 +76,9 @@ open class ByteBlockDevice @JvmOverloads constructor(private val targetBlockDevi
             tmp.clear()
             tmp.position((byteOffset % blockSize).toInt())
             val remaining = Math.min(tmp.remaining(), src.remaining())
-            tmp.put(src.array(), src.position(), remaining)
+            val part = src.duplicate()
+            part.limit(part.position() + remaining)
+            tmp.put(part)
             src.position(src.position() + remaining)
             tmp.clear()
             targetBlockDevice.write(devOffset, tmp)
@@ -94,9 +98,8 @@ open class ByteBlockDevice @JvmOverloads constructor(private val targetBlockDevi
 
                 // TODO: instead of just writing 0s at the end of the buffer do we need to read what
                 // is currently on the disk and save that then?
-                System.arraycopy(src.array(), src.position(), buffer.array(), 0, src.remaining())
-
-                src.position(src.limit())
+                buffer.put(src)
+                buffer.clear()
             } else {
                 buffer = src
             }
@@ -105,6 +108,11 @@ open class ByteBlockDevice @JvmOverloads constructor(private val targetBlockDevi
         }
     }
 
+    @Throws(IOException::class)
+    override fun flush() {
+        targetBlockDevice.flush()
+    }
+
     companion object {
 
         private val TAG = ByteBlockDevice::class.java.simpleName
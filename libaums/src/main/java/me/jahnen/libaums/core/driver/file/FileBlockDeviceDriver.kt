@@ -5,40 +5,69 @@ import java.io.*
 import java.net.URL
 import java.nio.ByteBuffer
 import java.nio.channels.Channels
+import java.nio.channels.FileChannel
 
 /**
  * Created by magnusja on 01/08/17.
+ *
+ * Block device backed by a file, for example an image of a mass storage device. All reads and
+ * writes are positional [FileChannel] operations, thus the driver does not keep any file pointer
+ * state and can be used by multiple threads concurrently without locking. Heap and direct
+ * buffers are both supported.
  */
 
-class FileBlockDeviceDriver : BlockDeviceDriver {
-    private var file: RandomAccessFile
+class FileBlockDeviceDriver : BlockDeviceDriver, Closeable {
+
+    /**
+     * Determines when written data is forced to the underlying storage.
+     */
+    enum class SyncMode {
+        /**
+         * Never force, leave it to the operating system.
+         */
+        NONE,
+        /**
+         * Force content and metadata when [flush] is called.
+         */
+        ON_FLUSH,
+        /**
+         * Force the content after every write, like [RandomAccessFile] mode "rwd".
+         */
+        EVERY_WRITE
+    }
+
+    private var channel: FileChannel
     override var blockSize: Int = 0
         private set
     private var byteOffset: Int = 0
+    private val syncMode: SyncMode
 
     override val blocks: Long
-        get() = file.length() / blockSize
+        get() = channel.size() / blockSize
 
     @Throws(FileNotFoundException::class)
     @JvmOverloads
-    constructor(file: File, byteOffset: Int = 0, blockSize: Int = 512) {
-        this.file = RandomAccessFile(file, "rws")
+    constructor(file: File, byteOffset: Int = 0, blockSize: Int = 512, syncMode: SyncMode = SyncMode.EVERY_WRITE) {
+        this.channel = RandomAccessFile(file, "rw").channel
         this.blockSize = blockSize
         this.byteOffset = byteOffset
+        this.syncMode = syncMode
     }
 
     @Throws(IOException::class)
     @JvmOverloads
-    constructor(url: URL, byteOffset: Int = 0, blockSize: Int = 512) {
+    constructor(url: URL, byteOffset: Int = 0, blockSize: Int = 512, syncMode: SyncMode = SyncMode.EVERY_WRITE) {
         this.byteOffset = byteOffset
         val rbc = Channels.newChannel(url.openStream())
         val tempFile = File.createTempFile("libaums_file_blockdevice", ".bin")
         tempFile.deleteOnExit()
         val fos = FileOutputStream(tempFile)
         fos.channel.transferFrom(rbc, 0, java.lang.Long.MAX_VALUE)
+        fos.close()
 
-        this.file = RandomAccessFile(tempFile, "rws")
+        this.channel = RandomAccessFile(tempFile, "rw").channel
         this.blockSize = blockSize
+        this.syncMode = syncMode
     }
 
     @Throws(IOException::class)
@@ -48,20 +77,43 @@ class FileBlockDeviceDriver : BlockDeviceDriver {
 
     @Throws(IOException::class)
     override fun read(deviceOffset: Long, buffer: ByteBuffer) {
-        file.seek(deviceOffset * blockSize + byteOffset)
-        val read = file.read(buffer.array(), buffer.position(), buffer.remaining())
+        var position = deviceOffset * blockSize + byteOffset
+        val start = buffer.position()
 
-        if (read == -1) {
-            throw IOException("EOF")
+        while (buffer.hasRemaining()) {
+            val read = channel.read(buffer, position)
+            if (read == -1) {
+                if (buffer.position() == start) {
+                    throw IOException("EOF")
+                }
+                break
+            }
+            position += read
         }
-
-        buffer.position(buffer.position() + read)
     }
 
     @Throws(IOException::class)
     override fun write(deviceOffset: Long, buffer: ByteBuffer) {
-        file.seek(deviceOffset * blockSize + byteOffset)
-        file.write(buffer.array(), buffer.position(), buffer.remaining())
-        buffer.position(buffer.limit())
+        var position = deviceOffset * blockSize + byteOffset
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position)
+        }
+
+        if (syncMode == SyncMode.EVERY_WRITE) {
+            channel.force(false)
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        if (syncMode != SyncMode.NONE) {
+            channel.force(true)
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        channel.close()
     }
 }
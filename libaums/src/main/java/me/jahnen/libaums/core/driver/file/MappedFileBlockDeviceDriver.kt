@@ -0,0 +1,176 @@
+package me.jahnen.libaums.core.driver.file
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriver
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.min
+
+/**
+ * Block device backed by a memory mapped image file. The size of the image is fixed, reading or
+ * writing beyond its end throws an [IOException]. The file is mapped in windows of
+ * [windowSize] bytes, because a single [MappedByteBuffer] cannot exceed 2 GB. Reads and writes
+ * are bulk copies from or to the mapping and do not need a system call per block once a window
+ * is mapped.
+ *
+ *
+ * At most [maxResidentWindows] windows are kept mapped. If more are needed the least recently
+ * used window is written back and dropped, it is mapped again on the next access. This allows
+ * processing images larger than the available memory or address space.
+ *
+ * @param file The image file.
+ * @param byteOffset Offset in bytes where the device starts in the file.
+ * @param blockSize The block size of the device.
+ * @param readOnly True to map the image read only, writing will then throw an [IOException].
+ * @param windowSize Size of one mapping window in bytes, must be a multiple of the block size.
+ * @param maxResidentWindows Maximum number of windows mapped at the same time.
+ */
+class MappedFileBlockDeviceDriver @Throws(IOException::class) @JvmOverloads constructor(
+        file: File,
+        private val byteOffset: Int = 0,
+        override val blockSize: Int = 512,
+        private val readOnly: Boolean = false,
+        private val windowSize: Int = DEFAULT_WINDOW_SIZE,
+        private val maxResidentWindows: Int = DEFAULT_MAX_RESIDENT_WINDOWS
+) : BlockDeviceDriver, Closeable {
+
+    private val lock = ReentrantLock()
+    private val channel: FileChannel = RandomAccessFile(file, if (readOnly) "r" else "rw").channel
+    private val windows = object : LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, MappedByteBuffer>): Boolean {
+            if (size <= maxResidentWindows) {
+                return false
+            }
+            // flush only forces the windows which are still mapped
+            if (!readOnly) {
+                eldest.value.force()
+            }
+            return true
+        }
+    }
+
+    /**
+     * Total number of mappings which have been created, including remappings of windows which
+     * were dropped before.
+     */
+    var mappedWindowCount: Long = 0
+        private set
+
+    /**
+     * Number of windows currently mapped.
+     */
+    val residentWindowCount: Int
+        get() = lock.withLock { windows.size }
+
+    override val blocks: Long
+        get() = (channel.size() - byteOffset) / blockSize
+
+    init {
+        require(windowSize > 0 && windowSize % blockSize == 0) { "window size must be a multiple of the block size" }
+        require(maxResidentWindows > 0) { "at least one window must be resident" }
+    }
+
+    @Throws(IOException::class)
+    override fun init() {
+
+    }
+
+    @Throws(IOException::class)
+    override fun read(deviceOffset: Long, buffer: ByteBuffer) {
+        var position = deviceOffset * blockSize + byteOffset
+
+        if (position + buffer.remaining() > channel.size()) {
+            throw IOException("EOF")
+        }
+
+        while (buffer.hasRemaining()) {
+            val window = getWindow(position / windowSize)
+            val offsetInWindow = (position % windowSize).toInt()
+            val size = min(buffer.remaining(), window.capacity() - offsetInWindow)
+
+            window.limit(offsetInWindow + size)
+            window.position(offsetInWindow)
+            buffer.put(window)
+
+            position += size
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun write(deviceOffset: Long, buffer: ByteBuffer) {
+        if (readOnly) {
+            throw IOException("device is read only")
+        }
+
+        var position = deviceOffset * blockSize + byteOffset
+
+        if (position + buffer.remaining() > channel.size()) {
+            throw IOException("EOF")
+        }
+
+        while (buffer.hasRemaining()) {
+            val window = getWindow(position / windowSize)
+            val offsetInWindow = (position % windowSize).toInt()
+            val size = min(buffer.remaining(), window.capacity() - offsetInWindow)
+
+            val part = buffer.duplicate()
+            part.limit(part.position() + size)
+            window.position(offsetInWindow)
+            window.put(part)
+            buffer.position(buffer.position() + size)
+
+            position += size
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun flush() {
+        lock.withLock {
+            if (!readOnly) {
+                windows.values.forEach { it.force() }
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        lock.withLock {
+            flush()
+            windows.clear()
+            channel.close()
+        }
+    }
+
+    /**
+     * Returns a view of the mapped window with the given index, mapping it if needed. The returned
+     * buffer is not shared with other callers, so its position and limit can be changed freely.
+     */
+    @Throws(IOException::class)
+    private fun getWindow(index: Long): ByteBuffer {
+        lock.withLock {
+            windows[index]?.let { return it.duplicate() }
+
+            // the last window may be smaller, the image is never grown by mapping it
+            val start = index * windowSize
+            val size = min(windowSize.toLong(), channel.size() - start)
+            val mode = if (readOnly) FileChannel.MapMode.READ_ONLY else FileChannel.MapMode.READ_WRITE
+            val window = channel.map(mode, start, size)
+            windows[index] = window
+            mappedWindowCount++
+
+            return window.duplicate()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024
+        const val DEFAULT_MAX_RESIDENT_WINDOWS = 16
+    }
+}
@@ -0,0 +1,228 @@
+package me.jahnen.libaums.core.driver.file
+
+import android.util.Log
+import me.jahnen.libaums.core.driver.BlockDeviceDriver
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
+import java.net.URL
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.min
+
+/**
+ * Block device for an image which is located on a HTTP server. In contrast to
+ * [FileBlockDeviceDriver] the image is not downloaded completely. Only the blocks which are
+ * actually read are requested via HTTP range requests and then cached in a sparse local file.
+ *
+ *
+ * Written blocks are only stored in the local cache, the remote image is never changed.
+ * Images with more than [Int.MAX_VALUE] blocks, that is more than 1 TiB with 512 byte blocks,
+ * are not supported.
+ *
+ * @param url The URL of the image, the server has to support range requests.
+ * @param byteOffset Offset in bytes where the device starts in the image.
+ * @param blockSize The block size of the device.
+ * @param cacheFile The local cache file or null to use a temporary file.
+ * @param readAheadBlocks Number of blocks which are additionally fetched if blocks are read
+ * sequentially, 0 disables read ahead.
+ */
+class RemoteBlockDeviceDriver @Throws(IOException::class) @JvmOverloads constructor(
+        private val url: URL,
+        private val byteOffset: Int = 0,
+        override val blockSize: Int = 512,
+        cacheFile: File? = null,
+        private val readAheadBlocks: Int = 0
+) : BlockDeviceDriver, Closeable {
+
+    private val lock = ReentrantLock()
+    private val cache: FileChannel
+    private val cachedBlocks = BitSet()
+    private var imageLength: Long = -1
+    private var lastReadEnd: Long = -1
+
+    /**
+     * Number of bytes received from the server so far.
+     */
+    var fetchedBytes: Long = 0
+        private set
+
+    /**
+     * Number of range requests sent to the server so far.
+     */
+    var requestCount: Int = 0
+        private set
+
+    override val blocks: Long
+        get() = (imageLength - byteOffset) / blockSize
+
+    init {
+        val file = cacheFile ?: File.createTempFile("libaums_remote_blockdevice", ".bin").apply { deleteOnExit() }
+        cache = RandomAccessFile(file, "rw").channel
+        cache.truncate(0)
+    }
+
+    /**
+     * Determines the size of the remote image. This also checks that the server supports range
+     * requests.
+     */
+    @Throws(IOException::class)
+    override fun init() {
+        lock.withLock {
+            if (imageLength >= 0) {
+                return
+            }
+
+            val connection = openRange(0, 0)
+            val length = try {
+                val contentRange = connection.getHeaderField("Content-Range")
+                        ?: throw IOException("no Content-Range in response")
+                contentRange.substring(contentRange.lastIndexOf('/') + 1).trim().toLong()
+            } catch (e: NumberFormatException) {
+                throw IOException("unknown image length", e)
+            } finally {
+                connection.disconnect()
+            }
+
+            // the cached blocks are tracked in a BitSet, which is indexed by int
+            val blockCount = (length - byteOffset + blockSize - 1) / blockSize
+            if (blockCount > Int.MAX_VALUE) {
+                throw IOException("image has $blockCount blocks, at most ${Int.MAX_VALUE} are supported")
+            }
+            imageLength = length
+
+            Log.d(TAG, "remote image length: $imageLength")
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun read(deviceOffset: Long, buffer: ByteBuffer) {
+        lock.withLock {
+            init()
+
+            val count = (buffer.remaining() + blockSize - 1) / blockSize
+            if (deviceOffset + count > blocks) {
+                throw IOException("EOF")
+            }
+
+            val sequential = deviceOffset == lastReadEnd
+            var block = deviceOffset
+            val end = deviceOffset + count
+            while (block < end) {
+                if (cachedBlocks[block.toInt()]) {
+                    block++
+                    continue
+                }
+
+                val runStart = block
+                while (block < end && !cachedBlocks[block.toInt()]) {
+                    block++
+                }
+
+                var runEnd = block
+                if (sequential && runEnd == end) {
+                    // read ahead until we reach something which is already there
+                    val limit = min(end + readAheadBlocks, blocks)
+                    while (runEnd < limit && !cachedBlocks[runEnd.toInt()]) {
+                        runEnd++
+                    }
+                }
+
+                fetch(runStart, (runEnd - runStart).toInt())
+            }
+
+            lastReadEnd = end
+
+            var position = deviceOffset * blockSize
+            while (buffer.hasRemaining()) {
+                val read = cache.read(buffer, position)
+                if (read == -1) {
+                    throw IOException("EOF in cache")
+                }
+                position += read
+            }
+        }
+    }
+
+    /**
+     * Writes the blocks into the local cache only.
+     */
+    @Throws(IOException::class)
+    override fun write(deviceOffset: Long, buffer: ByteBuffer) {
+        lock.withLock {
+            init()
+            require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
+
+            val count = buffer.remaining() / blockSize
+            var position = deviceOffset * blockSize
+            while (buffer.hasRemaining()) {
+                position += cache.write(buffer, position)
+            }
+
+            cachedBlocks.set(deviceOffset.toInt(), (deviceOffset + count).toInt())
+        }
+    }
+
+    /**
+     * Fetches the given blocks from the server and stores them in the cache.
+     */
+    @Throws(IOException::class)
+    private fun fetch(firstBlock: Long, count: Int) {
+        val start = byteOffset + firstBlock * blockSize
+        val length = min(count.toLong() * blockSize, imageLength - start)
+        val buffer = ByteBuffer.allocate(count * blockSize)
+
+        val connection = openRange(start, start + length - 1)
+        try {
+            val channel = Channels.newChannel(connection.inputStream)
+            buffer.limit(length.toInt())
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw IOException("unexpected end of response")
+                }
+            }
+        } finally {
+            connection.disconnect()
+        }
+
+        fetchedBytes += length
+        requestCount++
+
+        // a partial last block is padded with zeros
+        buffer.clear()
+        var position = firstBlock * blockSize
+        while (buffer.hasRemaining()) {
+            position += cache.write(buffer, position)
+        }
+
+        cachedBlocks.set(firstBlock.toInt(), (firstBlock + count).toInt())
+    }
+
+    @Throws(IOException::class)
+    private fun openRange(start: Long, end: Long): HttpURLConnection {
+        val connection = url.openConnection() as HttpURLConnection
+        connection.setRequestProperty("Range", "bytes=$start-$end")
+
+        if (connection.responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect()
+            throw IOException("range request failed, HTTP status ${connection.responseCode}")
+        }
+
+        return connection
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        cache.close()
+    }
+
+    companion object {
+        private val TAG = RemoteBlockDeviceDriver::class.java.simpleName
+    }
+}
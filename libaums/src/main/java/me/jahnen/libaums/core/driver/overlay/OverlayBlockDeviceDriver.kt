@@ -0,0 +1,234 @@
+package me.jahnen.libaums.core.driver.overlay
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriver
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Copy on write block device which layers a sparse delta over a base [BlockDeviceDriver]. The
+ * base device is never written to, all written blocks are stored in the delta, either in memory
+ * or in a delta file.
+ *
+ *
+ * [snapshot] and [rollback] take constant time regardless of the size of the base device. This
+ * makes it possible to reset a (possibly huge) test image between tests, or to do dry runs of
+ * file system operations and throw their results away afterwards.
+ *
+ * @param base The read only base device.
+ * @param deltaFile File used to store written blocks, or null to keep them in memory. The file is
+ * truncated when the overlay is created.
+ */
+class OverlayBlockDeviceDriver @Throws(IOException::class) @JvmOverloads constructor(
+        private val base: BlockDeviceDriver,
+        deltaFile: File? = null
+) : BlockDeviceDriver, Closeable {
+
+    /**
+     * One layer of changes. Maps block numbers to the changed data, which is either the index of
+     * the block in [deltaChannel] or an in memory copy.
+     */
+    private class Layer(val deltaFileStart: Long) {
+        val slots = HashMap<Long, Long>()
+        val blocks = HashMap<Long, ByteArray>()
+
+        val size: Int
+            get() = slots.size + blocks.size
+    }
+
+    private val lock = ReentrantLock()
+    private val deltaChannel: FileChannel? = deltaFile?.let { RandomAccessFile(it, "rw").channel }
+    private var deltaFileLength = 0L
+    private val layers = ArrayList<Layer>()
+
+    override val blockSize: Int
+        get() = base.blockSize
+
+    override val blocks: Long
+        get() = base.blocks
+
+    /**
+     * Number of snapshots which can be rolled back to.
+     */
+    val snapshotCount: Int
+        get() = lock.withLock { layers.size - 1 }
+
+    /**
+     * Number of blocks stored in all layers of the delta. A block written after several
+     * snapshots is counted once per snapshot.
+     */
+    val deltaBlockCount: Long
+        get() = lock.withLock { layers.fold(0L) { count, layer -> count + layer.size } }
+
+    init {
+        deltaChannel?.truncate(0)
+        layers.add(Layer(0))
+    }
+
+    @Throws(IOException::class)
+    override fun init() {
+        base.init()
+    }
+
+    /**
+     * Remembers the current state of the device. A later call to [rollback] discards every change
+     * made after this call.
+     *
+     * @return The number of snapshots which can be rolled back to.
+     */
+    fun snapshot(): Int {
+        lock.withLock {
+            layers.add(Layer(deltaFileLength))
+            return snapshotCount
+        }
+    }
+
+    /**
+     * Discards every change made since the latest [snapshot] and removes that snapshot. If there
+     * is no snapshot all changes are discarded and the device reads like the base device again.
+     */
+    @Throws(IOException::class)
+    fun rollback() {
+        lock.withLock {
+            val top = layers.removeAt(layers.size - 1)
+            if (layers.isEmpty()) {
+                layers.add(Layer(0))
+            }
+
+            deltaChannel?.let {
+                deltaFileLength = top.deltaFileStart
+                it.truncate(deltaFileLength)
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun read(deviceOffset: Long, buffer: ByteBuffer) {
+        lock.withLock {
+            require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
+
+            val count = buffer.remaining() / blockSize
+            var runStart = -1L
+            var runLength = 0
+
+            for (i in 0 until count) {
+                val block = deviceOffset + i
+                if (readFromDelta(block, buffer, runLength)) {
+                    if (runLength > 0) {
+                        readFromBase(runStart, runLength, buffer)
+                        runLength = 0
+                    }
+                    buffer.position(buffer.position() + blockSize)
+                } else {
+                    if (runLength == 0) {
+                        runStart = block
+                    }
+                    runLength++
+                }
+            }
+
+            if (runLength > 0) {
+                readFromBase(runStart, runLength, buffer)
+            }
+        }
+    }
+
+    /**
+     * Reads consecutive blocks which are not part of the delta from the base device.
+     */
+    @Throws(IOException::class)
+    private fun readFromBase(start: Long, count: Int, buffer: ByteBuffer) {
+        val dest = buffer.duplicate()
+        dest.limit(dest.position() + count * blockSize)
+        base.read(start, dest)
+        buffer.position(dest.position())
+    }
+
+    /**
+     * Copies the newest version of the given block in the delta into the buffer, leaving the
+     * position untouched. The data is placed skip blocks after the current position, because
+     * blocks which have to be read from the base device may precede it.
+     *
+     * @return False if the block has never been written.
+     */
+    @Throws(IOException::class)
+    private fun readFromDelta(block: Long, buffer: ByteBuffer, skip: Int): Boolean {
+        val dest = buffer.duplicate()
+        dest.position(dest.position() + skip * blockSize)
+        dest.limit(dest.position() + blockSize)
+
+        for (i in layers.indices.reversed()) {
+            val layer = layers[i]
+            layer.blocks[block]?.let {
+                dest.put(it)
+                return true
+            }
+            layer.slots[block]?.let {
+                readFully(it * blockSize, dest)
+                return true
+            }
+        }
+
+        return false
+    }
+
+    @Throws(IOException::class)
+    override fun write(deviceOffset: Long, buffer: ByteBuffer) {
+        lock.withLock {
+            require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
+
+            val layer = layers[layers.size - 1]
+            val count = buffer.remaining() / blockSize
+
+            for (i in 0 until count) {
+                val block = deviceOffset + i
+                val src = buffer.duplicate()
+                src.limit(src.position() + blockSize)
+
+                if (deltaChannel == null) {
+                    val data = layer.blocks[block] ?: ByteArray(blockSize).also { layer.blocks[block] = it }
+                    src.get(data)
+                } else {
+                    val slot = layer.slots[block] ?: (deltaFileLength / blockSize).also {
+                        layer.slots[block] = it
+                        deltaFileLength += blockSize
+                    }
+                    writeFully(slot * blockSize, src)
+                }
+
+                buffer.position(buffer.position() + blockSize)
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readFully(position: Long, dest: ByteBuffer) {
+        var offset = position
+        while (dest.hasRemaining()) {
+            val read = deltaChannel!!.read(dest, offset)
+            if (read == -1) {
+                throw IOException("EOF in delta file")
+            }
+            offset += read
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeFully(position: Long, src: ByteBuffer) {
+        var offset = position
+        while (src.hasRemaining()) {
+            offset += deltaChannel!!.write(src, offset)
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        deltaChannel?.close()
+    }
+}
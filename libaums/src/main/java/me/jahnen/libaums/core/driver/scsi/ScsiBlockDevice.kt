@@ -27,6 +27,8 @@ import me.jahnen.libaums.core.usb.UsbCommunication
 import java.io.IOException
 import java.nio.ByteBuffer
 import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
  * This class is responsible for handling mass storage devices which follow the
@@ -37,6 +39,12 @@ import java.util.*
  * @see com.github.mjdev.libaums.driver.scsi.commands
  */
 class ScsiBlockDevice(private val usbCommunication: UsbCommunication, private val lun: Byte) : BlockDeviceDriver {
+    /**
+     * Serializes the commands sent to the device. A lock is used instead of
+     * a monitor, so that virtual threads waiting for the device do not pin
+     * their carrier thread.
+     */
+    private val lock = ReentrantLock()
     private val outBuffer: ByteBuffer = ByteBuffer.allocate(31)
     private val cswBuffer: ByteBuffer = ByteBuffer.allocate(CommandStatusWrapper.SIZE)
 
@@ -319,19 +327,20 @@ class ScsiBlockDevice(private val usbCommunication: UsbCommunication, private va
      * devOffset specifies at which block the reading should begin. That means
      * the devOffset is not in bytes!
      */
-    @Synchronized
     @Throws(IOException::class)
     override fun read(deviceOffset: Long, buffer: ByteBuffer) {
-        //long time = System.currentTimeMillis();
-        require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
+        lock.withLock {
+            //long time = System.currentTimeMillis();
+            require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
 
-        readCommand.init(deviceOffset.toInt(), buffer.remaining(), blockSize)
-        //Log.d(TAG, "reading: " + read);
+            readCommand.init(deviceOffset.toInt(), buffer.remaining(), blockSize)
+            //Log.d(TAG, "reading: " + read);
 
-        transferCommand(readCommand, buffer)
-        buffer.position(buffer.limit())
+            transferCommand(readCommand, buffer)
+            buffer.position(buffer.limit())
 
-        //Log.d(TAG, "read time: " + (System.currentTimeMillis() - time));
+            //Log.d(TAG, "read time: " + (System.currentTimeMillis() - time));
+        }
     }
 
     /**
@@ -339,19 +348,20 @@ class ScsiBlockDevice(private val usbCommunication: UsbCommunication, private va
      * devOffset specifies at which block the writing should begin. That means
      * the devOffset is not in bytes!
      */
-    @Synchronized
     @Throws(IOException::class)
     override fun write(deviceOffset: Long, buffer: ByteBuffer) {
-        //long time = System.currentTimeMillis();
-        require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
+        lock.withLock {
+            //long time = System.currentTimeMillis();
+            require(buffer.remaining() % blockSize == 0) { "buffer.remaining() must be multiple of blockSize!" }
 
-        writeCommand.init(deviceOffset.toInt(), buffer.remaining(), blockSize)
-        //Log.d(TAG, "writing: " + write);
+            writeCommand.init(deviceOffset.toInt(), buffer.remaining(), blockSize)
+            //Log.d(TAG, "writing: " + write);
 
-        transferCommand(writeCommand, buffer)
-        buffer.position(buffer.limit())
+            transferCommand(writeCommand, buffer)
+            buffer.position(buffer.limit())
 
-        //Log.d(TAG, "write time: " + (System.currentTimeMillis() - time));
+            //Log.d(TAG, "write time: " + (System.currentTimeMillis() - time));
+        }
     }
 
     companion object {
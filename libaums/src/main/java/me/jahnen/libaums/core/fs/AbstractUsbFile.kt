@@ -3,6 +3,8 @@ package me.jahnen.libaums.core.fs
 import android.util.Log
 
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.Callable
 
 /**
  * Created by magnusja on 3/1/17.
@@ -49,13 +51,13 @@ abstract class AbstractUsbFile : UsbFile {
         if (index < 0) {
             Log.d(TAG, "search entry: $path")
 
-            return searchThis(path)
+            return lookup(path)
         } else {
             val subPath = path.substring(index + 1)
             val dirName = path.substring(0, index)
             Log.d(TAG, "search recursively $subPath in $dirName")
 
-            val file = searchThis(dirName)
+            val file = lookup(dirName)
             if (file != null && file.isDirectory) {
                 Log.d(TAG, "found directory $dirName")
                 return file.search(subPath)
@@ -67,8 +69,44 @@ abstract class AbstractUsbFile : UsbFile {
         return null
     }
 
+    /**
+     * The queue the asynchronous operations like [readAsync] are executed on,
+     * instead of [IoQueue.DEFAULT]. File systems should return one queue per
+     * device.
+     */
+    protected open val ioQueue: IoQueue
+        get() = IoQueue.DEFAULT
+
+    override fun readAsync(offset: Long, destination: ByteBuffer): IoFuture<Unit> {
+        return ioQueue.read(this, offset, destination)
+    }
+
+    override fun writeAsync(offset: Long, source: ByteBuffer): IoFuture<Unit> {
+        return ioQueue.submit(Callable { write(offset, source) })
+    }
+
+    override fun flushAsync(): IoFuture<Unit> {
+        return ioQueue.submit(Callable { flush() })
+    }
+
+    override fun listFilesAsync(): IoFuture<Array<UsbFile>> {
+        return ioQueue.submit(Callable { listFiles() })
+    }
+
+    /**
+     * Returns the item with the given name in this directory, used by
+     * [.search] to resolve every path component. The default implementation
+     * compares the names of all items returned by [.listFiles]. File systems
+     * should override it if they can look up names directly.
+     *
+     * @param name
+     * The name of the item, without any separators.
+     * @return The item or null if it does not exist.
+     * @throws IOException
+     * If reading fails.
+     */
     @Throws(IOException::class)
-    private fun searchThis(name: String): UsbFile? {
+    protected open fun lookup(name: String): UsbFile? {
         for (file in listFiles()) {
             if (file.name == name)
                 return file
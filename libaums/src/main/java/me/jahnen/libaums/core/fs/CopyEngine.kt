@@ -0,0 +1,448 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import java.util.zip.CRC32
+
+/**
+ * Copies files and streams from and to [UsbFile]s.
+ *
+ *
+ * The data is read by a separate thread into a ring of large buffers while
+ * the calling thread writes the filled buffers, so reading and writing
+ * overlap and both devices are kept busy. If the size of the source is
+ * known, a [UsbFile] destination is grown to its final size before copying,
+ * so its clusters are allocated at once. If the copy fails or is cancelled,
+ * the destination is shrunk again to the data written so far.
+ *
+ *
+ * Copied [UsbFile]s and files opened by the engine are closed afterwards.
+ * Streams passed in are neither flushed nor closed, that is up to the
+ * caller. One engine can be used for several copies, also at the same time.
+ *
+ * @param options Buffer sizes and whether the copies are verified.
+ */
+class CopyEngine @JvmOverloads constructor(private val options: Options = Options.DEFAULT) {
+
+    /**
+     * Options of a [CopyEngine].
+     *
+     * @property bufferSize The size of each buffer. It should be a multiple of
+     * the cluster size, so that every request to the device covers whole
+     * clusters. The default is a multiple of all common cluster sizes.
+     * @property bufferCount The number of buffers in the ring, at least two.
+     * @property verify If true, the destination is read again after copying
+     * and compared with a checksum of the source. Streams cannot be read again
+     * and are not verified.
+     */
+    data class Options @JvmOverloads constructor(
+            val bufferSize: Int = DEFAULT_BUFFER_SIZE,
+            val bufferCount: Int = DEFAULT_BUFFER_COUNT,
+            val verify: Boolean = false
+    ) {
+
+        init {
+            require(bufferSize > 0) { "bufferSize must be positive" }
+            require(bufferCount >= 2) { "bufferCount must be at least 2" }
+        }
+
+        companion object {
+            /**
+             * The options used if none are given.
+             */
+            @JvmField
+            val DEFAULT = Options()
+        }
+    }
+
+    /**
+     * Informs about the progress of a copy and allows cancelling it.
+     */
+    fun interface Listener {
+        /**
+         * Called in the copying thread after each buffer has been written.
+         *
+         * @param copied The number of bytes copied so far.
+         * @param total The number of bytes to copy or -1 if unknown.
+         * @return False to cancel the copy.
+         */
+        fun onProgress(copied: Long, total: Long): Boolean
+    }
+
+    /**
+     * Copies a file from the USB device to local storage.
+     *
+     * @return The number of bytes copied.
+     * @throws IOException If reading or writing fails, the copy does not
+     * match the source or [InterruptedIOException] if the copy has been
+     * cancelled or the thread has been interrupted.
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: UsbFile, destination: File, listener: Listener? = null): Long {
+        return copy(UsbFileSource(source), StreamSink(FileOutputStream(destination), destination), listener)
+    }
+
+    /**
+     * Copies a local file to the USB device.
+     *
+     * @see copy
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: File, destination: UsbFile, listener: Listener? = null): Long {
+        return copy(StreamSource(FileInputStream(source), source.length(), true),
+                UsbFileSink(destination), listener)
+    }
+
+    /**
+     * Copies a file on the USB device, possibly to another device.
+     *
+     * @see copy
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: UsbFile, destination: UsbFile, listener: Listener? = null): Long {
+        return copy(UsbFileSource(source), UsbFileSink(destination), listener)
+    }
+
+    /**
+     * Copies a file from the USB device into a stream.
+     *
+     * @see copy
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: UsbFile, destination: OutputStream, listener: Listener? = null): Long {
+        return copy(UsbFileSource(source), StreamSink(destination, null, false), listener)
+    }
+
+    /**
+     * Copies a stream to the USB device.
+     *
+     * @param size The number of bytes in the stream or -1 if unknown. Used
+     * to grow the destination in advance and for the progress.
+     * @see copy
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: InputStream, destination: UsbFile, size: Long = -1, listener: Listener? = null): Long {
+        return copy(StreamSource(source, size, false), UsbFileSink(destination), listener)
+    }
+
+    @Throws(IOException::class)
+    private fun copy(source: Source, sink: Sink, listener: Listener?): Long {
+        source.use {
+            sink.use {
+                val total = source.size
+                if (total > 0) {
+                    sink.preallocate(total)
+                }
+
+                val checksum = if (options.verify) CRC32() else null
+                val copied = pipe(source, sink, listener, total, checksum)
+                sink.finish(copied)
+
+                if (checksum != null) {
+                    verify(sink, copied, checksum.value)
+                }
+                return copied
+            }
+        }
+    }
+
+    /**
+     * Reads the source in a separate thread and writes it in the calling
+     * thread.
+     */
+    @Throws(IOException::class)
+    private fun pipe(source: Source, sink: Sink, listener: Listener?, total: Long,
+                     checksum: CRC32?): Long {
+        val free = ArrayBlockingQueue<ByteBuffer>(options.bufferCount)
+        // one more for the end marker, so that putting never blocks
+        val filled = ArrayBlockingQueue<ByteBuffer>(options.bufferCount + 1)
+        repeat(options.bufferCount) { free.add(ByteBuffer.allocate(options.bufferSize)) }
+        val end = ByteBuffer.allocate(0)
+        val stopped = AtomicBoolean()
+        val error = AtomicReference<Throwable>()
+
+        val reader = Thread({
+            try {
+                while (!stopped.get()) {
+                    val buffer = free.take()
+                    buffer.clear()
+                    source.read(buffer)
+                    buffer.flip()
+                    if (!buffer.hasRemaining()) {
+                        break
+                    }
+                    filled.put(buffer)
+                }
+            } catch (e: Throwable) {
+                error.set(e)
+            } finally {
+                filled.add(end)
+            }
+        }, "libaums-copy-reader")
+        reader.isDaemon = true
+        reader.start()
+
+        var copied = 0L
+        var ended = false
+        try {
+            while (true) {
+                val buffer = filled.take()
+                if (buffer === end) {
+                    ended = true
+                    break
+                }
+
+                val count = buffer.remaining()
+                checksum?.update(buffer.array(), buffer.arrayOffset() + buffer.position(), count)
+                sink.write(buffer)
+                copied += count
+                free.put(buffer)
+
+                if (listener?.onProgress(copied, total) == false) {
+                    throw InterruptedIOException("Copy has been cancelled")
+                }
+                if (Thread.interrupted()) {
+                    throw InterruptedException()
+                }
+            }
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Copy has been interrupted")
+        } finally {
+            if (!ended) {
+                stopReader(stopped, filled, free, end)
+            }
+        }
+
+        when (val e = error.get()) {
+            null -> return copied
+            is IOException -> throw e
+            is RuntimeException -> throw e
+            is Error -> throw e
+            else -> throw IOException(e)
+        }
+    }
+
+    /**
+     * Lets the reader finish its current read and waits until it has
+     * stopped. The reader is not interrupted, as that would close a
+     * [java.nio.channels.FileChannel] it is reading from.
+     */
+    private fun stopReader(stopped: AtomicBoolean, filled: ArrayBlockingQueue<ByteBuffer>,
+                           free: ArrayBlockingQueue<ByteBuffer>, end: ByteBuffer) {
+        stopped.set(true)
+        var interrupted = false
+        while (true) {
+            try {
+                val buffer = filled.take()
+                if (buffer === end) {
+                    break
+                }
+                free.add(buffer)
+            } catch (e: InterruptedException) {
+                interrupted = true
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun verify(sink: Sink, length: Long, expected: Long) {
+        val copy = sink.reopen() ?: return
+        copy.use {
+            if (copy.size != length) {
+                throw IOException("Verification failed, the copy has ${copy.size} instead of $length bytes")
+            }
+
+            val buffer = ByteBuffer.allocate(options.bufferSize)
+            val checksum = CRC32()
+            while (true) {
+                buffer.clear()
+                copy.read(buffer)
+                buffer.flip()
+                if (!buffer.hasRemaining()) {
+                    break
+                }
+                checksum.update(buffer.array(), buffer.arrayOffset(), buffer.remaining())
+            }
+
+            if (checksum.value != expected) {
+                throw IOException("Verification failed, the copy differs from the source")
+            }
+        }
+    }
+
+    private interface Source : Closeable {
+        /**
+         * The number of bytes or -1 if unknown.
+         */
+        val size: Long
+
+        /**
+         * Fills the buffer up to its limit, or less at the end of the data.
+         */
+        @Throws(IOException::class)
+        fun read(buffer: ByteBuffer)
+    }
+
+    private interface Sink : Closeable {
+        @Throws(IOException::class)
+        fun preallocate(size: Long)
+
+        @Throws(IOException::class)
+        fun write(buffer: ByteBuffer)
+
+        /**
+         * Called after all data has been written.
+         */
+        @Throws(IOException::class)
+        fun finish(length: Long)
+
+        /**
+         * Returns a source reading the written data again, or null if that is
+         * not possible.
+         */
+        @Throws(IOException::class)
+        fun reopen(): Source?
+    }
+
+    private class UsbFileSource(private val file: UsbFile) : Source {
+        private var offset = 0L
+
+        override val size: Long = file.length
+
+        override fun read(buffer: ByteBuffer) {
+            val count = Math.min(buffer.remaining().toLong(), size - offset).toInt()
+            if (count <= 0) {
+                return
+            }
+            buffer.limit(buffer.position() + count)
+            file.read(offset, buffer)
+            offset += count
+        }
+
+        override fun close() = file.close()
+    }
+
+    /**
+     * If the copy fails or is cancelled, the file is shrunk to the data
+     * written so far when it is closed, so a preallocated file does not keep
+     * its full length with stale data.
+     */
+    private class UsbFileSink(private val file: UsbFile) : Sink {
+        private var offset = 0L
+        private var finished = false
+
+        override fun preallocate(size: Long) {
+            if (size > file.length) {
+                file.length = size
+            }
+        }
+
+        override fun write(buffer: ByteBuffer) {
+            val count = buffer.remaining()
+            file.write(offset, buffer)
+            offset += count
+        }
+
+        override fun finish(length: Long) {
+            file.length = length
+            file.flush()
+            finished = true
+        }
+
+        override fun reopen(): Source = UsbFileSource(file)
+
+        override fun close() {
+            try {
+                if (!finished) {
+                    file.length = offset
+                }
+            } finally {
+                file.close()
+            }
+        }
+    }
+
+    private class StreamSource(private val stream: InputStream,
+                               override val size: Long,
+                               private val owned: Boolean) : Source {
+
+        override fun read(buffer: ByteBuffer) {
+            while (buffer.hasRemaining()) {
+                val count = stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining())
+                if (count < 0) {
+                    return
+                }
+                buffer.position(buffer.position() + count)
+            }
+        }
+
+        override fun close() {
+            if (owned) {
+                stream.close()
+            }
+        }
+    }
+
+    /**
+     * @param file The file the stream writes to, if any, to read it again.
+     */
+    private class StreamSink(private val stream: OutputStream,
+                             private val file: File?,
+                             private val owned: Boolean = true) : Sink {
+
+        override fun preallocate(size: Long) {
+            // streams cannot be grown in advance
+        }
+
+        override fun write(buffer: ByteBuffer) {
+            stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+        }
+
+        override fun finish(length: Long) {
+            if (owned) {
+                stream.flush()
+            }
+        }
+
+        override fun reopen(): Source? {
+            return file?.let { StreamSource(FileInputStream(it), it.length(), true) }
+        }
+
+        override fun close() {
+            if (owned) {
+                stream.close()
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Default for [Options.bufferSize].
+         */
+        const val DEFAULT_BUFFER_SIZE = 512 * 1024
+        /**
+         * Default for [Options.bufferCount].
+         */
+        const val DEFAULT_BUFFER_COUNT = 4
+    }
+}
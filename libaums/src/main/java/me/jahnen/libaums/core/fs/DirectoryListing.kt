@@ -0,0 +1,220 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.*
+
+/**
+ * Read-only snapshot of the entries of a directory, returned by
+ * [UsbFile.listEntries]. The name, length, timestamps and attributes of
+ * every entry are stored in arrays and accessed by index, no [UsbFile] is
+ * created until [open] is called. This makes it much cheaper than
+ * [UsbFile.listFiles] for showing the contents of large directories.
+ *
+ *
+ * The listing is not updated when the directory changes.
+ */
+class DirectoryListing internal constructor(private val directory: UsbFile, capacity: Int) {
+
+    private var names = arrayOfNulls<String>(capacity)
+    private var lengths = LongArray(capacity)
+    private var createdAt = LongArray(capacity)
+    private var lastModified = LongArray(capacity)
+    private var lastAccessed = LongArray(capacity)
+    private var attributes = IntArray(capacity)
+
+    /**
+     * Number of entries in the listing.
+     */
+    var size = 0
+        private set
+
+    internal fun add(name: String, attributes: Int, length: Long,
+                     createdAt: Long, lastModified: Long, lastAccessed: Long) {
+        if (size == names.size) {
+            val capacity = Math.max(16, size * 2)
+            names = names.copyOf(capacity)
+            lengths = lengths.copyOf(capacity)
+            this.createdAt = this.createdAt.copyOf(capacity)
+            this.lastModified = this.lastModified.copyOf(capacity)
+            this.lastAccessed = this.lastAccessed.copyOf(capacity)
+            this.attributes = this.attributes.copyOf(capacity)
+        }
+
+        names[size] = name
+        this.attributes[size] = attributes
+        lengths[size] = length
+        this.createdAt[size] = createdAt
+        this.lastModified[size] = lastModified
+        this.lastAccessed[size] = lastAccessed
+        size++
+    }
+
+    private fun checkIndex(index: Int) {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index: $index, Size: $size")
+        }
+    }
+
+    /**
+     * @return The name of the entry at the given index.
+     */
+    fun getName(index: Int): String {
+        checkIndex(index)
+        return names[index]!!
+    }
+
+    /**
+     * @return True if the entry at the given index is a directory.
+     */
+    fun isDirectory(index: Int): Boolean {
+        return getAttributes(index) and ATTR_DIRECTORY != 0
+    }
+
+    /**
+     * @return The length in bytes of the entry at the given index, 0 for
+     * directories.
+     */
+    fun getLength(index: Int): Long {
+        checkIndex(index)
+        return lengths[index]
+    }
+
+    /**
+     * @return The time the entry at the given index was created.
+     * @see UsbFile.createdAt
+     */
+    fun createdAt(index: Int): Long {
+        checkIndex(index)
+        return createdAt[index]
+    }
+
+    /**
+     * @return The time the entry at the given index was last modified.
+     * @see UsbFile.lastModified
+     */
+    fun lastModified(index: Int): Long {
+        checkIndex(index)
+        return lastModified[index]
+    }
+
+    /**
+     * @return The time the entry at the given index was last accessed.
+     * @see UsbFile.lastAccessed
+     */
+    fun lastAccessed(index: Int): Long {
+        checkIndex(index)
+        return lastAccessed[index]
+    }
+
+    /**
+     * Returns the attributes of the entry at the given index as a
+     * combination of the ATTR_ flags. File systems which do not have some of
+     * the attributes never set them.
+     *
+     * @return The attributes.
+     */
+    fun getAttributes(index: Int): Int {
+        checkIndex(index)
+        return attributes[index]
+    }
+
+    /**
+     * Returns the index of the entry with the given name.
+     *
+     * @param name The name of the entry.
+     * @return The index or -1 if there is no such entry.
+     */
+    fun indexOf(name: String): Int {
+        for (i in 0 until size) {
+            if (names[i] == name) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    /**
+     * Returns a new listing with a page of the entries of this listing,
+     * sorted by the given key.
+     *
+     * @see UsbFile.listEntries
+     */
+    internal fun sorted(sortKey: SortKey, descending: Boolean, offset: Int, limit: Int): DirectoryListing {
+        val records = ArrayList<IndexedRecord>(size)
+        for (i in 0 until size) {
+            records.add(IndexedRecord(i))
+        }
+        Collections.sort(records, sortKey.comparator)
+
+        val range = pageRange(size, descending, offset, limit)
+        val result = DirectoryListing(directory, range.count())
+        for (position in range) {
+            val i = records[position].index
+            result.add(names[i]!!, attributes[i], lengths[i],
+                    createdAt[i], lastModified[i], lastAccessed[i])
+        }
+        return result
+    }
+
+    private inner class IndexedRecord(val index: Int) : SortRecord(names[index]!!,
+            attributes[index] and ATTR_DIRECTORY != 0, lengths[index], lastModified[index])
+
+    /**
+     * Opens the entry at the given index.
+     *
+     * @return The file or directory.
+     * @throws FileNotFoundException If the entry does not exist anymore.
+     */
+    @Throws(IOException::class)
+    fun open(index: Int): UsbFile {
+        val name = getName(index)
+        return directory.search(name) ?: throw FileNotFoundException("$name does not exist anymore")
+    }
+
+    companion object {
+        const val ATTR_READ_ONLY = 0x01
+        const val ATTR_HIDDEN = 0x02
+        const val ATTR_SYSTEM = 0x04
+        const val ATTR_DIRECTORY = 0x10
+        const val ATTR_ARCHIVE = 0x20
+
+        /**
+         * Creates the listing from the files of the directory, for file
+         * systems which cannot list their entries without creating them.
+         */
+        @Throws(IOException::class)
+        internal fun of(directory: UsbFile): DirectoryListing {
+            val files = directory.listFiles()
+            val listing = DirectoryListing(directory, files.size)
+            for (file in files) {
+                if (file.isDirectory) {
+                    listing.add(file.name, ATTR_DIRECTORY, 0,
+                            file.createdAt(), file.lastModified(), file.lastAccessed())
+                } else {
+                    listing.add(file.name, 0, file.length,
+                            file.createdAt(), file.lastModified(), file.lastAccessed())
+                }
+            }
+            return listing
+        }
+
+        /**
+         * Returns the positions in a list sorted in ascending order which make
+         * up the requested page.
+         *
+         * @param size The size of the sorted list.
+         */
+        internal fun pageRange(size: Int, descending: Boolean, offset: Int, limit: Int): IntProgression {
+            require(offset >= 0) { "offset must not be negative" }
+            require(limit >= 0) { "limit must not be negative" }
+
+            val count = Math.max(0, Math.min(limit.toLong(), size.toLong() - offset).toInt())
+            return if (descending) {
+                (size - 1 - offset) downTo (size - offset - count)
+            } else {
+                offset until offset + count
+            }
+        }
+    }
+}
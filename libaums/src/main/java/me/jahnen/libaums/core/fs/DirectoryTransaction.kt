@@ -0,0 +1,95 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.IOException
+
+/**
+ * Collects changes to the entries of one directory and applies them all at
+ * once in [commit]. File systems can use this to update their metadata in one
+ * go, for example the FAT32 implementation allocates the clusters of all new
+ * entries at once and writes the directory only once, instead of once per
+ * created file.
+ *
+ *
+ * Names are checked when an operation is added, the changes are only made
+ * when calling [commit]. The transaction is empty after every commit,
+ * successful or not, and can be used for further changes.
+ *
+ * @see UsbFile.beginTransaction
+ * @see batch
+ */
+interface DirectoryTransaction {
+
+    /**
+     * Creates a new file in the directory.
+     *
+     * @param name The name of the file.
+     * @throws IOException If the item already exists.
+     */
+    @Throws(IOException::class)
+    fun createFile(name: String)
+
+    /**
+     * Creates a new directory in the directory.
+     *
+     * @param name The name of the directory.
+     * @throws IOException If the item already exists.
+     */
+    @Throws(IOException::class)
+    fun createDirectory(name: String)
+
+    /**
+     * Deletes the item with the given name. Directories are deleted
+     * recursively.
+     *
+     * @param name The name of the item.
+     * @throws IOException If the item does not exist.
+     */
+    @Throws(IOException::class)
+    fun delete(name: String)
+
+    /**
+     * Renames the item with the given name.
+     *
+     * @param name The current name of the item.
+     * @param newName The new name.
+     * @throws IOException If the item does not exist or the new name is
+     * already used.
+     */
+    @Throws(IOException::class)
+    fun rename(name: String, newName: String)
+
+    /**
+     * Sets the length of the file with the given name.
+     *
+     * @param name The name of the file.
+     * @param length The new length in bytes.
+     * @throws IOException If the file does not exist.
+     * @see UsbFile.length
+     */
+    @Throws(IOException::class)
+    fun setLength(name: String, length: Long)
+
+    /**
+     * Applies all collected changes.
+     *
+     * @return The created files and directories in the order they were added.
+     * @throws IOException If writing to the device fails or the directory
+     * has been changed in a way that conflicts with the operations since
+     * they were added.
+     */
+    @Throws(IOException::class)
+    fun commit(): List<UsbFile>
+}
+
+/**
+ * Collects the changes made in [block] and commits them.
+ *
+ * @return The created files and directories.
+ * @see UsbFile.beginTransaction
+ */
+@Throws(IOException::class)
+inline fun UsbFile.batch(block: DirectoryTransaction.() -> Unit): List<UsbFile> {
+    val transaction = beginTransaction()
+    transaction.block()
+    return transaction.commit()
+}
@@ -17,6 +17,8 @@
 
 package me.jahnen.libaums.core.fs
 
+import java.io.IOException
+
 /**
  * This class represents a file system.
  *
@@ -74,4 +76,32 @@ interface FileSystem {
      * @return file system type [com.github.mjdev.libaums.partition.PartitionTypes]
      */
     val type: Int
+
+    /**
+     *
+     * @return The cache used to resolve paths in [UsbFile.search] or null if the file system
+     * does not cache paths. It can be used to look at the hit rate or to clear the cache.
+     * The default implementation returns null.
+     */
+    val pathCache: PathCache?
+        get() = null
+
+    /**
+     * Visits the given directory and all files and directories below it,
+     * using several threads to read different directories at the same time.
+     * This is much faster than calling [UsbFile.listFiles] recursively, for
+     * example to index all files on a device. The default implementation
+     * walks the tree with a [TreeWalker].
+     *
+     * @param root The directory to start with.
+     * @param visitor The visitor, called from several threads if parallelism
+     * is greater than 1.
+     * @param parallelism The number of threads to use.
+     * @throws IOException If reading a directory fails or the visitor throws.
+     * @see TreeWalker
+     */
+    @Throws(IOException::class)
+    fun walk(root: UsbFile, visitor: TreeVisitor, parallelism: Int) {
+        TreeWalker(parallelism).walk(root, visitor)
+    }
 }
@@ -10,6 +10,31 @@ import java.io.IOException
  */
 
 interface FileSystemCreator {
+    /**
+     * Reads the file system on the block device.
+     *
+     * @param entry The partition the file system is located on.
+     * @param blockDevice The block device of the partition.
+     * @return The file system or null if the block device does not contain
+     * a file system this creator supports.
+     */
     @Throws(IOException::class)
     fun read(entry: PartitionTableEntry, blockDevice: BlockDeviceDriver): FileSystem?
+
+    /**
+     * Reads the file system on the block device with the given options. The
+     * default implementation ignores the options and calls [read] without
+     * them, creators which support options override this.
+     *
+     * @param entry The partition the file system is located on.
+     * @param blockDevice The block device of the partition.
+     * @param options Options for mounting the file system, unsupported
+     * options are ignored.
+     * @return The file system or null if the block device does not contain
+     * a file system this creator supports.
+     */
+    @Throws(IOException::class)
+    fun read(entry: PartitionTableEntry, blockDevice: BlockDeviceDriver, options: MountOptions): FileSystem? {
+        return read(entry, blockDevice)
+    }
 }
@@ -60,12 +60,23 @@ object FileSystemFactory {
         registerFileSystem(Fat32FileSystemCreator(), DEFAULT_PRIORITY + 1)
     }
 
+    /**
+     * Creates the file system on the block device using the first registered
+     * creator which supports it.
+     *
+     * @param entry The partition the file system is located on.
+     * @param blockDevice The block device of the partition.
+     * @param options Options for mounting the file system.
+     * @throws UnsupportedFileSystemException If no creator supports the file system.
+     */
     @Synchronized
+    @JvmOverloads
     @Throws(IOException::class, FileSystemFactory.UnsupportedFileSystemException::class)
     fun createFileSystem(entry: PartitionTableEntry,
-                         blockDevice: BlockDeviceDriver): FileSystem {
+                         blockDevice: BlockDeviceDriver,
+                         options: MountOptions = MountOptions.DEFAULT): FileSystem {
         fileSystems.forEach {
-            val fs = it.creator.read(entry, blockDevice)
+            val fs = it.creator.read(entry, blockDevice, options)
             if (fs != null) {
                 return fs
             }
@@ -0,0 +1,67 @@
+package me.jahnen.libaums.core.fs
+
+import android.util.Log
+import java.util.concurrent.Callable
+import java.util.concurrent.FutureTask
+
+/**
+ * Result of an asynchronous operation queued on an [IoQueue], for example by
+ * [UsbFile.readAsync]. Besides waiting with [get], listeners can be added
+ * which are called as soon as the operation has finished.
+ *
+ * Cancelling only has an effect as long as the operation has not been
+ * started.
+ */
+class IoFuture<T> internal constructor(callable: Callable<T>) : FutureTask<T>(callable) {
+
+    /**
+     * Called when an [IoFuture] has finished, successfully, with an exception
+     * or because it has been cancelled.
+     */
+    fun interface Listener<T> {
+        fun onDone(future: IoFuture<T>)
+    }
+
+    private var listeners: MutableList<Listener<T>>? = ArrayList()
+
+    /**
+     * Adds a listener which is called once the operation has finished. If it
+     * has already finished, the listener is called immediately in the calling
+     * thread. Otherwise it is called in the thread of the [IoQueue], so it
+     * should return quickly and must never wait for another operation on the
+     * same queue. Threads waiting in [get] may be woken up before the
+     * listeners have been called.
+     *
+     * @param listener The listener.
+     */
+    fun addListener(listener: Listener<T>) {
+        synchronized(this) {
+            listeners?.let {
+                it.add(listener)
+                return
+            }
+        }
+        callListener(listener)
+    }
+
+    internal fun complete(value: T) = set(value)
+
+    override fun done() {
+        val listeners = synchronized(this) {
+            listeners.also { listeners = null }
+        }
+        listeners?.forEach { callListener(it) }
+    }
+
+    private fun callListener(listener: Listener<T>) {
+        try {
+            listener.onDone(this)
+        } catch (e: RuntimeException) {
+            Log.e(TAG, "listener failed", e)
+        }
+    }
+
+    companion object {
+        private val TAG = IoFuture::class.java.simpleName
+    }
+}
@@ -0,0 +1,201 @@
+package me.jahnen.libaums.core.fs
+
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Executes the asynchronous operations of [UsbFile], like
+ * [UsbFile.readAsync], on one background thread. A mounted file system has
+ * one queue, so all operations of a device are executed one after another
+ * and the device never gets more requests at once than it can handle.
+ *
+ *
+ * Requests which have been queued while the thread was busy are executed
+ * together. Reads in such a batch are sorted by file and offset, and reads of
+ * adjacent parts of a file are merged into one read of at most
+ * [maxMergeSize] bytes. All other operations are barriers, reads are never
+ * moved across them. Thus a read queued after a write always sees the
+ * written data.
+ *
+ *
+ * The thread is started when needed and stops after being idle for a few
+ * seconds, so the queue does not have to be closed.
+ *
+ * @param name The name of the thread.
+ * @param maxMergeSize The maximum number of bytes read at once when merging
+ * reads.
+ */
+class IoQueue @JvmOverloads constructor(
+        private val name: String = "libaums-io",
+        private val maxMergeSize: Int = DEFAULT_MAX_MERGE_SIZE
+) {
+
+    private class Request(val future: IoFuture<*>,
+                          val file: UsbFile? = null,
+                          val offset: Long = 0,
+                          val destination: ByteBuffer? = null) {
+        val end: Long
+            get() = offset + destination!!.remaining()
+    }
+
+    private val executor = ThreadPoolExecutor(0, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            LinkedBlockingQueue(), QueueThreadFactory())
+    private val pending = ArrayList<Request>()
+    private var draining = false
+    private var mergeBuffer: ByteBuffer? = null
+
+    init {
+        require(maxMergeSize > 0) { "maxMergeSize must be positive" }
+    }
+
+    /**
+     * Queues a read of the file.
+     *
+     * @see UsbFile.read
+     */
+    fun read(file: UsbFile, offset: Long, destination: ByteBuffer): IoFuture<Unit> {
+        val future = IoFuture(Callable { file.read(offset, destination) })
+        enqueue(Request(future, file, offset, destination))
+        return future
+    }
+
+    /**
+     * Queues an arbitrary operation. It is executed after all requests queued
+     * before and before all requests queued after it.
+     *
+     * @param task The operation.
+     * @return The future of the operation.
+     */
+    fun <T> submit(task: Callable<T>): IoFuture<T> {
+        val future = IoFuture(task)
+        enqueue(Request(future))
+        return future
+    }
+
+    private fun enqueue(request: Request) {
+        synchronized(pending) {
+            pending.add(request)
+            if (!draining) {
+                draining = true
+                executor.execute { drain() }
+            }
+        }
+    }
+
+    private fun drain() {
+        while (true) {
+            val batch = synchronized(pending) {
+                if (pending.isEmpty()) {
+                    draining = false
+                    return
+                }
+                ArrayList(pending).also { pending.clear() }
+            }
+
+            var start = 0
+            while (start < batch.size) {
+                if (batch[start].file == null) {
+                    batch[start].future.run()
+                    start++
+                    continue
+                }
+                var end = start + 1
+                while (end < batch.size && batch[end].file != null) {
+                    end++
+                }
+                executeReads(batch.subList(start, end))
+                start = end
+            }
+        }
+    }
+
+    private fun executeReads(reads: List<Request>) {
+        val byFile = LinkedHashMap<UsbFile, MutableList<Request>>()
+        for (read in reads) {
+            if (!read.future.isCancelled) {
+                byFile.getOrPut(read.file!!) { ArrayList() }.add(read)
+            }
+        }
+
+        for (fileReads in byFile.values) {
+            // stable, reads of the same offset stay in the order they were queued
+            fileReads.sortBy { it.offset }
+
+            var start = 0
+            while (start < fileReads.size) {
+                val first = fileReads[start].offset
+                var end = start + 1
+                var mergedEnd = fileReads[start].end
+                while (end < fileReads.size && fileReads[end].offset == mergedEnd &&
+                        fileReads[end].end - first <= maxMergeSize) {
+                    mergedEnd = fileReads[end].end
+                    end++
+                }
+
+                if (end - start == 1) {
+                    fileReads[start].future.run()
+                } else {
+                    executeMerged(fileReads.subList(start, end), first, mergedEnd)
+                }
+                start = end
+            }
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun executeMerged(reads: List<Request>, first: Long, end: Long) {
+        val buffer = mergeBuffer ?: ByteBuffer.allocate(maxMergeSize).also { mergeBuffer = it }
+        buffer.clear()
+        buffer.limit((end - first).toInt())
+
+        try {
+            reads[0].file!!.read(first, buffer)
+        } catch (e: Exception) {
+            // let every request fail or succeed on its own
+            reads.forEach { it.future.run() }
+            return
+        }
+
+        for (read in reads) {
+            if (read.future.isCancelled) {
+                continue
+            }
+            buffer.limit((read.end - first).toInt())
+            buffer.position((read.offset - first).toInt())
+            read.destination!!.put(buffer)
+            (read.future as IoFuture<Unit>).complete(Unit)
+        }
+    }
+
+    private inner class QueueThreadFactory : ThreadFactory {
+        private val count = AtomicInteger()
+
+        override fun newThread(runnable: Runnable): Thread {
+            val thread = Thread(runnable, name + "-" + count.incrementAndGet())
+            thread.isDaemon = true
+            return thread
+        }
+    }
+
+    companion object {
+        /**
+         * Default for [maxMergeSize].
+         */
+        const val DEFAULT_MAX_MERGE_SIZE = 256 * 1024
+
+        private const val KEEP_ALIVE_SECONDS = 5L
+
+        /**
+         * Used by files which do not belong to a file system with its own
+         * queue.
+         */
+        @JvmField
+        val DEFAULT = IoQueue()
+    }
+}
@@ -0,0 +1,65 @@
+package me.jahnen.libaums.core.fs
+
+import me.jahnen.libaums.core.usb.UsbCommunicationFactory
+
+/**
+ * Options for mounting a device or file system. They are passed from
+ * [me.jahnen.libaums.core.UsbMassStorageDevice.init] down to the
+ * [FileSystemCreator], so that different devices in one process can be
+ * tuned separately. File systems ignore options they do not support.
+ *
+ * @property timestampPolicy When the last access and modification times of
+ * files are updated.
+ * @property syncOnFlush If true [UsbFile.flush] also flushes the block
+ * device, otherwise the data is only guaranteed to be on the device after
+ * the device itself is flushed or closed.
+ * @property allocationPolicy Where the search for free clusters starts.
+ * @property fatCacheSize Number of cluster chains the FAT keeps in memory.
+ * @property fatWindowBlocks Number of blocks read or written at once when
+ * accessing the FAT.
+ * @property maxClustersPerWrite Maximum number of consecutive clusters
+ * written with one request. Setting this too high may cause problems with
+ * some devices.
+ * @property pathCacheSize Maximum number of paths in the [PathCache].
+ * @property usbCommunication The kind of USB communication to use, null uses
+ * [UsbCommunicationFactory.underlyingUsbCommunication].
+ */
+data class MountOptions @JvmOverloads constructor(
+        val timestampPolicy: TimestampPolicy = TimestampPolicy.DEFAULT,
+        val syncOnFlush: Boolean = true,
+        val allocationPolicy: AllocationPolicy = AllocationPolicy.NEXT_FIT,
+        val fatCacheSize: Int = 64,
+        val fatWindowBlocks: Int = 2,
+        val maxClustersPerWrite: Int = 4,
+        val pathCacheSize: Int = PathCache.DEFAULT_MAX_SIZE,
+        val usbCommunication: UsbCommunicationFactory.UnderlyingUsbCommunication? = null
+) {
+
+    enum class AllocationPolicy {
+        /**
+         * Continue searching after the last allocated cluster. This is fast
+         * and keeps new files mostly consecutive.
+         */
+        NEXT_FIT,
+        /**
+         * Always search from the beginning of the FAT. This fills gaps left by
+         * deleted files first, but is slower on full volumes.
+         */
+        FIRST_FIT
+    }
+
+    init {
+        require(fatCacheSize > 0) { "fatCacheSize must be positive" }
+        require(fatWindowBlocks > 0) { "fatWindowBlocks must be positive" }
+        require(maxClustersPerWrite > 0) { "maxClustersPerWrite must be positive" }
+        require(pathCacheSize > 0) { "pathCacheSize must be positive" }
+    }
+
+    companion object {
+        /**
+         * The options used if none are given.
+         */
+        @JvmField
+        val DEFAULT = MountOptions()
+    }
+}
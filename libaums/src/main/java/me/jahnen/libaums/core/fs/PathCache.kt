@@ -0,0 +1,162 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.IOException
+import java.util.*
+
+/**
+ * Bounded cache for resolved absolute paths, used by file systems to answer
+ * repeated [UsbFile.search] calls without reading directories. It caches
+ * existing files as well as paths which do not exist. The least recently used
+ * paths are dropped if more than [maxSize] paths are cached.
+ *
+ *
+ * The file system invalidates the affected paths when items are created,
+ * renamed, moved or deleted. Changes made to the device by other means are
+ * not noticed, call [clear] in that case.
+ *
+ * @param maxSize Maximum number of cached paths.
+ */
+class PathCache @JvmOverloads constructor(val maxSize: Int = DEFAULT_MAX_SIZE) {
+
+    /**
+     * Cached result, [file] is null if the path does not exist.
+     */
+    private class Result(val file: UsbFile?)
+
+    private val entries = object : LinkedHashMap<String, Result>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Result>): Boolean {
+            val remove = size > maxSize
+            if (remove && eldest.value.file == null) {
+                negativeCount--
+            }
+            return remove
+        }
+    }
+
+    private var negativeCount = 0
+    /**
+     * Incremented on every invalidation.
+     */
+    private var generation = 0L
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    var hitCount: Long = 0
+        @Synchronized get
+        private set
+
+    /**
+     * Number of lookups which had to be resolved by the file system.
+     */
+    var missCount: Long = 0
+        @Synchronized get
+        private set
+
+    /**
+     * Ratio of lookups answered from the cache, between 0 and 1.
+     */
+    val hitRate: Float
+        @Synchronized get() {
+            val total = hitCount + missCount
+            return if (total == 0L) 0f else hitCount.toFloat() / total
+        }
+
+    /**
+     * Number of currently cached paths.
+     */
+    val size: Int
+        @Synchronized get() = entries.size
+
+    init {
+        require(maxSize > 0) { "maxSize must be positive" }
+    }
+
+    /**
+     * Returns the cached result for the path or resolves and caches it.
+     *
+     * @param path The absolute path.
+     * @param resolve Called to resolve the path if it is not cached.
+     * @return The file or null if the path does not exist.
+     */
+    @Throws(IOException::class)
+    internal fun getOrResolve(path: String, resolve: () -> UsbFile?): UsbFile? {
+        val generation: Long
+        synchronized(this) {
+            entries[path]?.let {
+                hitCount++
+                return it.file
+            }
+
+            missCount++
+            generation = this.generation
+        }
+
+        // resolve without holding the lock, the file system may need to read
+        val file = resolve()
+
+        synchronized(this) {
+            // do not cache results which may have been invalidated meanwhile
+            if (generation == this.generation) {
+                if (file == null) {
+                    negativeCount++
+                }
+                entries.put(path, Result(file))?.let {
+                    if (it.file == null) negativeCount--
+                }
+            }
+        }
+        return file
+    }
+
+    /**
+     * Removes the path and every path below it from the cache.
+     *
+     * @param path The absolute path.
+     */
+    @Synchronized
+    fun invalidate(path: String) {
+        generation++
+        entries.remove(path)?.let {
+            if (it.file == null) negativeCount--
+        }
+
+        val prefix = path + UsbFile.separator
+        val iterator = entries.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key.startsWith(prefix)) {
+                if (entry.value.file == null) negativeCount--
+                iterator.remove()
+            }
+        }
+    }
+
+    /**
+     * Invalidates the path of a newly created item. Only paths which were
+     * cached as not existing can be affected.
+     *
+     * @param path The absolute path.
+     */
+    @Synchronized
+    internal fun invalidateCreated(path: String) {
+        generation++
+        if (negativeCount > 0) {
+            invalidate(path)
+        }
+    }
+
+    /**
+     * Removes all paths from the cache. The statistics are not reset.
+     */
+    @Synchronized
+    fun clear() {
+        generation++
+        entries.clear()
+        negativeCount = 0
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SIZE = 1024
+    }
+}
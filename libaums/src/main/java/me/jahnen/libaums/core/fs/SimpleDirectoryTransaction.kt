@@ -0,0 +1,99 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.IOException
+import java.util.*
+
+/**
+ * [DirectoryTransaction] for file systems without special support. The
+ * operations are applied one by one using the methods of [UsbFile]. If an
+ * operation fails, the operations before it stay applied.
+ */
+internal class SimpleDirectoryTransaction(private val directory: UsbFile) : DirectoryTransaction {
+
+    /**
+     * The names after the staged operations, read again after a commit.
+     */
+    private var names: MutableSet<String>? = null
+    private val operations = ArrayList<() -> Unit>()
+    private val created = ArrayList<UsbFile>()
+
+    init {
+        check(directory.isDirectory) { "This is a file!" }
+        names()
+    }
+
+    @Throws(IOException::class)
+    private fun names(): MutableSet<String> {
+        return names ?: directory.list().mapTo(HashSet()) { it.toLowerCase(Locale.getDefault()) }
+                .also { names = it }
+    }
+
+    @Throws(IOException::class)
+    private fun add(name: String) {
+        if (!names().add(name.toLowerCase(Locale.getDefault())))
+            throw IOException("Item already exists!")
+    }
+
+    @Throws(IOException::class)
+    private fun remove(name: String) {
+        if (!names().remove(name.toLowerCase(Locale.getDefault())))
+            throw IOException("Item does not exist!")
+    }
+
+    @Throws(IOException::class)
+    private fun get(name: String): UsbFile {
+        return directory.search(name) ?: throw IOException("Item does not exist!")
+    }
+
+    @Throws(IOException::class)
+    override fun createFile(name: String) {
+        add(name)
+        operations.add { created.add(directory.createFile(name)) }
+    }
+
+    @Throws(IOException::class)
+    override fun createDirectory(name: String) {
+        add(name)
+        operations.add { created.add(directory.createDirectory(name)) }
+    }
+
+    @Throws(IOException::class)
+    override fun delete(name: String) {
+        remove(name)
+        operations.add { get(name).delete() }
+    }
+
+    @Throws(IOException::class)
+    override fun rename(name: String, newName: String) {
+        val key = name.toLowerCase(Locale.getDefault())
+        val newKey = newName.toLowerCase(Locale.getDefault())
+        val names = names()
+        // check both names before changing the set
+        if (!names.contains(key))
+            throw IOException("Item does not exist!")
+        if (newKey != key && names.contains(newKey))
+            throw IOException("Item already exists!")
+        names.remove(key)
+        names.add(newKey)
+        operations.add { get(name).name = newName }
+    }
+
+    @Throws(IOException::class)
+    override fun setLength(name: String, length: Long) {
+        if (!names().contains(name.toLowerCase(Locale.getDefault())))
+            throw IOException("Item does not exist!")
+        operations.add { get(name).length = length }
+    }
+
+    @Throws(IOException::class)
+    override fun commit(): List<UsbFile> {
+        try {
+            operations.forEach { it() }
+            return ArrayList(created)
+        } finally {
+            operations.clear()
+            created.clear()
+            names = null
+        }
+    }
+}
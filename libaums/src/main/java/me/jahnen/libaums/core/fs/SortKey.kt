@@ -0,0 +1,56 @@
+package me.jahnen.libaums.core.fs
+
+import java.util.*
+
+/**
+ * Keys for sorting the entries of a directory in
+ * [UsbFile.listEntries]. Entries which are equal regarding the key are
+ * sorted by name, names are compared ignoring case.
+ */
+enum class SortKey {
+    /**
+     * Sorts by name.
+     */
+    NAME,
+    /**
+     * Sorts by length in bytes, directories have a length of 0.
+     */
+    SIZE,
+    /**
+     * Sorts by the time of the last modification.
+     */
+    LAST_MODIFIED,
+    /**
+     * Sorts directories before files and files by extension.
+     */
+    TYPE;
+
+    /**
+     * Returns a comparator for the key. It only considers two entries equal
+     * if their names are equal.
+     */
+    internal val comparator: Comparator<SortRecord>
+        get() = when (this) {
+            NAME -> BY_NAME
+            SIZE -> BY_SIZE
+            LAST_MODIFIED -> BY_LAST_MODIFIED
+            TYPE -> BY_TYPE
+        }
+
+    private companion object {
+        val BY_NAME = Comparator<SortRecord> { a, b ->
+            val result = String.CASE_INSENSITIVE_ORDER.compare(a.name, b.name)
+            if (result != 0) result else a.name.compareTo(b.name)
+        }
+        val BY_SIZE: Comparator<SortRecord> = compareBy<SortRecord> { it.length }.then(BY_NAME)
+        val BY_LAST_MODIFIED: Comparator<SortRecord> = compareBy<SortRecord> { it.lastModified }.then(BY_NAME)
+        val BY_TYPE: Comparator<SortRecord> = compareBy<SortRecord>({ !it.isDirectory },
+                { it.name.substringAfterLast('.', "").toLowerCase(Locale.ROOT) }).then(BY_NAME)
+    }
+}
+
+/**
+ * The values of a directory entry which are needed for sorting.
+ */
+internal open class SortRecord(val name: String, val isDirectory: Boolean,
+                               val length: Long, val lastModified: Long)
@@ -0,0 +1,43 @@
+package me.jahnen.libaums.core.fs
+
+/**
+ * Controls when the last access and last modification times of files are
+ * updated. Every update has to be written to the parent directory, so
+ * updating less often saves writes, for example when streaming a file.
+ *
+ * @property accessTime When the last access time is updated on reads.
+ * @property lazyModifiedTime If true the last modification time is only set
+ * once when the file is closed, instead of on every write.
+ */
+data class TimestampPolicy @JvmOverloads constructor(
+        val accessTime: AccessTime = AccessTime.ALWAYS,
+        val lazyModifiedTime: Boolean = false
+) {
+
+    enum class AccessTime {
+        /**
+         * Update the last access time when a file is read, at most once until
+         * it is closed.
+         */
+        ALWAYS,
+        /**
+         * Only update the last access time if it is older than the last
+         * modification time or more than a day old, like the relatime option
+         * on Linux.
+         */
+        RELATIME,
+        /**
+         * Never update the last access time, like the noatime option on Linux.
+         */
+        NEVER
+    }
+
+    companion object {
+        /**
+         * Updates the access time on reads and the modification time on
+         * every write.
+         */
+        @JvmField
+        val DEFAULT = TimestampPolicy()
+    }
+}
@@ -0,0 +1,42 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.IOException
+
+/**
+ * Callback for [FileSystem.walk]. If the walk is parallel, the methods are
+ * called from several threads at once, but never twice for the same file.
+ */
+interface TreeVisitor {
+
+    /**
+     * Called before the entries of a directory are read.
+     *
+     * @param directory The directory.
+     * @return False to skip the directory and everything below it.
+     * @throws IOException To stop the walk.
+     */
+    @Throws(IOException::class)
+    fun preVisitDirectory(directory: UsbFile): Boolean
+
+    /**
+     * Called for every file which is not a directory.
+     *
+     * @param file The file.
+     * @throws IOException To stop the walk.
+     */
+    @Throws(IOException::class)
+    fun visitFile(file: UsbFile)
+
+    /**
+     * Called after the files of a directory have been visited. The
+     * subdirectories may not have been visited yet.
+     *
+     * @param directory The directory.
+     * @param entryCount The number of files and directories in the directory.
+     * @param listTimeNanos The time it took to read the entries of the
+     * directory in nanoseconds.
+     * @throws IOException To stop the walk.
+     */
+    @Throws(IOException::class)
+    fun postVisitDirectory(directory: UsbFile, entryCount: Int, listTimeNanos: Long)
+}
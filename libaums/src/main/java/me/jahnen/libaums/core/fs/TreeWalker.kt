@@ -0,0 +1,155 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Visits all files below a directory, see [FileSystem.walk].
+ *
+ *
+ * Every directory is handled by one task. After the entries of a directory
+ * have been read, the tasks for its subdirectories are queued before its files
+ * are visited. That way the subdirectories are already read by other threads
+ * while the visitor is busy with the files, and the device always has
+ * requests to work on.
+ *
+ *
+ * The file system has to support being used from several threads, like
+ * [me.jahnen.libaums.core.fs.fat32.Fat32FileSystem] does.
+ *
+ * @param parallelism The number of threads, 1 walks the tree in the calling
+ * thread.
+ */
+class TreeWalker(private val parallelism: Int) {
+
+    init {
+        require(parallelism > 0) { "parallelism must be positive" }
+    }
+
+    /**
+     * Visits the given directory and all files and directories below it.
+     * Returns when all directories have been visited.
+     *
+     * @param root The directory to start with.
+     * @param visitor The visitor.
+     * @throws IOException The first exception thrown while reading a directory
+     * or by the visitor, the walk is stopped in that case.
+     */
+    @Throws(IOException::class)
+    fun walk(root: UsbFile, visitor: TreeVisitor) {
+        require(root.isDirectory) { "root must be a directory" }
+
+        if (parallelism == 1) {
+            val stack = ArrayDeque<UsbFile>()
+            stack.push(root)
+            while (stack.isNotEmpty()) {
+                visitDirectory(stack.pop(), visitor, { false }) { stack.push(it) }
+            }
+            return
+        }
+
+        val executor = ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                LinkedBlockingQueue(), WalkerThreadFactory())
+        val pending = AtomicInteger()
+        val done = CountDownLatch(1)
+        val error = AtomicReference<Throwable>()
+        // set by the first error, remaining tasks return without reading
+        val stopped = { error.get() != null }
+
+        fun submit(directory: UsbFile) {
+            pending.incrementAndGet()
+            executor.execute {
+                try {
+                    if (!stopped()) {
+                        visitDirectory(directory, visitor, stopped) { submit(it) }
+                    }
+                } catch (e: Throwable) {
+                    error.compareAndSet(null, e)
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        done.countDown()
+                    }
+                }
+            }
+        }
+
+        try {
+            submit(root)
+            done.await()
+        } catch (e: InterruptedException) {
+            error.compareAndSet(null, e)
+            // Workers must not be interrupted, an interrupt closes the
+            // FileChannel of a file backed block device. Tasks which are
+            // running finish their current directory.
+            awaitUninterruptibly(done)
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Walk has been interrupted")
+        } finally {
+            executor.shutdown()
+        }
+
+        when (val e = error.get()) {
+            null -> return
+            is IOException -> throw e
+            is RuntimeException -> throw e
+            is Error -> throw e
+            else -> throw IOException(e)
+        }
+    }
+
+    private fun awaitUninterruptibly(latch: CountDownLatch) {
+        while (true) {
+            try {
+                latch.await()
+                return
+            } catch (e: InterruptedException) {
+                // interrupt again after the workers have stopped
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun visitDirectory(directory: UsbFile, visitor: TreeVisitor,
+                               stopped: () -> Boolean, queue: (UsbFile) -> Unit) {
+        if (!visitor.preVisitDirectory(directory)) {
+            return
+        }
+
+        val start = System.nanoTime()
+        val children = directory.listFiles()
+        val listTime = System.nanoTime() - start
+
+        for (child in children) {
+            if (child.isDirectory) {
+                queue(child)
+            }
+        }
+        for (child in children) {
+            if (stopped()) {
+                return
+            }
+            if (!child.isDirectory) {
+                visitor.visitFile(child)
+            }
+        }
+        visitor.postVisitDirectory(directory, children.size, listTime)
+    }
+
+    private class WalkerThreadFactory : ThreadFactory {
+        private val count = AtomicInteger()
+
+        override fun newThread(runnable: Runnable): Thread {
+            val thread = Thread(runnable, "libaums-walker-" + count.incrementAndGet())
+            thread.isDaemon = true
+            return thread
+        }
+    }
+}
@@ -20,6 +20,7 @@ package me.jahnen.libaums.core.fs
 import java.io.Closeable
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.concurrent.Callable
 
 /**
  * This class represents either an file or an directory. This can be determined
@@ -152,6 +153,61 @@ interface UsbFile : Closeable {
     @Throws(IOException::class)
     fun listFiles(): Array<UsbFile>
 
+    /**
+     * Lists all files and directories in the directory like [.listFiles],
+     * but lazily. Implementations may read the directory piece by piece
+     * while the sequence is iterated, so that the first items are available
+     * before the whole directory has been read. Reading errors are thrown as
+     * [IOException] while iterating. The default implementation reads the
+     * whole directory with [.listFiles] when iteration starts.
+     *
+     * @return The files and directories in the directory.
+     */
+    fun fileSequence(): Sequence<UsbFile> = sequence {
+        yieldAll(listFiles().asIterable())
+    }
+
+    /**
+     * Lists the name, length, timestamps and attributes of all entries in
+     * the directory without creating a [UsbFile] for every entry. Use
+     * [DirectoryListing.open] to get the file for an entry. Throws an
+     * exception if called on a file. The default implementation collects the
+     * entries from [.listFiles].
+     *
+     * @return The entries of the directory.
+     * @throws IOException
+     * If reading fails
+     */
+    @Throws(IOException::class)
+    fun listEntries(): DirectoryListing {
+        return DirectoryListing.of(this)
+    }
+
+    /**
+     * Lists a page of the entries in the directory like [.listEntries], sorted
+     * by the given key. Implementations may keep the entries sorted while the
+     * directory changes, so that requesting a page does not require sorting
+     * the whole directory again. Throws an exception if called on a file.
+     * The default implementation sorts the result of [.listEntries].
+     *
+     * @param sortKey
+     * The key to sort by.
+     * @param descending
+     * True to reverse the order.
+     * @param offset
+     * The number of entries to skip.
+     * @param limit
+     * The maximum number of entries to return.
+     * @return The entries of the page, the listing is empty if offset is
+     * beyond the last entry.
+     * @throws IOException
+     * If reading fails
+     */
+    @Throws(IOException::class)
+    fun listEntries(sortKey: SortKey, descending: Boolean, offset: Int, limit: Int): DirectoryListing {
+        return listEntries().sorted(sortKey, descending, offset, limit)
+    }
+
     /**
      * Reads from a file or throws an exception if called on a directory.
      *
@@ -198,6 +254,64 @@ interface UsbFile : Closeable {
     @Throws(IOException::class)
     override fun close()
 
+    /**
+     * Queues a read on the [IoQueue] of the device and returns immediately.
+     * Reads queued at about the same time are sorted and adjacent reads are
+     * merged, see [IoQueue]. The destination must not be used until the
+     * returned future has finished. The default implementation uses
+     * [IoQueue.DEFAULT].
+     *
+     * @param offset
+     * The offset in bytes where reading in the file should be begin.
+     * @param destination
+     * Buffer the data shall be transferred to.
+     * @return The future of the read, [IoFuture.get] throws an
+     * [java.util.concurrent.ExecutionException] if reading fails.
+     * @see read
+     */
+    fun readAsync(offset: Long, destination: ByteBuffer): IoFuture<Unit> {
+        return IoQueue.DEFAULT.read(this, offset, destination)
+    }
+
+    /**
+     * Queues a write on the [IoQueue] of the device and returns immediately.
+     * The source must not be changed until the returned future has finished.
+     * The default implementation uses [IoQueue.DEFAULT].
+     *
+     * @param offset
+     * The offset in bytes where writing in the file should be begin.
+     * @param source
+     * Buffer which contains the data which shall be transferred.
+     * @return The future of the write.
+     * @see write
+     */
+    fun writeAsync(offset: Long, source: ByteBuffer): IoFuture<Unit> {
+        return IoQueue.DEFAULT.submit(Callable { write(offset, source) })
+    }
+
+    /**
+     * Queues a flush on the [IoQueue] of the device and returns immediately.
+     * The flush is executed after all operations queued before. The default
+     * implementation uses [IoQueue.DEFAULT].
+     *
+     * @return The future of the flush.
+     * @see flush
+     */
+    fun flushAsync(): IoFuture<Unit> {
+        return IoQueue.DEFAULT.submit(Callable { flush() })
+    }
+
+    /**
+     * Queues listing the directory on the [IoQueue] of the device and
+     * returns immediately. The default implementation uses [IoQueue.DEFAULT].
+     *
+     * @return The future of the items in the directory.
+     * @see listFiles
+     */
+    fun listFilesAsync(): IoFuture<Array<UsbFile>> {
+        return IoQueue.DEFAULT.submit(Callable { listFiles() })
+    }
+
     /**
      * This methods creates a new directory with the given name and returns it.
      *
@@ -250,6 +364,25 @@ interface UsbFile : Closeable {
     @Throws(IOException::class)
     fun delete()
 
+    /**
+     * Starts a transaction to create, delete or rename several items in this
+     * directory at once. Nothing is changed until
+     * [DirectoryTransaction.commit] is called. The default implementation
+     * applies the operations one by one, so if one fails the operations
+     * before it stay applied.
+     *
+     * @return The new transaction.
+     * @throws IOException
+     * If reading the directory fails.
+     * @throws IllegalStateException
+     * If this is a file.
+     * @see batch
+     */
+    @Throws(IOException::class)
+    fun beginTransaction(): DirectoryTransaction {
+        return SimpleDirectoryTransaction(this)
+    }
+
     companion object {
         const val separator = "/"
     }
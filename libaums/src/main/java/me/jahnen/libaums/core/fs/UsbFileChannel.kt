@@ -0,0 +1,332 @@
+package me.jahnen.libaums.core.fs
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.ByteChannel
+import java.nio.channels.ClosedChannelException
+import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * UsbFileChannel provides NIO channel access to a UsbFile. Unlike the streams
+ * it can seek in both directions, read and write at arbitrary positions and
+ * transfer data from and to other channels.
+ *
+ *
+ * The methods follow the contract of the methods with the same name in
+ * [FileChannel]. [transferTo] and [transferFrom] move the data in large
+ * buffers which are aligned to the clusters of the file, so every request to
+ * the device covers whole clusters.
+ *
+ *
+ * All methods can be called from several threads, the channel is locked
+ * while an operation is in progress. Closing the channel closes the file.
+ *
+ * @param file The file, must not be a directory.
+ * @param chunkSize The cluster size of the file system, see
+ * [FileSystem.chunkSize].
+ * @param transferSize The size of the buffer used by [transferTo] and
+ * [transferFrom], it is rounded down to a multiple of the chunk size.
+ */
+class UsbFileChannel @JvmOverloads constructor(
+        private val file: UsbFile,
+        private val chunkSize: Int,
+        transferSize: Int = DEFAULT_TRANSFER_SIZE
+) : ByteChannel {
+
+    private val transferSize: Int
+    private val lock = ReentrantLock()
+    private var position: Long = 0
+    private var open = true
+    private var transferBuffer: ByteBuffer? = null
+
+    init {
+        if (file.isDirectory) {
+            throw UnsupportedOperationException("UsbFileChannel cannot be created on directory!")
+        }
+        require(chunkSize > 0) { "chunkSize must be positive" }
+        require(transferSize > 0) { "transferSize must be positive" }
+
+        this.transferSize = Math.max(1, transferSize / chunkSize) * chunkSize
+    }
+
+    override fun isOpen() = lock.withLock { open }
+
+    @Throws(IOException::class)
+    override fun close() {
+        lock.withLock {
+            if (!open) {
+                return
+            }
+            open = false
+            transferBuffer = null
+            file.close()
+        }
+    }
+
+    /**
+     * Returns the current position in the file.
+     */
+    @Throws(IOException::class)
+    fun position(): Long = locked { position }
+
+    /**
+     * Sets the position in the file. Setting it beyond the end is allowed,
+     * reading then returns -1 and writing grows the file.
+     *
+     * @param newPosition The new position.
+     * @return This channel.
+     */
+    @Throws(IOException::class)
+    fun position(newPosition: Long): UsbFileChannel {
+        require(newPosition >= 0) { "newPosition must not be negative" }
+        locked { position = newPosition }
+        return this
+    }
+
+    /**
+     * Returns the current length of the file.
+     */
+    @Throws(IOException::class)
+    fun size(): Long = locked { file.length }
+
+    /**
+     * Truncates the file to the given size. Nothing happens if the file is
+     * already smaller. The position is moved to the new end if it is
+     * behind it.
+     *
+     * @param size The new size.
+     * @return This channel.
+     */
+    @Throws(IOException::class)
+    fun truncate(size: Long): UsbFileChannel {
+        require(size >= 0) { "size must not be negative" }
+        locked {
+            if (size < file.length) {
+                file.length = size
+            }
+            if (position > size) {
+                position = size
+            }
+        }
+        return this
+    }
+
+    /**
+     * Writes all changes of the file to the device, see [UsbFile.flush].
+     *
+     * @param metaData Ignored, the directory entry is always written.
+     */
+    @Throws(IOException::class)
+    fun force(@Suppress("UNUSED_PARAMETER") metaData: Boolean) {
+        locked { file.flush() }
+    }
+
+    @Throws(IOException::class)
+    override fun read(dst: ByteBuffer): Int = locked {
+        readAt(dst, position).also {
+            if (it > 0) {
+                position += it
+            }
+        }
+    }
+
+    /**
+     * Reads from the given position without changing the position of the
+     * channel.
+     *
+     * @return The number of bytes read or -1 if the position is at or behind
+     * the end of the file.
+     */
+    @Throws(IOException::class)
+    fun read(dst: ByteBuffer, position: Long): Int {
+        require(position >= 0) { "position must not be negative" }
+        return locked { readAt(dst, position) }
+    }
+
+    @Throws(IOException::class)
+    override fun write(src: ByteBuffer): Int = locked {
+        writeAt(src, position).also { position += it }
+    }
+
+    /**
+     * Writes at the given position without changing the position of the
+     * channel. The file grows if necessary.
+     *
+     * @return The number of bytes written.
+     */
+    @Throws(IOException::class)
+    fun write(src: ByteBuffer, position: Long): Int {
+        require(position >= 0) { "position must not be negative" }
+        return locked { writeAt(src, position) }
+    }
+
+    /**
+     * Transfers up to count bytes starting at position to the target channel
+     * without changing the position of this channel. Stops early if the end
+     * of the file is reached or a non-blocking target does not accept more
+     * bytes.
+     *
+     * @return The number of bytes written to the target.
+     */
+    @Throws(IOException::class)
+    fun transferTo(position: Long, count: Long, target: WritableByteChannel): Long {
+        require(position >= 0) { "position must not be negative" }
+        require(count >= 0) { "count must not be negative" }
+
+        return locked {
+            val buffer = transferBuffer()
+            val end = Math.min(file.length, endOf(position, count))
+            var current = position
+
+            transfer@ while (current < end) {
+                buffer.clear()
+                buffer.limit(alignedLength(current, end - current))
+                file.read(current, buffer)
+                buffer.flip()
+
+                while (buffer.hasRemaining()) {
+                    val written = target.write(buffer)
+                    current += written
+                    if (written == 0) {
+                        break@transfer
+                    }
+                }
+            }
+
+            current - position
+        }
+    }
+
+    /**
+     * Transfers up to count bytes from the source channel to this file,
+     * starting at position, without changing the position of this channel.
+     * Nothing is transferred if position is behind the end of the file.
+     *
+     *
+     * If the source is a [FileChannel], the file is grown to its final size
+     * up front, so the clusters are allocated with a single change of the
+     * FAT. If less is transferred, because the source ends early or
+     * throws, the file is shrunk again to the transferred part.
+     *
+     * @return The number of bytes read from the source and written to this
+     * file.
+     */
+    @Throws(IOException::class)
+    fun transferFrom(src: ReadableByteChannel, position: Long, count: Long): Long {
+        require(position >= 0) { "position must not be negative" }
+        require(count >= 0) { "count must not be negative" }
+
+        return locked {
+            val length = file.length
+            if (position > length) {
+                return@locked 0L
+            }
+
+            var expectedEnd = position
+            if (src is FileChannel) {
+                expectedEnd += Math.min(count, Math.max(0, src.size() - src.position()))
+                if (expectedEnd > length) {
+                    file.length = expectedEnd
+                }
+            }
+
+            val buffer = transferBuffer()
+            val end = endOf(position, count)
+            var current = position
+            var endOfSource = false
+
+            try {
+                while (current < end && !endOfSource) {
+                    buffer.clear()
+                    buffer.limit(alignedLength(current, end - current))
+                    while (buffer.hasRemaining()) {
+                        val read = src.read(buffer)
+                        if (read <= 0) {
+                            endOfSource = true
+                            break
+                        }
+                    }
+                    buffer.flip()
+                    val read = buffer.remaining()
+                    if (read > 0) {
+                        file.write(current, buffer)
+                        current += read
+                    }
+                }
+            } finally {
+                // the source was shorter than announced or failed, do not
+                // leave the grown part with stale data behind
+                if (expectedEnd > length && current < expectedEnd) {
+                    file.length = Math.max(length, current)
+                }
+            }
+
+            current - position
+        }
+    }
+
+    private inline fun <T> locked(block: () -> T): T {
+        lock.withLock {
+            if (!open) {
+                throw ClosedChannelException()
+            }
+            return block()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun readAt(dst: ByteBuffer, position: Long): Int {
+        val available = file.length - position
+        if (available <= 0) {
+            return if (dst.hasRemaining()) -1 else 0
+        }
+
+        val count = Math.min(dst.remaining().toLong(), available).toInt()
+        val limit = dst.limit()
+        dst.limit(dst.position() + count)
+        try {
+            file.read(position, dst)
+        } finally {
+            dst.limit(limit)
+        }
+        return count
+    }
+
+    @Throws(IOException::class)
+    private fun writeAt(src: ByteBuffer, position: Long): Int {
+        val count = src.remaining()
+        if (count > 0) {
+            file.write(position, src)
+        }
+        return count
+    }
+
+    private fun endOf(position: Long, count: Long): Long {
+        // count is often Long.MAX_VALUE to transfer everything
+        return if (count > Long.MAX_VALUE - position) Long.MAX_VALUE else position + count
+    }
+
+    /**
+     * Returns how many bytes to transfer at once, so that the transfer
+     * after this one starts at the beginning of a cluster.
+     */
+    private fun alignedLength(position: Long, remaining: Long): Int {
+        val length = transferSize - (position % chunkSize).toInt()
+        return Math.min(remaining, length.toLong()).toInt()
+    }
+
+    private fun transferBuffer(): ByteBuffer {
+        return transferBuffer ?: ByteBuffer.allocate(transferSize).also { transferBuffer = it }
+    }
+
+    companion object {
+        /**
+         * Default size of the buffer used for transfers.
+         */
+        const val DEFAULT_TRANSFER_SIZE = 512 * 1024
+    }
+}
@@ -17,100 +17,186 @@
 
 package me.jahnen.libaums.core.fs
 
-import android.util.Log
-
 import java.io.IOException
 import java.io.InputStream
 import java.nio.ByteBuffer
 
 /**
  * UsbFileInputStream provides common InputStream access to a UsbFile.
+ *
+ *
+ * Small reads are served from an internal buffer. The buffer is always
+ * filled up to the end of a cluster, so every read from the file covers
+ * whole clusters. While the file is read sequentially, the number of bytes
+ * read ahead is doubled on every refill up to [maxReadahead]. Skipping
+ * behind the buffer starts again with a single cluster. Reads which are at
+ * least as large as the current readahead bypass the buffer and go to the
+ * file directly.
+ *
+ * @param file The file, must not be a directory.
+ * @param chunkSize The cluster size of the file system, see
+ * [FileSystem.chunkSize].
+ * @param maxReadahead The maximum number of bytes read ahead, it is rounded
+ * down to a multiple of the chunk size.
  */
-class UsbFileInputStream(private val file: UsbFile) : InputStream() {
+class UsbFileInputStream @JvmOverloads constructor(
+        private val file: UsbFile,
+        private val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+        maxReadahead: Int = DEFAULT_MAX_READAHEAD
+) : InputStream() {
+    private val maxReadahead: Int
+    /**
+     * Offset in the file of the next byte returned.
+     */
     private var currentByteOffset: Long = 0
+    /**
+     * Holds the bytes from [currentByteOffset] on between its position and
+     * its limit, allocated on the first read.
+     */
+    private var buffer: ByteBuffer? = null
+    private var readahead: Int
 
     init {
 
         if (file.isDirectory) {
             throw UnsupportedOperationException("UsbFileInputStream cannot be created on directory!")
         }
+        require(chunkSize > 0) { "chunkSize must be positive" }
+        require(maxReadahead > 0) { "maxReadahead must be positive" }
+
+        this.maxReadahead = Math.max(1, maxReadahead / chunkSize) * chunkSize
+        readahead = chunkSize
     }
 
+    /**
+     * Returns the number of bytes until the end of the file, like
+     * [java.io.FileInputStream.available].
+     */
     @Throws(IOException::class)
     override fun available(): Int {
-        Log.d(TAG, "available")
-        // return 0, because we always block
-        return 0
+        return Math.min(Int.MAX_VALUE.toLong(), Math.max(0, file.length - currentByteOffset)).toInt()
     }
 
     @Throws(IOException::class)
     override fun read(): Int {
+        val buffer = buffer
+        if (buffer != null && buffer.hasRemaining()) {
+            currentByteOffset++
+            return buffer.get().toInt() and 0xff
+        }
 
         if (currentByteOffset >= file.length) {
             return -1
         }
 
-        val buffer = ByteBuffer.allocate(512)
-        buffer.limit(1)
-        file.read(currentByteOffset, buffer)
+        val refilled = fill()
         currentByteOffset++
-        buffer.flip()
-        return buffer.get().toInt()
+        return refilled.get().toInt() and 0xff
     }
 
     @Throws(IOException::class)
     override fun close() {
+        buffer = null
         file.close()
     }
 
     @Throws(IOException::class)
     override fun read(buffer: ByteArray): Int {
-
-        if (currentByteOffset >= file.length) {
-            return -1
-        }
-
-        val length = file.length
-        val toRead = Math.min(buffer.size.toLong(), length - currentByteOffset)
-
-        val byteBuffer = ByteBuffer.wrap(buffer)
-        byteBuffer.limit(toRead.toInt())
-
-        file.read(currentByteOffset, byteBuffer)
-        currentByteOffset += toRead
-
-        return toRead.toInt()
+        return read(buffer, 0, buffer.size)
     }
 
     @Throws(IOException::class)
     override fun read(buffer: ByteArray, byteOffset: Int, byteCount: Int): Int {
-
-        if (currentByteOffset >= file.length) {
-            return -1
+        if (byteOffset < 0 || byteCount < 0 || byteCount > buffer.size - byteOffset) {
+            throw IndexOutOfBoundsException()
         }
 
+        if (byteCount == 0) {
+            return 0
+        }
         val length = file.length
-        val toRead = Math.min(byteCount.toLong(), length - currentByteOffset)
-
-        val byteBuffer = ByteBuffer.wrap(buffer)
-        byteBuffer.position(byteOffset)
-        byteBuffer.limit(toRead.toInt() + byteOffset)
+        if (currentByteOffset >= length) {
+            return -1
+        }
 
-        file.read(currentByteOffset, byteBuffer)
-        currentByteOffset += toRead
+        val toRead = Math.min(byteCount.toLong(), length - currentByteOffset).toInt()
+        var read = 0
+        while (read < toRead) {
+            val missing = toRead - read
+            var buffered = this.buffer
+            if (buffered == null || !buffered.hasRemaining()) {
+                if (missing >= readahead) {
+                    // large enough to go to the file directly without copying
+                    file.read(currentByteOffset, ByteBuffer.wrap(buffer, byteOffset + read, missing))
+                    currentByteOffset += missing
+                    growReadahead()
+                    return toRead
+                }
+                buffered = fill()
+            }
+
+            val count = Math.min(missing, buffered.remaining())
+            buffered.get(buffer, byteOffset + read, count)
+            currentByteOffset += count
+            read += count
+        }
 
-        return toRead.toInt()
+        return read
     }
 
     @Throws(IOException::class)
     override fun skip(byteCount: Long): Long {
-        val skippedBytes = Math.min(byteCount, file.length - currentByteOffset)
+        val skippedBytes = Math.max(0, Math.min(byteCount, file.length - currentByteOffset))
+        val buffer = buffer
+        if (buffer != null && skippedBytes <= buffer.remaining()) {
+            buffer.position(buffer.position() + skippedBytes.toInt())
+        } else {
+            buffer?.limit(0)
+            readahead = chunkSize
+        }
         currentByteOffset += skippedBytes
         return skippedBytes
     }
 
-    companion object {
+    /**
+     * Refills the empty buffer at [currentByteOffset] up to the end of a
+     * cluster and grows the readahead for the next refill.
+     */
+    @Throws(IOException::class)
+    private fun fill(): ByteBuffer {
+        val aligned = readahead - (currentByteOffset % chunkSize).toInt()
+        val count = Math.min(aligned.toLong(), file.length - currentByteOffset).toInt()
+
+        val current = buffer
+        val buffer = if (current == null || current.capacity() < count) {
+            // small files do not need the whole readahead
+            val size = Math.min(maxReadahead.toLong(), roundUp(file.length)).toInt()
+            ByteBuffer.allocate(Math.max(size, count)).also { buffer = it }
+        } else current
+
+        buffer.clear()
+        buffer.limit(count)
+        file.read(currentByteOffset, buffer)
+        buffer.position(0)
+
+        growReadahead()
+        return buffer
+    }
 
-        private val TAG = UsbFileInputStream::class.java.simpleName
+    private fun roundUp(length: Long) = (length + chunkSize - 1) / chunkSize * chunkSize
+
+    private fun growReadahead() {
+        readahead = Math.min(maxReadahead, readahead * 2)
+    }
+
+    companion object {
+        /**
+         * Used as chunk size if the file system is not known.
+         */
+        const val DEFAULT_CHUNK_SIZE = 4096
+        /**
+         * Default for the maximum number of bytes read ahead.
+         */
+        const val DEFAULT_MAX_READAHEAD = 128 * 1024
     }
 }
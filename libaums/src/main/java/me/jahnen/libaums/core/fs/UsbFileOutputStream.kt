@@ -19,61 +19,340 @@
 package me.jahnen.libaums.core.fs
 
 import java.io.IOException
+import java.io.InterruptedIOException
 import java.io.OutputStream
 import java.nio.ByteBuffer
+import java.util.concurrent.ExecutionException
 
 /**
  * UsbFileOutputStream provides common OutputStream access to a UsbFile.
+ *
+ *
+ * Writes are gathered in a buffer which is written to the file once it is
+ * full, [flush] or [close] is called. Every buffer ends at a cluster
+ * boundary, so the device is always written in whole clusters. From the
+ * second buffer on, the file is grown by [Options.allocationStep] bytes at a
+ * time instead of cluster by cluster; [flush] and [close] give back what has
+ * not been used.
+ *
+ *
+ * With [Options.writeBehind] full buffers are handed to the I/O queue of the
+ * device, see [UsbFile.writeAsync], and the caller continues with a second
+ * buffer meanwhile. A failed write is then thrown by the next call to
+ * write, [flush] or [close]. After a failure every further call throws the
+ * same exception, only [close] still closes the file.
+ *
+ * @param file The file, must not be a directory.
+ * @param append True to start writing at the end of the file.
+ * @param options Buffer sizes and whether to write in the background.
  */
-class UsbFileOutputStream @JvmOverloads constructor(private val file: UsbFile, append: Boolean = false) : OutputStream() {
-    private var currentByteOffset: Long = 0
+class UsbFileOutputStream @JvmOverloads constructor(
+        private val file: UsbFile,
+        append: Boolean = false,
+        private val options: Options = Options.DEFAULT
+) : OutputStream() {
+
+    /**
+     * Options of the stream.
+     *
+     * @property chunkSize The cluster size of the file system, see
+     * [FileSystem.chunkSize].
+     * @property bufferSize The size of the buffer, it is rounded down to a
+     * multiple of the chunk size.
+     * @property allocationStep The number of bytes the file is grown by at
+     * once.
+     * @property writeBehind True to write full buffers in the background.
+     */
+    data class Options @JvmOverloads constructor(
+            val chunkSize: Int = DEFAULT_CHUNK_SIZE,
+            val bufferSize: Int = DEFAULT_BUFFER_SIZE,
+            val allocationStep: Int = DEFAULT_ALLOCATION_STEP,
+            val writeBehind: Boolean = false
+    ) {
+
+        init {
+            require(chunkSize > 0) { "chunkSize must be positive" }
+            require(bufferSize > 0) { "bufferSize must be positive" }
+            require(allocationStep > 0) { "allocationStep must be positive" }
+        }
+
+        companion object {
+            /**
+             * The options used if none are given.
+             */
+            @JvmField
+            val DEFAULT = Options()
+        }
+    }
+
+    private val chunkSize = options.chunkSize
+    private val bufferSize = Math.max(1, options.bufferSize / chunkSize) * chunkSize
+    private val initialLength: Long
+    private val startOffset: Long
+    /**
+     * Offset in the file of the next byte written.
+     */
+    private var currentByteOffset: Long
+    /**
+     * Offset in the file of the first byte in [buffer].
+     */
+    private var bufferOffset: Long
+    /**
+     * The length the file has been grown to.
+     */
+    private var allocatedLength: Long
+    private var buffer: ByteBuffer? = null
+    /**
+     * The buffer being written in the background, only used with
+     * [Options.writeBehind].
+     */
+    private var spare: ByteBuffer? = null
+    private var pending: IoFuture<Unit>? = null
+    private var failure: IOException? = null
+    private var closed = false
 
     init {
         if (file.isDirectory) {
             throw UnsupportedOperationException("UsbFileOutputStream cannot be created on directory!")
         }
 
-        if (append) {
-            currentByteOffset = file.length
-        }
+        initialLength = file.length
+        startOffset = if (append) initialLength else 0
+        currentByteOffset = startOffset
+        bufferOffset = startOffset
+        allocatedLength = initialLength
     }
 
     @Throws(IOException::class)
     override fun write(oneByte: Int) {
-        val byteBuffer = ByteBuffer.wrap(byteArrayOf(oneByte.toByte()))
-        file.write(currentByteOffset, byteBuffer)
-
+        val buffer = buffer()
+        buffer.put(oneByte.toByte())
         currentByteOffset++
+        if (!buffer.hasRemaining()) {
+            writeBuffer()
+        }
     }
 
     @Throws(IOException::class)
     override fun close() {
-        file.length = currentByteOffset
+        if (closed) {
+            return
+        }
+        closed = true
+
+        try {
+            failure?.let { throw it }
+            writeBuffer()
+            awaitPending()
+            file.length = currentByteOffset
+        } catch (e: IOException) {
+            release()
+            try {
+                file.close()
+            } catch (ignored: IOException) {
+                // the first failure is more interesting
+            }
+            throw e
+        }
+
+        release()
         file.close()
     }
 
     @Throws(IOException::class)
     override fun flush() {
+        checkState()
+        writeBuffer()
+        awaitPending()
+
+        // give back what has been allocated in advance
+        val length = Math.max(currentByteOffset, initialLength)
+        if (allocatedLength > length) {
+            file.length = length
+            allocatedLength = length
+        }
         file.flush()
     }
 
     @Throws(IOException::class)
     override fun write(buffer: ByteArray) {
-        val byteBuffer = ByteBuffer.wrap(buffer)
-        file.write(currentByteOffset, byteBuffer)
-
-        currentByteOffset += buffer.size.toLong()
+        write(buffer, 0, buffer.size)
     }
 
     @Throws(IOException::class)
     override fun write(buffer: ByteArray, offset: Int, count: Int) {
-        val byteBuffer = ByteBuffer.wrap(buffer)
+        if (offset < 0 || count < 0 || count > buffer.size - offset) {
+            throw IndexOutOfBoundsException()
+        }
+
+        var position = offset
+        var remaining = count
+        while (remaining > 0) {
+            val current = buffer()
+            val written: Int
+            if (current.position() == 0 && remaining >= current.limit()) {
+                // large writes go to the file directly, as far as they end at a cluster boundary
+                written = current.limit() + (remaining - current.limit()) / chunkSize * chunkSize
+                awaitPending()
+                writeToFile(ByteBuffer.wrap(buffer, position, written))
+                current.limit(alignedLimit())
+            } else {
+                written = Math.min(remaining, current.remaining())
+                current.put(buffer, position, written)
+                currentByteOffset += written
+                if (!current.hasRemaining()) {
+                    writeBuffer()
+                }
+            }
+            position += written
+            remaining -= written
+        }
+    }
+
+    /**
+     * Returns the buffer, allocating it on first use, after checking that
+     * the stream is still usable.
+     */
+    @Throws(IOException::class)
+    private fun buffer(): ByteBuffer {
+        checkState()
+        return buffer ?: ByteBuffer.allocate(bufferSize).also {
+            it.limit(alignedLimit())
+            buffer = it
+        }
+    }
+
+    /**
+     * Throws if the stream has been closed or a write failed, including a
+     * background write which has finished in the meantime.
+     */
+    @Throws(IOException::class)
+    private fun checkState() {
+        if (closed) {
+            throw IOException("Stream is closed")
+        }
+        failure?.let { throw it }
+        if (pending?.isDone == true) {
+            awaitPending()
+        }
+    }
 
-        byteBuffer.position(offset)
-        byteBuffer.limit(count + offset)
+    /**
+     * Writes the contents of the buffer to the file, in the background if
+     * [Options.writeBehind] is set.
+     */
+    @Throws(IOException::class)
+    private fun writeBuffer() {
+        val buffer = buffer ?: return
+        if (buffer.position() == 0) {
+            return
+        }
+        buffer.flip()
 
-        file.write(currentByteOffset, byteBuffer)
+        if (options.writeBehind) {
+            // the spare buffer can only be used once its write has finished
+            awaitPending()
+            val count = buffer.remaining()
+            allocate(bufferOffset + count)
+            pending = file.writeAsync(bufferOffset, buffer)
+            bufferOffset += count
+
+            val next = spare ?: ByteBuffer.allocate(bufferSize)
+            spare = buffer
+            this.buffer = next
+            next.clear()
+        } else {
+            writeToFile(buffer)
+            buffer.clear()
+        }
+        this.buffer!!.limit(alignedLimit())
+    }
+
+    /**
+     * Writes the data at [bufferOffset] and moves it behind the data.
+     */
+    @Throws(IOException::class)
+    private fun writeToFile(data: ByteBuffer) {
+        val count = data.remaining()
+        val end = bufferOffset + count
+        try {
+            allocate(end)
+            file.write(bufferOffset, data)
+        } catch (e: IOException) {
+            failure = e
+            throw e
+        }
+        bufferOffset = end
+        currentByteOffset = Math.max(currentByteOffset, end)
+    }
+
+    /**
+     * Grows the file in large steps once more than one buffer has been
+     * written. The first buffer is left to [UsbFile.write], so small files
+     * do not allocate more than they need.
+     */
+    @Throws(IOException::class)
+    private fun allocate(end: Long) {
+        if (end <= allocatedLength) {
+            return
+        }
+
+        if (bufferOffset == startOffset) {
+            allocatedLength = end
+            return
+        }
+
+        val length = Math.max(end, allocatedLength + options.allocationStep)
+        allocatedLength = (length + chunkSize - 1) / chunkSize * chunkSize
+        file.length = allocatedLength
+    }
+
+    /**
+     * Waits for the background write, if any, and throws its exception.
+     */
+    @Throws(IOException::class)
+    private fun awaitPending() {
+        val pending = pending ?: return
+        try {
+            pending.get()
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Interrupted while waiting for the write")
+        } catch (e: ExecutionException) {
+            val cause = e.cause
+            val exception = cause as? IOException ?: IOException(cause)
+            failure = exception
+            throw exception
+        } finally {
+            if (pending.isDone) {
+                this.pending = null
+            }
+        }
+    }
+
+    /**
+     * Returns the limit for a buffer starting at [bufferOffset], so that
+     * it ends at a cluster boundary.
+     */
+    private fun alignedLimit() = bufferSize - (bufferOffset % chunkSize).toInt()
+
+    private fun release() {
+        buffer = null
+        spare = null
+    }
 
-        currentByteOffset += count.toLong()
+    companion object {
+        /**
+         * Used as chunk size if the file system is not known.
+         */
+        const val DEFAULT_CHUNK_SIZE = 4096
+        /**
+         * Default size of the buffer.
+         */
+        const val DEFAULT_BUFFER_SIZE = 64 * 1024
+        /**
+         * Default number of bytes the file is grown by at once.
+         */
+        const val DEFAULT_ALLOCATION_STEP = 1024 * 1024
     }
 }
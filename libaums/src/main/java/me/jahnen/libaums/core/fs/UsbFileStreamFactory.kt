@@ -9,13 +9,54 @@ import java.io.BufferedOutputStream
 
 object UsbFileStreamFactory {
 
+    /**
+     * Creates an output stream for the file which writes whole clusters.
+     *
+     * [UsbFileOutputStream] buffers writes itself, so the returned stream
+     * only keeps a single byte and hands everything else on directly. It is
+     * kept for compatibility, new code can use [createOutputStream].
+     */
     @JvmStatic
     fun createBufferedOutputStream(file: UsbFile, fs: FileSystem): BufferedOutputStream {
-        return BufferedOutputStream(UsbFileOutputStream(file), fs.chunkSize)
+        return BufferedOutputStream(createOutputStream(file, fs), 1)
     }
 
+    /**
+     * Creates an input stream for the file which reads whole clusters.
+     *
+     * [UsbFileInputStream] buffers and reads ahead itself, so the returned
+     * stream only keeps a single byte and hands larger reads on directly. It
+     * is kept for compatibility, new code can use [createInputStream].
+     */
     @JvmStatic
     fun createBufferedInputStream(file: UsbFile, fs: FileSystem): BufferedInputStream {
-        return BufferedInputStream(UsbFileInputStream(file), fs.chunkSize)
+        return BufferedInputStream(createInputStream(file, fs), 1)
+    }
+
+    /**
+     * Creates an output stream for the file which buffers writes itself and
+     * writes them in chunks of [FileSystem.chunkSize] bytes.
+     */
+    @JvmStatic
+    fun createOutputStream(file: UsbFile, fs: FileSystem): UsbFileOutputStream {
+        return UsbFileOutputStream(file, false, UsbFileOutputStream.Options(fs.chunkSize))
+    }
+
+    /**
+     * Creates an input stream for the file which buffers reads itself and
+     * reads in chunks of [FileSystem.chunkSize] bytes.
+     */
+    @JvmStatic
+    fun createInputStream(file: UsbFile, fs: FileSystem): UsbFileInputStream {
+        return UsbFileInputStream(file, fs.chunkSize)
+    }
+
+    /**
+     * Creates a channel for the file which reads and writes in chunks of
+     * [FileSystem.chunkSize] bytes. Closing the channel also closes the file.
+     */
+    @JvmStatic
+    fun createChannel(file: UsbFile, fs: FileSystem): UsbFileChannel {
+        return UsbFileChannel(file, fs.chunkSize)
     }
 }
@@ -0,0 +1,49 @@
+@file:JvmName("UsbFileSuspending")
+
+package me.jahnen.libaums.core.fs
+
+import me.jahnen.libaums.core.util.call
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+
+/*
+ * Suspending variants of the blocking UsbFile methods. The blocking call
+ * runs on the given executor, the calling coroutine is suspended meanwhile
+ * and does not occupy a thread. With kotlinx.coroutines
+ * `Dispatchers.IO.asExecutor()` can be passed, on the JVM an executor
+ * starting a virtual thread per task works as well.
+ */
+
+/**
+ * @see UsbFile.read
+ */
+suspend fun UsbFile.readSuspending(offset: Long, destination: ByteBuffer, executor: Executor) =
+        executor.call { read(offset, destination) }
+
+/**
+ * @see UsbFile.write
+ */
+suspend fun UsbFile.writeSuspending(offset: Long, source: ByteBuffer, executor: Executor) =
+        executor.call { write(offset, source) }
+
+/**
+ * @see UsbFile.flush
+ */
+suspend fun UsbFile.flushSuspending(executor: Executor) = executor.call { flush() }
+
+/**
+ * @see UsbFile.close
+ */
+suspend fun UsbFile.closeSuspending(executor: Executor) = executor.call { close() }
+
+/**
+ * @see UsbFile.listFiles
+ */
+suspend fun UsbFile.listFilesSuspending(executor: Executor): Array<UsbFile> =
+        executor.call { listFiles() }
+
+/**
+ * @see UsbFile.search
+ */
+suspend fun UsbFile.searchSuspending(path: String, executor: Executor): UsbFile? =
+        executor.call { search(path) }
@@ -29,6 +29,12 @@ import kotlin.math.min
  * [write][.write] to it easily without having to worry
  * about the specific clusters.
  *
+ *
+ * The clusters are kept in an array which is replaced, but never changed,
+ * when the chain grows or shrinks. Reading uses the array which is current
+ * when the read starts and needs no lock. Changing the length or writing has
+ * to be serialized by the owner of the chain.
+ *
  * @author mjahnen
  */
 internal class ClusterChain
@@ -43,11 +49,14 @@ internal class ClusterChain
  * The file allocation table.
  * @param bootSector
  * The boot sector of the FAT32 fs.
+ * @param maxClustersPerWrite
+ * The maximum number of consecutive clusters written at once.
  * @throws IOException
  */
 @Throws(IOException::class)
 internal constructor(startCluster: Long, private val blockDevice: BlockDeviceDriver, private val fat: FAT,
-                     bootSector: Fat32BootSector) {
+                     bootSector: Fat32BootSector, private val maxClustersPerWrite: Int) {
+    @Volatile
     private var chain: Array<Long>
     private val clusterSize: Long
     private val dataAreaOffset: Long
@@ -108,6 +117,19 @@ internal constructor(startCluster: Long, private val blockDevice: BlockDeviceDri
         Log.d(TAG, "Finished init of a cluster chain")
     }
 
+    /**
+     * Returns the clusters of the chain and empties the chain without
+     * changing the FAT. The caller is responsible for freeing the returned
+     * clusters, see [FAT.freeChains].
+     *
+     * @return The clusters of the chain.
+     */
+    internal fun detach(): Array<Long> {
+        val clusters = chain
+        chain = arrayOf()
+        return clusters
+    }
+
     /**
      * Reads from the cluster chain at the given offset into the given buffer.
      * This method automatically searches for following clusters in the chain
@@ -123,6 +145,7 @@ internal constructor(startCluster: Long, private val blockDevice: BlockDeviceDri
      */
      @Throws(IOException::class)
     internal fun read(offset: Long, dest: ByteBuffer) {
+        val chain = this.chain
         var length = dest.remaining()
 
         var chainIndex = (offset / clusterSize).toInt()
@@ -173,6 +196,7 @@ internal constructor(startCluster: Long, private val blockDevice: BlockDeviceDri
      */
      @Throws(IOException::class)
     internal fun write(offset: Long, source: ByteBuffer) {
+        val chain = this.chain
         var length = source.remaining()
 
         var chainIndex = (offset / clusterSize).toInt()
@@ -211,8 +235,8 @@ internal constructor(startCluster: Long, private val blockDevice: BlockDeviceDri
                 }
             }
             // we write multiple clusters at a time, to speed up the write performance enormously
-            // currently only 4 or fewer clusters are written at the same time. Set this value too high may cause problems
-            maxConsecutiveClusters = min(maxConsecutiveClusters, 4)
+            // by default only 4 or fewer clusters are written at the same time. Set this value too high may cause problems
+            maxConsecutiveClusters = min(maxConsecutiveClusters, maxClustersPerWrite)
             when {
                 remainingClusters > maxConsecutiveClusters -> {
                     size = (clusterSize * maxConsecutiveClusters).toInt()
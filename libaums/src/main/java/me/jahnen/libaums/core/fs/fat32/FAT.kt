@@ -19,11 +19,14 @@ package me.jahnen.libaums.core.fs.fat32
 
 import android.util.Log
 import me.jahnen.libaums.core.driver.BlockDeviceDriver
+import me.jahnen.libaums.core.fs.MountOptions
 import me.jahnen.libaums.core.util.LRUCache
 import java.io.IOException
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
  * This class represents the File Allocation Table (FAT) in a FAT32 file system.
@@ -39,6 +42,13 @@ import java.util.*
  *
  * For more information you should refer to the official documentation of FAT32.
  *
+ *
+ * Allocating and freeing clusters is serialized by one lock, which also
+ * protects the [FsInfoStructure]. Following a chain does not take that lock,
+ * because the returned arrays are never changed, allocating or freeing
+ * clusters always creates a new array. Only the owner of a chain changes it,
+ * see [ClusterChain].
+ *
  * @author mjahnen
  */
 class FAT
@@ -52,12 +62,28 @@ class FAT
  * @param fsInfoStructure
  * The info structure where the last allocated block and the free
  * clusters are saved.
+ * @param options
+ * The options for the cache size, the number of blocks accessed at once
+ * and where to search for free clusters.
  */
 internal constructor(private val blockDevice: BlockDeviceDriver, bootSector: Fat32BootSector,
-                                   private val fsInfoStructure: FsInfoStructure) {
+                                   private val fsInfoStructure: FsInfoStructure,
+                                   options: MountOptions) {
     private val fatOffset: LongArray
     private var fatNumbers: IntArray
-    private val cache = LRUCache<Long, Array<Long>>(64)
+    /**
+     * Chains by start cluster, access is synchronized on the cache itself.
+     */
+    private val cache = LRUCache<Long, Array<Long>>(options.fatCacheSize)
+    /**
+     * Held while allocating or freeing clusters.
+     */
+    private val allocationLock = ReentrantLock()
+    /**
+     * Number of bytes read or written at once.
+     */
+    private val bufferSize = blockDevice.blockSize * options.fatWindowBlocks
+    private val allocationPolicy = options.allocationPolicy
 
     init {
         if (!bootSector.isFatMirrored) {
@@ -97,15 +123,14 @@ internal constructor(private val blockDevice: BlockDeviceDriver, bootSector: Fat
             return arrayOf()
         }
 
-        val cachedChain = cache[startCluster]
+        val cachedChain = synchronized(cache) { cache[startCluster] }
         if (cachedChain != null) {
             return cachedChain
         }
 
         val result = ArrayList<Long>()
-        val bufferSize = blockDevice.blockSize * 2
-        // for performance reasons we always read or write two times the block
-        // size
+        // for performance reasons we always read or write several blocks
+        // (two by default)
         // this is esp. good for long cluster chains because it reduces of read
         // or writes
         // and mostly cluster chains are located consecutively in the FAT
@@ -133,11 +158,44 @@ internal constructor(private val blockDevice: BlockDeviceDriver, bootSector: Fat
         } while (currentCluster < FAT32_EOF_CLUSTER)
 
         val arr = result.toTypedArray()
-        cache[startCluster] = arr
+        synchronized(cache) { cache[startCluster] = arr }
 
         return arr
     }
 
+    /**
+     * Returns the cluster after which the search for free clusters starts,
+     * depending on the [MountOptions.AllocationPolicy].
+     */
+    private fun searchStart(): Long {
+        val lastAllocated = fsInfoStructure.lastAllocatedClusterHint
+        return if (allocationPolicy == MountOptions.AllocationPolicy.FIRST_FIT ||
+                lastAllocated == FsInfoStructure.INVALID_VALUE.toLong()) {
+            // start from the beginning, the first data cluster is 2
+            1
+        } else {
+            lastAllocated
+        }
+    }
+
+    /**
+     * Writes a part of the FAT, which has been read from the given offset
+     * into the buffer and changed, back to the device.
+     *
+     * @param offset
+     * The offset of the part in bytes.
+     * @param buffer
+     * The part of the FAT.
+     * @throws IOException
+     * If writing fails.
+     */
+    @Throws(IOException::class)
+    private fun writeFat(offset: Long, buffer: ByteBuffer) {
+        // TODO we should write in in all FATs when they are mirrored!
+        buffer.clear()
+        blockDevice.write(offset, buffer)
+    }
+
     /**
      * This methods searches for free clusters in the chain and then assigns it
      * to the existing chain which is given at a parameter. The current chain
@@ -155,121 +213,176 @@ internal constructor(private val blockDevice: BlockDeviceDriver, bootSector: Fat
      */
     @Throws(IOException::class)
     internal fun alloc(chain: Array<Long>, numberOfClusters: Int): Array<Long> {
-        var numberOfClusters = numberOfClusters
+        allocationLock.withLock {
+            var numberOfClusters = numberOfClusters
+
+            // save original number of clusters for fs info structure
+            val originalNumberOfClusters = numberOfClusters
+
+            val result = ArrayList<Long>(chain.size + numberOfClusters)
+            result.addAll(Arrays.asList(*chain))
+            // for performance reasons we always read or write several blocks
+            // (two by default)
+            // this is esp. good for long cluster chains because it reduces of read
+            // or writes
+            // and mostly cluster chains are located consecutively in the FAT
+            val buffer = ByteBuffer.allocate(bufferSize)
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+            val cluster: Long = if (chain.isNotEmpty())
+                chain[chain.size - 1]
+            else
+                -1
+
+            var currentCluster = searchStart()
+
+            var offset: Long
+            var offsetInBlock: Long
+            var lastOffset: Long = -1
+
+            // first we search all needed cluster and save them
+            while (numberOfClusters > 0) {
+                currentCluster++
+                offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
+
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    buffer.clear()
+                    blockDevice.read(offset, buffer)
+                    lastOffset = offset
+                }
 
-        // save original number of clusters for fs info structure
-        val originalNumberOfClusters = numberOfClusters
+                if (buffer.getInt(offsetInBlock.toInt()) == 0) {
+                    result.add(currentCluster)
+                    numberOfClusters--
+                }
+            }
 
-        val result = ArrayList<Long>(chain.size + numberOfClusters)
-        result.addAll(Arrays.asList(*chain))
-        // for performance reasons we always read or write two times the block
-        // size
-        // this is esp. good for long cluster chains because it reduces of read
-        // or writes
-        // and mostly cluster chains are located consecutively in the FAT
-        val bufferSize = blockDevice.blockSize * 2
-        val buffer = ByteBuffer.allocate(bufferSize)
-        buffer.order(ByteOrder.LITTLE_ENDIAN)
+            if (cluster.toInt() != -1) {
+                // now it is time to write the partial cluster chain
+                // start with the last cluster in the existing chain
+                offset = (fatOffset[0] + cluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + cluster * 4) % bufferSize
 
-        val cluster: Long = if (chain.isNotEmpty())
-            chain[chain.size - 1]
-        else
-            -1
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    buffer.clear()
+                    blockDevice.read(offset, buffer)
+                    lastOffset = offset
+                }
+                buffer.putInt(offsetInBlock.toInt(), result[chain.size].toInt())
+            }
 
-        var lastAllocated = fsInfoStructure.lastAllocatedClusterHint
-        if (lastAllocated == FsInfoStructure.INVALID_VALUE.toLong()) {
-            // we have to start from the beginning because there is no hint!
-            lastAllocated = 2
-        }
+            // write the new allocated clusters now
+            for (i in chain.size until result.size - 1) {
+                currentCluster = result[i]
+                offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
 
-        var currentCluster = lastAllocated
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    writeFat(lastOffset, buffer)
+                    buffer.clear()
+                    blockDevice.read(offset, buffer)
+                    lastOffset = offset
+                }
 
-        var offset: Long
-        var offsetInBlock: Long
-        var lastOffset: Long = -1
+                buffer.putInt(offsetInBlock.toInt(), result[i + 1].toInt())
+            }
 
-        // first we search all needed cluster and save them
-        while (numberOfClusters > 0) {
-            currentCluster++
+            // write end mark to last newly allocated cluster now
+            currentCluster = result[result.size - 1]
             offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
             offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
 
             // if we have a new offset we are forced to read again
             if (lastOffset != offset) {
+                writeFat(lastOffset, buffer)
                 buffer.clear()
                 blockDevice.read(offset, buffer)
-                lastOffset = offset
+                //lastOffset = offset
             }
+            buffer.putInt(offsetInBlock.toInt(), FAT32_EOF_CLUSTER)
+            writeFat(offset, buffer)
 
-            if (buffer.getInt(offsetInBlock.toInt()) == 0) {
-                result.add(currentCluster)
-                numberOfClusters--
-            }
-        }
+            // refresh the info structure
+            fsInfoStructure.lastAllocatedClusterHint = currentCluster
+            fsInfoStructure.decreaseClusterCount(originalNumberOfClusters.toLong())
+            fsInfoStructure.write()
 
-        // TODO we should write in in all FATs when they are mirrored!
-        if (cluster.toInt() != -1) {
-            // now it is time to write the partial cluster chain
-            // start with the last cluster in the existing chain
-            offset = (fatOffset[0] + cluster * 4) / bufferSize * bufferSize
-            offsetInBlock = (fatOffset[0] + cluster * 4) % bufferSize
+            Log.i(TAG, "allocating clusters finished")
 
-            // if we have a new offset we are forced to read again
-            if (lastOffset != offset) {
-                buffer.clear()
-                blockDevice.read(offset, buffer)
-                lastOffset = offset
-            }
-            buffer.putInt(offsetInBlock.toInt(), result[chain.size].toInt())
-        }
+            val arr = result.toTypedArray()
 
-        // write the new allocated clusters now
-        for (i in chain.size until result.size - 1) {
-            currentCluster = result[i]
-            offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
-            offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
+            synchronized(cache) { cache[arr[0]] = arr }
 
-            // if we have a new offset we are forced to read again
-            if (lastOffset != offset) {
-                buffer.clear()
-                blockDevice.write(lastOffset, buffer)
-                buffer.clear()
-                blockDevice.read(offset, buffer)
-                lastOffset = offset
-            }
-
-            buffer.putInt(offsetInBlock.toInt(), result[i + 1].toInt())
+            return arr
         }
+    }
 
-        // write end mark to last newly allocated cluster now
-        currentCluster = result[result.size - 1]
-        offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
-        offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
-
-        // if we have a new offset we are forced to read again
-        if (lastOffset != offset) {
-            buffer.clear()
-            blockDevice.write(lastOffset, buffer)
-            buffer.clear()
-            blockDevice.read(offset, buffer)
-            //lastOffset = offset
-        }
-        buffer.putInt(offsetInBlock.toInt(), FAT32_EOF_CLUSTER)
-        buffer.clear()
-        blockDevice.write(offset, buffer)
+    /**
+     * Allocates the given number of completely new cluster chains, each
+     * consisting of one cluster. In contrast to calling [.alloc] for
+     * every chain, the FAT is only searched once and every block of the FAT
+     * and the fs info structure is only written once.
+     *
+     * @param numberOfChains
+     * The number of chains which shall be allocated.
+     * @return The start clusters of the new chains.
+     * @throws IOException
+     * If reading or writing to the FAT fails.
+     */
+    @Throws(IOException::class)
+    internal fun allocChains(numberOfChains: Int): Array<Long> {
+        allocationLock.withLock {
+            val result = ArrayList<Long>(numberOfChains)
+            val buffer = ByteBuffer.allocate(bufferSize)
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+            var currentCluster = searchStart()
+
+            var offset: Long
+            var offsetInBlock: Long
+            var lastOffset: Long = -1
+            var dirty = false
+
+            while (result.size < numberOfChains) {
+                currentCluster++
+                offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
+
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    if (dirty) {
+                        writeFat(lastOffset, buffer)
+                        dirty = false
+                    }
+                    buffer.clear()
+                    blockDevice.read(offset, buffer)
+                    lastOffset = offset
+                }
 
-        // refresh the info structure
-        fsInfoStructure.lastAllocatedClusterHint = currentCluster
-        fsInfoStructure.decreaseClusterCount(originalNumberOfClusters.toLong())
-        fsInfoStructure.write()
+                if (buffer.getInt(offsetInBlock.toInt()) == 0) {
+                    buffer.putInt(offsetInBlock.toInt(), FAT32_EOF_CLUSTER)
+                    dirty = true
+                    result.add(currentCluster)
+                }
+            }
 
-        Log.i(TAG, "allocating clusters finished")
+            if (dirty) {
+                writeFat(lastOffset, buffer)
+            }
 
-        val arr = result.toTypedArray()
+            // refresh the info structure
+            fsInfoStructure.lastAllocatedClusterHint = currentCluster
+            fsInfoStructure.decreaseClusterCount(numberOfChains.toLong())
+            fsInfoStructure.write()
 
-        cache[arr[0]] = arr
+            Log.i(TAG, "allocated $numberOfChains chains")
 
-        return arr
+            return result.toTypedArray()
+        }
     }
 
     /**
@@ -294,83 +407,151 @@ internal constructor(private val blockDevice: BlockDeviceDriver, bootSector: Fat
      */
     @Throws(IOException::class)
     internal fun free(chain: Array<Long>, numberOfClusters: Int): Array<Long> {
-        val offsetInChain = chain.size - numberOfClusters
-        // for performance reasons we always read or write two times the block
-        // size
-        // this is esp. good for long cluster chains because it reduces of read
-        // or writes
-        // and mostly cluster chains are located consecutively in the FAT
-        val bufferSize = blockDevice.blockSize * 2
-        val buffer = ByteBuffer.allocate(bufferSize)
-        buffer.order(ByteOrder.LITTLE_ENDIAN)
+        allocationLock.withLock {
+            val offsetInChain = chain.size - numberOfClusters
+            // for performance reasons we always read or write several blocks
+            // (two by default)
+            // this is esp. good for long cluster chains because it reduces of read
+            // or writes
+            // and mostly cluster chains are located consecutively in the FAT
+            val buffer = ByteBuffer.allocate(bufferSize)
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+            check(offsetInChain >= 0) { "trying to remove more clusters in chain than currently exist!" }
+
+            var currentCluster: Long
+
+            var offset: Long
+            var offsetInBlock: Long
+            var lastOffset: Long = -1
+
+            // free all unneeded clusters
+            for (i in offsetInChain until chain.size) {
+                currentCluster = chain[i]
+                offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
+
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    if (lastOffset.toInt() != -1) {
+                        writeFat(lastOffset, buffer)
+                    }
 
-        check(offsetInChain >= 0) { "trying to remove more clusters in chain than currently exist!" }
-
-        var currentCluster: Long
+                    buffer.clear()
+                    blockDevice.read(offset, buffer)
+                    lastOffset = offset
+                }
 
-        var offset: Long
-        var offsetInBlock: Long
-        var lastOffset: Long = -1
+                buffer.putInt(offsetInBlock.toInt(), 0)
+            }
 
-        // free all unneeded clusters
-        for (i in offsetInChain until chain.size) {
-            currentCluster = chain[i]
-            offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
-            offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
+            if (offsetInChain > 0) {
+                // write the end mark to last cluster in the new chain
+                currentCluster = chain[offsetInChain - 1]
+                offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
 
-            // if we have a new offset we are forced to read again
-            if (lastOffset != offset) {
-                if (lastOffset.toInt() != -1) {
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    writeFat(lastOffset, buffer)
                     buffer.clear()
-                    blockDevice.write(lastOffset, buffer)
+                    blockDevice.read(offset, buffer)
+                    //lastOffset = offset
                 }
+                buffer.putInt(offsetInBlock.toInt(), FAT32_EOF_CLUSTER)
+                writeFat(offset, buffer)
+            } else {
+                // if we freed all clusters we have to write the last change of the
+                // for loop above
+                writeFat(lastOffset, buffer)
+            }
 
-                buffer.clear()
-                blockDevice.read(offset, buffer)
-                lastOffset = offset
+            Log.i(TAG, "freed $numberOfClusters clusters")
+
+            // increase the free cluster count by decreasing with a negative value
+            fsInfoStructure.decreaseClusterCount((-numberOfClusters).toLong())
+            fsInfoStructure.write()
+
+            val arr = Arrays.copyOfRange(chain, 0, offsetInChain)
+
+            synchronized(cache) {
+                if (arr.isNotEmpty()) {
+                    cache[arr[0]] = arr
+                } else if (chain.isNotEmpty()) {
+                    cache.remove(chain[0])
+                }
             }
 
-            buffer.putInt(offsetInBlock.toInt(), 0)
+            return arr
         }
+    }
 
-        // TODO we should write in in all FATs when they are mirrored!
-        if (offsetInChain > 0) {
-            // write the end mark to last cluster in the new chain
-            currentCluster = chain[offsetInChain - 1]
-            offset = (fatOffset[0] + currentCluster * 4) / bufferSize * bufferSize
-            offsetInBlock = (fatOffset[0] + currentCluster * 4) % bufferSize
+    /**
+     * Frees all clusters of the given chains. In contrast to calling
+     * [.free] for every chain, the clusters are sorted and freed in one
+     * sweep over the FAT, every block of the FAT and the fs info structure
+     * is only written once.
+     *
+     * @param chains
+     * The chains which shall be freed completely.
+     * @throws IOException
+     * If reading or writing to the FAT fails.
+     */
+    @Throws(IOException::class)
+    internal fun freeChains(chains: List<Array<Long>>) {
+        allocationLock.withLock {
+            var count = 0
+            for (chain in chains) {
+                count += chain.size
+            }
+            if (count == 0) {
+                return
+            }
 
-            // if we have a new offset we are forced to read again
-            if (lastOffset != offset) {
-                buffer.clear()
-                blockDevice.write(lastOffset, buffer)
-                buffer.clear()
-                blockDevice.read(offset, buffer)
-                //lastOffset = offset
+            val clusters = LongArray(count)
+            var index = 0
+            for (chain in chains) {
+                for (cluster in chain) {
+                    clusters[index++] = cluster
+                }
+                if (chain.isNotEmpty()) {
+                    synchronized(cache) { cache.remove(chain[0]) }
+                }
             }
-            buffer.putInt(offsetInBlock.toInt(), FAT32_EOF_CLUSTER)
-            buffer.clear()
-            blockDevice.write(offset, buffer)
-        } else {
-            // if we freed all clusters we have to write the last change of the
-            // for loop above
-            buffer.clear()
-            blockDevice.write(lastOffset, buffer)
-        }
+            clusters.sort()
 
-        Log.i(TAG, "freed $numberOfClusters clusters")
+            val buffer = ByteBuffer.allocate(bufferSize)
+            buffer.order(ByteOrder.LITTLE_ENDIAN)
 
-        // increase the free cluster count by decreasing with a negative value
-        fsInfoStructure.decreaseClusterCount((-numberOfClusters).toLong())
-        fsInfoStructure.write()
+            var offset: Long
+            var offsetInBlock: Long
+            var lastOffset: Long = -1
 
-        val arr = Arrays.copyOfRange(chain, 0, offsetInChain)
+            for (cluster in clusters) {
+                offset = (fatOffset[0] + cluster * 4) / bufferSize * bufferSize
+                offsetInBlock = (fatOffset[0] + cluster * 4) % bufferSize
 
-        if (arr.isNotEmpty()) {
-            cache[arr[0]] = arr
-        }
+                // if we have a new offset we are forced to read again
+                if (lastOffset != offset) {
+                    if (lastOffset != -1L) {
+                        writeFat(lastOffset, buffer)
+                    }
 
-        return arr
+                    buffer.clear()
+                    blockDevice.read(offset, buffer)
+                    lastOffset = offset
+                }
+
+                buffer.putInt(offsetInBlock.toInt(), 0)
+            }
+
+            writeFat(lastOffset, buffer)
+
+            Log.i(TAG, "freed $count clusters of ${chains.size} chains")
+
+            fsInfoStructure.decreaseClusterCount((-count).toLong())
+            fsInfoStructure.write()
+        }
     }
 
     companion object {
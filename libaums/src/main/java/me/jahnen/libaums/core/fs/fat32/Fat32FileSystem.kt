@@ -20,17 +20,44 @@ package me.jahnen.libaums.core.fs.fat32
 import android.util.Log
 import me.jahnen.libaums.core.driver.BlockDeviceDriver
 import me.jahnen.libaums.core.fs.FileSystem
+import me.jahnen.libaums.core.fs.IoQueue
+import me.jahnen.libaums.core.fs.MountOptions
+import me.jahnen.libaums.core.fs.PathCache
 import me.jahnen.libaums.core.fs.UsbFile
 import me.jahnen.libaums.core.partition.PartitionTypes
 import java.io.IOException
 import java.nio.ByteBuffer
 import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
 
 /**
  * This class represents the FAT32 file system and is responsible for setting
  * the FAT32 file system up and extracting the volume label and the root
  * directory.
  *
+ *
+ * The file system can be used from several threads at once:
+ *
+ *  * Every [FatDirectory] has its own lock, operations on different
+ *    directories run concurrently.
+ *  * Every [FatFile] has a read write lock, several threads can read a file
+ *    at the same time while writing, changing the length and closing are
+ *    exclusive.
+ *  * Moving items, deleting directories and committing transactions which
+ *    delete items change more than one directory and take [treeLock]
+ *    exclusively, all other directory operations hold it shared.
+ *  * The [FAT] serializes allocating and freeing clusters, reading the
+ *    clusters of a file or directory does not need that lock.
+ *
+ * Locks are always taken in this order: [treeLock], directory locks from the
+ * parent to the child, file locks and the lock of the FAT. A file never holds
+ * its lock while updating its entry in the parent directory.
+ *
+ *
+ * Changes of an item are only visible through the same instance, see
+ * [fileCache]. Using the same [UsbFile] from different threads is therefore
+ * fine, but the device must not be changed by other means while mounted.
+ *
  * @author mjahnen
  */
 class Fat32FileSystem
@@ -44,11 +71,14 @@ class Fat32FileSystem
  * The block device the FAT32 file system is located.
  * @param first512Bytes
  * First 512 bytes read from block device.
+ * @param mountOptions
+ * The options the file system has been mounted with.
  * @throws IOException
  * If reading from the device fails.
  */
 @Throws(IOException::class)
-private constructor(blockDevice: BlockDeviceDriver, first512Bytes: ByteBuffer) : FileSystem {
+private constructor(blockDevice: BlockDeviceDriver, first512Bytes: ByteBuffer,
+                    val mountOptions: MountOptions) : FileSystem {
 
     private val bootSector: Fat32BootSector = Fat32BootSector.read(first512Bytes)
     private val fat: FAT
@@ -61,8 +91,23 @@ private constructor(blockDevice: BlockDeviceDriver, first512Bytes: ByteBuffer) :
      * of sync and only the one which is written latest will actually be persisted on
      * disk. This is especially problematic if you create files on different directory
      * instances.. See also issue 215.
+     *
+     *
+     * Access is synchronized on the cache itself.
      */
-    internal val fileCache = WeakHashMap<String, UsbFile>()
+    internal val fileCache = FileCache()
+    /**
+     * Held shared by operations on a single directory and exclusively by
+     * operations which change several directories.
+     */
+    internal val treeLock = ReentrantReadWriteLock()
+    /**
+     * Executes the asynchronous operations of all items, see
+     * [UsbFile.readAsync].
+     */
+    internal val ioQueue = IoQueue()
+
+    override val pathCache = PathCache(mountOptions.pathCacheSize)
 
     override val volumeLabel: String
         get() {
@@ -86,7 +131,7 @@ private constructor(blockDevice: BlockDeviceDriver, first512Bytes: ByteBuffer) :
 
     init {
         fsInfoStructure = FsInfoStructure.read(blockDevice, bootSector.fsInfoStartSector * bootSector.bytesPerSector)
-        fat = FAT(blockDevice, bootSector, fsInfoStructure)
+        fat = FAT(blockDevice, bootSector, fsInfoStructure, mountOptions)
         rootDirectory = FatDirectory.readRoot(this, blockDevice, fat, bootSector)
 
         Log.d(TAG, bootSector.toString())
@@ -104,12 +149,17 @@ private constructor(blockDevice: BlockDeviceDriver, first512Bytes: ByteBuffer) :
          *
          * @param blockDevice
          * The block device the FAT32 file system is located.
+         * @param options
+         * Options for mounting, for example to mount without updating access
+         * times.
          * @throws IOException
          * If reading from the device fails.
          */
         @Throws(IOException::class)
         @JvmStatic
-        fun read(blockDevice: BlockDeviceDriver): Fat32FileSystem? {
+        @JvmOverloads
+        fun read(blockDevice: BlockDeviceDriver,
+                 options: MountOptions = MountOptions.DEFAULT): Fat32FileSystem? {
 
             val buffer = ByteBuffer.allocate(512)
             blockDevice.read(0, buffer)
@@ -124,7 +174,7 @@ private constructor(blockDevice: BlockDeviceDriver, first512Bytes: ByteBuffer) :
                     buffer.get(88).toChar() != ' ' ||
                     buffer.get(89).toChar() != ' ') {
                 null
-            } else Fat32FileSystem(blockDevice, buffer)
+            } else Fat32FileSystem(blockDevice, buffer, options)
 
         }
     }
@@ -3,6 +3,7 @@ package me.jahnen.libaums.core.fs.fat32
 import me.jahnen.libaums.core.driver.BlockDeviceDriver
 import me.jahnen.libaums.core.fs.FileSystem
 import me.jahnen.libaums.core.fs.FileSystemCreator
+import me.jahnen.libaums.core.fs.MountOptions
 import me.jahnen.libaums.core.partition.PartitionTableEntry
 import java.io.IOException
 
@@ -14,6 +15,11 @@ class Fat32FileSystemCreator : FileSystemCreator {
 
     @Throws(IOException::class)
     override fun read(entry: PartitionTableEntry, blockDevice: BlockDeviceDriver): FileSystem? {
-        return Fat32FileSystem.read(blockDevice)
+        return read(entry, blockDevice, MountOptions.DEFAULT)
+    }
+
+    @Throws(IOException::class)
+    override fun read(entry: PartitionTableEntry, blockDevice: BlockDeviceDriver, options: MountOptions): FileSystem? {
+        return Fat32FileSystem.read(blockDevice, options)
     }
 }
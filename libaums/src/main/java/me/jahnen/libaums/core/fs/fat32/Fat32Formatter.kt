@@ -0,0 +1,279 @@
+package me.jahnen.libaums.core.fs.fat32
+
+import android.util.Log
+import me.jahnen.libaums.core.driver.BlockDeviceDriver
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.Charset
+import java.util.*
+import kotlin.math.min
+
+/**
+ * This class creates a new, empty FAT32 file system on a [BlockDeviceDriver]. It writes the boot
+ * sector (and its backup), the FSInfo structure, all FATs and the root directory.
+ *
+ *
+ * The block device is addressed in bytes, just like the one passed to [Fat32FileSystem.read].
+ * Wrap a raw device in a [me.jahnen.libaums.core.driver.ByteBlockDevice] (or use a
+ * [me.jahnen.libaums.core.partition.Partition]) before formatting it.
+ *
+ * @author mjahnen
+ */
+class Fat32Formatter @JvmOverloads constructor(private val blockDevice: BlockDeviceDriver,
+                                               private val options: Options = Options()) {
+
+    /**
+     * Options used when formatting.
+     *
+     * @property volumeSize Size of the new file system in bytes, 0 means the whole block device.
+     * @property bytesPerCluster Cluster size in bytes, 0 lets the formatter choose one depending on
+     * the volume size.
+     * @property fatCount Number of (mirrored) FATs, mostly 2.
+     * @property volumeLabel Volume label, at most 11 ASCII characters.
+     * @property quickFormat If true only the FAT sectors holding the reserved entries and the root
+     * directory are written. The remaining FAT sectors are expected to be zero already, which is
+     * true for newly created (sparse) image files. If false the FATs are zeroed completely.
+     */
+    data class Options @JvmOverloads constructor(
+            val volumeSize: Long = 0,
+            val bytesPerCluster: Int = 0,
+            val fatCount: Int = 2,
+            val volumeLabel: String = "NO NAME",
+            val quickFormat: Boolean = false
+    )
+
+    private val bytesPerSector = blockDevice.blockSize
+
+    /**
+     * Formats the block device.
+     *
+     * @throws IOException
+     * If writing to the device fails.
+     * @throws IllegalArgumentException
+     * If the options do not describe a valid FAT32 file system.
+     */
+    @Throws(IOException::class)
+    fun format() {
+        require(bytesPerSector in intArrayOf(512, 1024, 2048, 4096)) { "unsupported sector size $bytesPerSector" }
+        require(options.fatCount in 1..2) { "fat count must be 1 or 2" }
+        require(options.volumeLabel.length <= 11) { "volume label must not exceed 11 characters" }
+
+        val volumeSize = if (options.volumeSize > 0) options.volumeSize else blockDevice.blocks * bytesPerSector
+        val totalSectors = volumeSize / bytesPerSector
+        require(totalSectors in 1..0xffffffffL) { "invalid volume size $volumeSize" }
+
+        val bytesPerCluster = if (options.bytesPerCluster > 0) options.bytesPerCluster
+            else maxOf(defaultClusterSize(volumeSize), bytesPerSector)
+        require(bytesPerCluster % bytesPerSector == 0) { "cluster size must be a multiple of the sector size" }
+        val sectorsPerCluster = bytesPerCluster / bytesPerSector
+        require(sectorsPerCluster in 1..128 && Integer.bitCount(sectorsPerCluster) == 1) { "invalid cluster size $bytesPerCluster" }
+
+        val fatCount = options.fatCount
+        // see fatgen103.pdf, every FAT entry is 4 bytes and the first two entries are reserved
+        val sectorsPerFat = divideRoundUp(totalSectors - RESERVED_SECTORS + 2 * sectorsPerCluster,
+                (bytesPerSector / 4L) * sectorsPerCluster + fatCount)
+        val dataSectors = totalSectors - RESERVED_SECTORS - fatCount * sectorsPerFat
+        val clusterCount = dataSectors / sectorsPerCluster
+        require(clusterCount in 1..MAX_CLUSTER_COUNT) { "invalid cluster count $clusterCount" }
+
+        if (clusterCount < MIN_CLUSTER_COUNT) {
+            Log.w(TAG, "cluster count $clusterCount is below the FAT32 minimum, some systems may refuse to mount")
+        }
+
+        Log.d(TAG, "formatting: sectors $totalSectors, cluster size $bytesPerCluster, clusters $clusterCount, sectors per fat $sectorsPerFat")
+
+        writeReservedRegion(totalSectors, sectorsPerCluster, fatCount, sectorsPerFat, clusterCount)
+
+        val fatOffset = RESERVED_SECTORS.toLong() * bytesPerSector
+        for (i in 0 until fatCount) {
+            writeFat(fatOffset + i * sectorsPerFat * bytesPerSector, sectorsPerFat * bytesPerSector)
+        }
+
+        val dataAreaOffset = fatOffset + fatCount * sectorsPerFat * bytesPerSector
+        writeRootDirectory(dataAreaOffset, bytesPerCluster)
+    }
+
+    /**
+     * Writes the boot sector, the FSInfo structure and their backups in one single write.
+     */
+    @Throws(IOException::class)
+    private fun writeReservedRegion(totalSectors: Long, sectorsPerCluster: Int, fatCount: Int,
+                                    sectorsPerFat: Long, clusterCount: Long) {
+        val buffer = ByteBuffer.allocate(RESERVED_SECTORS * bytesPerSector)
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+        val bootSector = createBootSector(totalSectors, sectorsPerCluster, fatCount, sectorsPerFat)
+        val fsInfo = createFsInfo(clusterCount)
+
+        buffer.position(0)
+        buffer.put(bootSector)
+        buffer.position(FS_INFO_SECTOR * bytesPerSector)
+        buffer.put(fsInfo)
+
+        bootSector.clear()
+        fsInfo.clear()
+        buffer.position(BACKUP_BOOT_SECTOR * bytesPerSector)
+        buffer.put(bootSector)
+        buffer.position((BACKUP_BOOT_SECTOR + FS_INFO_SECTOR) * bytesPerSector)
+        buffer.put(fsInfo)
+
+        buffer.clear()
+        blockDevice.write(0, buffer)
+    }
+
+    private fun createBootSector(totalSectors: Long, sectorsPerCluster: Int, fatCount: Int,
+                                 sectorsPerFat: Long): ByteBuffer {
+        val buffer = ByteBuffer.allocate(bytesPerSector)
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+        // jump instruction
+        buffer.put(0, 0xEB.toByte())
+        buffer.put(1, 0x58)
+        buffer.put(2, 0x90.toByte())
+        buffer.position(3)
+        buffer.put(OEM_NAME.toByteArray(ASCII))
+
+        buffer.putShort(11, bytesPerSector.toShort())
+        buffer.put(13, sectorsPerCluster.toByte())
+        buffer.putShort(14, RESERVED_SECTORS.toShort())
+        buffer.put(16, fatCount.toByte())
+        // root entry count and 16 bit sector count are zero on FAT32
+        buffer.put(21, MEDIA_DESCRIPTOR.toByte())
+        buffer.putShort(24, 63)
+        buffer.putShort(26, 255)
+        buffer.putInt(32, totalSectors.toInt())
+        buffer.putInt(36, sectorsPerFat.toInt())
+        // ext flags are zero: FAT is mirrored at runtime
+        buffer.putInt(44, ROOT_DIR_CLUSTER.toInt())
+        buffer.putShort(48, FS_INFO_SECTOR.toShort())
+        buffer.putShort(50, BACKUP_BOOT_SECTOR.toShort())
+        buffer.put(64, 0x80.toByte())
+        buffer.put(66, 0x29)
+        buffer.putInt(67, System.currentTimeMillis().toInt())
+        buffer.position(71)
+        buffer.put(paddedLabel())
+        buffer.put("FAT32   ".toByteArray(ASCII))
+
+        buffer.put(510, 0x55)
+        buffer.put(511, 0xAA.toByte())
+
+        buffer.clear()
+        return buffer
+    }
+
+    private fun createFsInfo(clusterCount: Long): ByteBuffer {
+        val buffer = ByteBuffer.allocate(bytesPerSector)
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+        buffer.putInt(0, 0x41615252)
+        buffer.putInt(484, 0x61417272)
+        // the root directory occupies one cluster
+        buffer.putInt(488, (clusterCount - 1).toInt())
+        buffer.putInt(492, ROOT_DIR_CLUSTER.toInt())
+        buffer.putInt(508, 0xAA550000.toInt())
+
+        buffer.clear()
+        return buffer
+    }
+
+    /**
+     * Writes one FAT. The first entries are the media descriptor, the end of chain marker and the
+     * end of chain marker of the root directory. Everything else is zero. If not doing a quick
+     * format the FAT is zeroed with large sequential writes.
+     */
+    @Throws(IOException::class)
+    private fun writeFat(offset: Long, size: Long) {
+        val bufferSize = if (options.quickFormat) bytesPerSector.toLong() else min(size, MAX_WRITE_SIZE)
+        val buffer = ByteBuffer.allocate(bufferSize.toInt())
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+
+        buffer.putInt(0, 0x0FFFFF00 or MEDIA_DESCRIPTOR)
+        buffer.putInt(4, FAT32_EOC)
+        buffer.putInt(ROOT_DIR_CLUSTER.toInt() * 4, FAT32_EOC)
+        blockDevice.write(offset, buffer)
+
+        if (options.quickFormat) {
+            return
+        }
+
+        val zeros = ByteBuffer.allocate(bufferSize.toInt())
+        var written = bufferSize
+        while (written < size) {
+            zeros.clear()
+            zeros.limit(min(size - written, bufferSize).toInt())
+            blockDevice.write(offset + written, zeros)
+            written += zeros.limit()
+        }
+    }
+
+    /**
+     * Writes the first (and only) cluster of the root directory which holds the volume label.
+     */
+    @Throws(IOException::class)
+    private fun writeRootDirectory(offset: Long, bytesPerCluster: Int) {
+        val buffer = ByteBuffer.allocate(bytesPerCluster)
+        FatDirectoryEntry.createVolumeLabel(String(paddedLabel(), ASCII)).serialize(buffer)
+        buffer.clear()
+        blockDevice.write(offset, buffer)
+    }
+
+    private fun paddedLabel(): ByteArray {
+        val label = options.volumeLabel.toUpperCase(Locale.ROOT)
+        val result = ByteArray(11) { ' '.toByte() }
+        val bytes = label.toByteArray(ASCII)
+        System.arraycopy(bytes, 0, result, 0, min(bytes.size, result.size))
+        return result
+    }
+
+    companion object {
+
+        private val TAG = Fat32Formatter::class.java.simpleName
+
+        private val ASCII = Charset.forName("ASCII")
+
+        private const val OEM_NAME = "MSWIN4.1"
+        private const val MEDIA_DESCRIPTOR = 0xF8
+        private const val RESERVED_SECTORS = 32
+        private const val FS_INFO_SECTOR = 1
+        private const val BACKUP_BOOT_SECTOR = 6
+        private const val ROOT_DIR_CLUSTER = 2L
+        private const val FAT32_EOC = 0x0FFFFFFF
+
+        private const val MIN_CLUSTER_COUNT = 65525L
+        private const val MAX_CLUSTER_COUNT = 0x0FFFFFF5L
+
+        /**
+         * Maximum size of a single write when zeroing the FATs.
+         */
+        private const val MAX_WRITE_SIZE = 1024L * 1024
+
+        /**
+         * Formats the block device with the given options.
+         *
+         * @see format
+         */
+        @JvmStatic
+        @JvmOverloads
+        @Throws(IOException::class)
+        fun format(blockDevice: BlockDeviceDriver, options: Options = Options()) {
+            Fat32Formatter(blockDevice, options).format()
+        }
+
+        /**
+         * Cluster sizes as recommended by Microsoft for the given volume size.
+         */
+        private fun defaultClusterSize(volumeSize: Long): Int {
+            val mb = 1024L * 1024
+            return when {
+                volumeSize <= 260 * mb -> 512
+                volumeSize <= 8 * 1024 * mb -> 4096
+                volumeSize <= 16 * 1024 * mb -> 8192
+                volumeSize <= 32 * 1024 * mb -> 16384
+                else -> 32768
+            }
+        }
+
+        private fun divideRoundUp(a: Long, b: Long) = (a + b - 1) / b
+    }
+}
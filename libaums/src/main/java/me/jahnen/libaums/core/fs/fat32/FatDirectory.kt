@@ -20,17 +20,32 @@ package me.jahnen.libaums.core.fs.fat32
 import android.util.Log
 import me.jahnen.libaums.core.driver.BlockDeviceDriver
 import me.jahnen.libaums.core.fs.AbstractUsbFile
+import me.jahnen.libaums.core.fs.DirectoryListing
+import me.jahnen.libaums.core.fs.DirectoryTransaction
+import me.jahnen.libaums.core.fs.IoQueue
+import me.jahnen.libaums.core.fs.SortKey
+import me.jahnen.libaums.core.fs.SortRecord
 import me.jahnen.libaums.core.fs.UsbFile
 import java.io.IOException
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.*
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.read
+import kotlin.concurrent.withLock
+import kotlin.concurrent.write
+import kotlin.math.max
+import kotlin.math.min
 
 
 /**
  * This class represents a directory in the FAT32 file system. It can hold other
  * directories and files.
  *
+ *
+ * All operations hold the lock of the directory, see [Fat32FileSystem] for
+ * the locking order.
+ *
  * @author mjahnen
  */
 class FatDirectory
@@ -47,7 +62,7 @@ class FatDirectory
  * The parent directory of the newly created one.
  */
 internal constructor(
-            private val fs: Fat32FileSystem,
+            internal val fs: Fat32FileSystem,
             private val blockDevice: BlockDeviceDriver,
             private val fat: FAT,
             private val bootSector: Fat32BootSector,
@@ -58,8 +73,9 @@ internal constructor(
             /**
              * Null if this is the root directory.
              */
-            override var parent: FatDirectory?) : AbstractUsbFile() {
+            @Volatile override var parent: FatDirectory?) : AbstractUsbFile() {
 
+    private val lock = ReentrantLock()
     private lateinit var chain: ClusterChain
     /**
      * Entries read from the device.
@@ -75,10 +91,52 @@ internal constructor(
      */
     private val lfnMap: MutableMap<String, FatLfnDirectoryEntry>
     /**
-     * Map for checking for existence of short names when generating short names
+     * Index for checking for existence of short names when generating short names
      * for new files or directories.
      */
-    private val shortNameMap: MutableMap<ShortName, FatDirectoryEntry>
+    private val shortNames = ShortNameIndex()
+    /**
+     * Position of every entry in the directory, in slots of
+     * [FatDirectoryEntry.SIZE] bytes. The long file name parts of an entry
+     * start at its slot, followed by the actual entry. Entries keep their
+     * position until they are removed, so only the slots which actually change
+     * have to be written.
+     */
+    private val slotMap = TreeMap<Int, FatLfnDirectoryEntry>()
+    private val entrySlots = HashMap<FatLfnDirectoryEntry, Int>()
+    /**
+     * Slots of removed entries, these are marked as deleted on the disk.
+     */
+    private val deletedSlots = BitSet()
+    /**
+     * Slots which have been changed since the last call to [.write].
+     */
+    private val dirtySlots = BitSet()
+    /**
+     * Number of slots in use including deleted ones. The slot after the last
+     * one is the end of directory marker, if the chain is large enough.
+     */
+    private var slotCount = 0
+    private var volumeLabelSlot = -1
+    /**
+     * Entries sorted by the keys which have been requested in
+     * [.listEntries]. The lists are created when a key is used the first
+     * time and kept sorted while the directory changes.
+     */
+    private val sortIndexes = EnumMap<SortKey, ArrayList<IndexRecord>>(SortKey::class.java)
+    /**
+     * The record of every entry in [.sortIndexes].
+     */
+    private val indexRecords = HashMap<FatLfnDirectoryEntry, IndexRecord>()
+
+    /**
+     * The values an entry has been sorted by in [.sortIndexes]. Sizes and
+     * timestamps of files are updated in the index when the entry is marked
+     * as dirty.
+     */
+    private class IndexRecord(val lfnEntry: FatLfnDirectoryEntry) : SortRecord(lfnEntry.name,
+            lfnEntry.isDirectory, if (lfnEntry.isDirectory) 0 else lfnEntry.fileSize,
+            lfnEntry.actualEntry.lastModifiedDateTime)
 
     /**
      * This method returns the volume label which can be stored in the root
@@ -87,6 +145,15 @@ internal constructor(
      * @return The volume label.
      */
     internal var volumeLabel: String? = null
+        get() {
+            locked {
+                // the label is normally in the first cluster, only read on if not
+                if (field == null && !hasBeenInited) {
+                    init()
+                }
+                return field
+            }
+        }
         private set
 
     private var hasBeenInited: Boolean = false
@@ -105,6 +172,9 @@ internal constructor(
     override val isDirectory: Boolean
         get() = true
 
+    override val ioQueue: IoQueue
+        get() = fs.ioQueue
+
     override var name: String
         get() = if (entry != null) entry!!.name else "/"
         @Throws(IOException::class)
@@ -115,7 +185,16 @@ internal constructor(
 
     init {
         lfnMap = HashMap()
-        shortNameMap = HashMap()
+    }
+
+    /**
+     * Runs the block holding the lock of this directory and the tree lock of
+     * the file system shared.
+     */
+    private inline fun <T> locked(block: () -> T): T {
+        fs.treeLock.read {
+            return lock.withLock(block)
+        }
     }
 
     /**
@@ -127,8 +206,30 @@ internal constructor(
      */
     @Throws(IOException::class)
     private fun init() {
+        initChain()
+
+        // newly created directories (. and ..) are marked as inited, otherwise
+        // we would read trash data
+        while (!hasBeenInited) {
+            readNextCluster()
+        }
+    }
+
+    /**
+     * Creates the cluster chain and the list of entries if needed without
+     * reading any entries.
+     *
+     * @throws IOException
+     * If reading from the FAT fails.
+     */
+    @Throws(IOException::class)
+    private fun initChain() {
+        if (deleted) {
+            throw IOException("Directory has been deleted!")
+        }
         if (!::chain.isInitialized) {
-            chain = ClusterChain(entry!!.startCluster, blockDevice, fat, bootSector)
+            chain = ClusterChain(entry!!.startCluster, blockDevice, fat, bootSector,
+                    fs.mountOptions.maxClustersPerWrite)
         }
 
         // entries is allocated here
@@ -137,63 +238,180 @@ internal constructor(
         if (entries == null) {
             entries = ArrayList()
         }
+    }
 
-        // only read entries if we have no entries
-        // otherwise newly created directories (. and ..) will read trash data
-        if (entries!!.size == 0 && !hasBeenInited) {
-            readEntries()
-        }
-
-        hasBeenInited = true
+    /**
+     * State of reading the entries, kept between the reads of single
+     * clusters.
+     */
+    private class ReadState(clusterSize: Int) {
+        val buffer: ByteBuffer = ByteBuffer.allocate(clusterSize)
+        var offset = 0L
+        /**
+         * Long filename entries which belong to the next actual entry.
+         */
+        val lfnParts = ArrayList<FatDirectoryEntry>()
+        var lfnSlot = 0
+        val relocated = ArrayList<FatLfnDirectoryEntry>()
     }
 
+    private var readState: ReadState? = null
+    /**
+     * True after the directory has been deleted while it was in use, its
+     * clusters may already belong to other items.
+     */
+    private var deleted = false
+
     /**
-     * Reads all entries from the directory and saves them into [.lfnMap],
-     * [.entries] and [.shortNameMap].
+     * Reads the next cluster of the directory and saves the entries found
+     * into [.lfnMap], [.entries] and [.shortNames]. If the end of
+     * the directory is reached the directory is marked as inited.
      *
      * @throws IOException
      * If reading from the device fails.
      * @see .write
      */
     @Throws(IOException::class)
-    private fun readEntries() {
-        val buffer = ByteBuffer.allocate(chain.length.toInt())
-        chain.read(0, buffer)
-        // we have to buffer all long filename entries to parse them later
-        val list = ArrayList<FatDirectoryEntry>()
+    private fun readNextCluster() {
+        val state = readState ?: ReadState(bootSector.bytesPerCluster).also { readState = it }
+        if (state.offset >= chain.length) {
+            finishReading(state)
+            return
+        }
+
+        val buffer = state.buffer
+        buffer.clear()
+        chain.read(state.offset, buffer)
         buffer.flip()
+        // we have to buffer all long filename entries to parse them later
+        val list = state.lfnParts
         while (buffer.remaining() > 0) {
-            val e = FatDirectoryEntry.read(buffer) ?: break
+            val slot = ((state.offset + buffer.position()) / FatDirectoryEntry.SIZE).toInt()
+            val e = FatDirectoryEntry.read(buffer)
+            if (e == null) {
+                finishReading(state)
+                return
+            }
+            slotCount = slot + 1
 
             if (e.isLfnEntry) {
+                if (list.isEmpty()) {
+                    state.lfnSlot = slot
+                }
                 list.add(e)
                 continue
             }
 
+            if (list.isEmpty()) {
+                state.lfnSlot = slot
+            }
+
             if (e.isVolumeLabel) {
                 if (!isRoot) {
                     Log.w(TAG, "volume label in non root dir!")
                 }
                 volumeLabel = e.volumeLabel
+                volumeLabelSlot = slot
                 Log.d(TAG, "volume label: " + volumeLabel!!)
+                // long file name parts without an entry
+                deletedSlots.set(state.lfnSlot, slot)
+                list.clear()
                 continue
             }
 
             // we just skip deleted entries
             if (e.isDeleted) {
+                deletedSlots.set(state.lfnSlot, slot + 1)
                 list.clear()
                 continue
             }
 
             val lfnEntry = FatLfnDirectoryEntry.read(e, list)
-            addEntry(lfnEntry, e)
+            val firstSlot = slot + 1 - lfnEntry.entryCount
+            if (firstSlot >= state.lfnSlot) {
+                // unneeded long file name parts are treated as deleted
+                deletedSlots.set(state.lfnSlot, firstSlot)
+                putEntry(lfnEntry, e, firstSlot)
+            } else {
+                freeSlots(state.lfnSlot, slot + 1)
+                state.relocated.add(lfnEntry)
+            }
             list.clear()
         }
+
+        state.offset += buffer.limit()
+    }
+
+    /**
+     * Called when the end of the directory has been reached.
+     */
+    private fun finishReading(state: ReadState) {
+        // entries which do not fit into their current slots are moved to the end
+        for (lfnEntry in state.relocated) {
+            putEntry(lfnEntry, lfnEntry.actualEntry, allocateSlots(lfnEntry))
+        }
+
+        readState = null
+        hasBeenInited = true
+    }
+
+    /**
+     * Adds the entry at the given slot to all lookup structures.
+     */
+    private fun putEntry(lfnEntry: FatLfnDirectoryEntry, entry: FatDirectoryEntry, slot: Int) {
+        entries!!.add(lfnEntry)
+        lfnMap[lfnEntry.name.toLowerCase(Locale.getDefault())] = lfnEntry
+        shortNames.add(entry.shortName!!)
+        slotMap[slot] = lfnEntry
+        entrySlots[lfnEntry] = slot
+        addToSortIndexes(lfnEntry)
+    }
+
+    /**
+     * Places the entry in the first gap of deleted slots which is large
+     * enough, or in new slots at the end of the directory.
+     */
+    private fun allocateSlots(lfnEntry: FatLfnDirectoryEntry): Int {
+        val count = lfnEntry.entryCount
+        var start = deletedSlots.nextSetBit(0)
+        while (start >= 0) {
+            val end = deletedSlots.nextClearBit(start)
+            if (end - start >= count) {
+                deletedSlots.clear(start, start + count)
+                dirtySlots.set(start, start + count)
+                return start
+            }
+            start = deletedSlots.nextSetBit(end)
+        }
+
+        val slot = slotCount
+        slotCount += count
+        // also rewrite the end of directory marker
+        dirtySlots.set(slot, slotCount + 1)
+        return slot
+    }
+
+    /**
+     * Marks the slots in the given range as deleted. Deleted slots at the end
+     * of the directory are given up, the end of directory marker is moved in
+     * front of them instead.
+     */
+    private fun freeSlots(from: Int, to: Int) {
+        deletedSlots.set(from, to)
+        dirtySlots.set(from, to)
+
+        // while reading, later slots are not known yet
+        if (hasBeenInited && to >= slotCount && slotCount > 0) {
+            val newCount = deletedSlots.previousClearBit(slotCount - 1) + 1
+            deletedSlots.clear(newCount, slotCount)
+            dirtySlots.set(newCount, slotCount + 1)
+            slotCount = newCount
+        }
     }
 
     /**
      * Adds the long file name entry to [.lfnMap] and [.entries] and
-     * the actual entry to [.shortNameMap].
+     * the short name of the actual entry to [.shortNames].
      *
      *
      * This method does not write the changes to the disk. If you want to do so
@@ -206,14 +424,13 @@ internal constructor(
      * @see .removeEntry
      */
     private fun addEntry(lfnEntry: FatLfnDirectoryEntry, entry: FatDirectoryEntry) {
-        entries!!.add(lfnEntry)
-        lfnMap[lfnEntry.name.toLowerCase(Locale.getDefault())] = lfnEntry
-        shortNameMap[entry.shortName!!] = entry
+        putEntry(lfnEntry, entry, allocateSlots(lfnEntry))
+        fs.pathCache.invalidateCreated(childPath(lfnEntry.name))
     }
 
     /**
      * Removes (if existing) the long file name entry from [.lfnMap] and
-     * [.entries] and the actual entry from [.shortNameMap].
+     * [.entries] and the short name of the actual entry from [.shortNames].
      *
      *
      * This method does not write the changes to the disk. If you want to do so
@@ -224,9 +441,127 @@ internal constructor(
      * @see .addEntry
      */
     internal fun removeEntry(lfnEntry: FatLfnDirectoryEntry?) {
-        entries!!.remove(lfnEntry)
-        lfnMap.remove(lfnEntry!!.name.toLowerCase(Locale.getDefault()))
-        shortNameMap.remove(lfnEntry.actualEntry.shortName)
+        locked {
+            entries!!.remove(lfnEntry)
+            lfnMap.remove(lfnEntry!!.name.toLowerCase(Locale.getDefault()))
+            shortNames.remove(lfnEntry.actualEntry.shortName!!)
+            entrySlots.remove(lfnEntry)?.let {
+                slotMap.remove(it)
+                freeSlots(it, it + lfnEntry.entryCount)
+            }
+            removeFromSortIndexes(lfnEntry)
+            fs.pathCache.invalidate(childPath(lfnEntry.name))
+        }
+    }
+
+    /**
+     * Returns the entries of this directory sorted by the given key, creating
+     * the index if needed. The directory has to be initialized.
+     */
+    private fun getSortIndex(sortKey: SortKey): List<IndexRecord> {
+        sortIndexes[sortKey]?.let { return it }
+
+        if (sortIndexes.isEmpty()) {
+            for (lfnEntry in entries!!) {
+                if (lfnEntry.name != "." && lfnEntry.name != "..") {
+                    indexRecords[lfnEntry] = IndexRecord(lfnEntry)
+                }
+            }
+        }
+        val index = ArrayList(indexRecords.values)
+        Collections.sort(index, sortKey.comparator)
+        sortIndexes[sortKey] = index
+        return index
+    }
+
+    private fun addToSortIndexes(lfnEntry: FatLfnDirectoryEntry) {
+        if (sortIndexes.isEmpty() || lfnEntry.name == "." || lfnEntry.name == "..")
+            return
+
+        val record = IndexRecord(lfnEntry)
+        indexRecords[lfnEntry] = record
+        for ((sortKey, index) in sortIndexes) {
+            val position = Collections.binarySearch(index, record, sortKey.comparator)
+            index.add(-position - 1, record)
+        }
+    }
+
+    private fun removeFromSortIndexes(lfnEntry: FatLfnDirectoryEntry) {
+        val record = indexRecords.remove(lfnEntry) ?: return
+        for ((sortKey, index) in sortIndexes) {
+            val position = Collections.binarySearch(index, record, sortKey.comparator)
+            if (position >= 0) {
+                index.removeAt(position)
+            }
+        }
+    }
+
+    /**
+     * Removes the entry like [.removeEntry] because the item is deleted.
+     * Also drops the item and everything below it from the file cache.
+     *
+     * @param lfnEntry
+     * The long filename entry to remove.
+     */
+    internal fun deleteEntry(lfnEntry: FatLfnDirectoryEntry) {
+        locked {
+            updateFileCache(childPath(lfnEntry.name), null, lfnEntry.isDirectory)
+            removeEntry(lfnEntry)
+        }
+    }
+
+    /**
+     * Changes the keys of an item and, for directories, everything below it
+     * in [Fat32FileSystem.fileCache] after the item has been renamed or
+     * moved. Otherwise a second instance would be created for the same item
+     * when accessing it with the new path.
+     *
+     * @param oldPath
+     * The old absolute path.
+     * @param newPath
+     * The new absolute path or null if the item has been deleted.
+     * @param isDirectory
+     * True if the item is a directory.
+     * @return The paths and items which have been moved or removed.
+     */
+    private fun updateFileCache(oldPath: String, newPath: String?, isDirectory: Boolean): List<Pair<String, UsbFile>> {
+        synchronized(fs.fileCache) {
+            val moved = if (isDirectory) {
+                val prefix = oldPath + UsbFile.separator
+                fs.fileCache.entries().filter { it.first == oldPath || it.first.startsWith(prefix) }
+            } else {
+                fs.fileCache[oldPath]?.let { listOf(Pair(oldPath, it)) }.orEmpty()
+            }
+
+            for ((path, _) in moved) {
+                fs.fileCache.remove(path)
+            }
+
+            if (newPath != null) {
+                for ((path, file) in moved) {
+                    fs.fileCache[newPath + path.substring(oldPath.length)] = file
+                }
+            }
+            return moved
+        }
+    }
+
+    /**
+     * Marks the slots of the given entry as changed, so that the next call to
+     * [.write] writes it to the disk. This is needed after changing for
+     * example the file size or the date time fields of the entry.
+     *
+     * @param lfnEntry
+     * The changed entry.
+     */
+    internal fun markDirty(lfnEntry: FatLfnDirectoryEntry) {
+        locked {
+            entrySlots[lfnEntry]?.let { dirtySlots.set(it, it + lfnEntry.entryCount) }
+            if (indexRecords.containsKey(lfnEntry)) {
+                removeFromSortIndexes(lfnEntry)
+                addToSortIndexes(lfnEntry)
+            }
+        }
     }
 
     /**
@@ -245,113 +580,296 @@ internal constructor(
      */
     @Throws(IOException::class)
     internal fun renameEntry(lfnEntry: FatLfnDirectoryEntry?, newName: String) {
-        if (lfnEntry!!.name == newName)
+        locked {
+            if (lfnEntry!!.name == newName)
+                return
+
+            init()
+            changeName(lfnEntry, newName)
+            write()
+        }
+    }
+
+    /**
+     * Renames the entry without writing the change to the disk.
+     *
+     * @see .renameEntry
+     */
+    private fun changeName(lfnEntry: FatLfnDirectoryEntry, newName: String) {
+        if (lfnEntry.name == newName)
             return
 
-        removeEntry(lfnEntry)
+        val slot = entrySlots.getValue(lfnEntry)
+        val oldCount = lfnEntry.entryCount
+        fs.pathCache.invalidate(childPath(lfnEntry.name))
+        fs.pathCache.invalidateCreated(childPath(newName))
+        updateFileCache(childPath(lfnEntry.name), childPath(newName), lfnEntry.isDirectory)
+        lfnMap.remove(lfnEntry.name.toLowerCase(Locale.getDefault()))
+        shortNames.remove(lfnEntry.actualEntry.shortName!!)
+        removeFromSortIndexes(lfnEntry)
         lfnEntry.setName(newName,
-                ShortNameGenerator.generateShortName(newName, shortNameMap.keys))
-        addEntry(lfnEntry, lfnEntry.actualEntry)
-        write()
+                ShortNameGenerator.generateShortName(newName, shortNames))
+        lfnMap[newName.toLowerCase(Locale.getDefault())] = lfnEntry
+        shortNames.add(lfnEntry.actualEntry.shortName!!)
+        addToSortIndexes(lfnEntry)
+
+        val newCount = lfnEntry.entryCount
+        if (newCount <= oldCount) {
+            // rename in place, the remaining slots are not needed anymore
+            dirtySlots.set(slot, slot + newCount)
+            freeSlots(slot + newCount, slot + oldCount)
+        } else {
+            slotMap.remove(slot)
+            freeSlots(slot, slot + oldCount)
+            val newSlot = allocateSlots(lfnEntry)
+            slotMap[newSlot] = lfnEntry
+            entrySlots[lfnEntry] = newSlot
+        }
     }
 
     /**
-     * Writes the [.entries] to the disk. Any changes made by
-     * [.addEntry] or
-     * [.removeEntry] will then be committed to the
-     * device.
+     * Writes the changes made by [.addEntry], [.removeEntry] or [.markDirty]
+     * to the disk. Only the sectors which contain changed slots are written,
+     * consecutive sectors are merged into one write. The position of the
+     * remaining entries stays the same, removed entries are marked as deleted.
      *
      * @throws IOException
-     * @see {@link .write
+     * If writing to the device fails.
      */
     @Throws(IOException::class)
     internal fun write() {
-        init()
-        val writeVolumeLabel = isRoot && volumeLabel != null
-        // first lookup the total entries needed
-        var totalEntryCount = 0
-        for (entry in entries!!) {
-            totalEntryCount += entry.entryCount
-        }
+        locked {
+            init()
+            if (dirtySlots.isEmpty) {
+                return
+            }
 
-        if (writeVolumeLabel)
-            totalEntryCount++
+            val oldLength = chain.length
+            val totalBytes = slotCount.toLong() * FatDirectoryEntry.SIZE
+            if (totalBytes > oldLength) {
+                chain.length = totalBytes
+                // new clusters contain garbage, clear them
+                dirtySlots.set((oldLength / FatDirectoryEntry.SIZE).toInt(),
+                        (chain.length / FatDirectoryEntry.SIZE).toInt())
+            }
+
+            val slotsPerSector = bootSector.bytesPerSector / FatDirectoryEntry.SIZE
+            val chainSlots = (chain.length / FatDirectoryEntry.SIZE).toInt()
+            dirtySlots.clear(chainSlots, max(dirtySlots.length(), chainSlots))
+
+            // -1 if no slot in or behind the sector is dirty
+            fun nextDirtySector(sector: Int): Int {
+                val slot = dirtySlots.nextSetBit(sector * slotsPerSector)
+                return if (slot < 0) -1 else slot / slotsPerSector
+            }
 
-        val totalBytes = (totalEntryCount * FatDirectoryEntry.SIZE).toLong()
-        chain.length = totalBytes
+            var sector = nextDirtySector(0)
+            while (sector >= 0) {
+                // extend the run as long as the following sectors are dirty as well
+                var end = sector + 1
+                while (nextDirtySector(end) == end) {
+                    end++
+                }
 
-        val buffer = ByteBuffer.allocate(chain.length.toInt())
-        buffer.order(ByteOrder.LITTLE_ENDIAN)
+                val first = sector * slotsPerSector
+                val last = min(end * slotsPerSector, chainSlots)
+                val buffer = ByteBuffer.allocate((last - first) * FatDirectoryEntry.SIZE)
+                buffer.order(ByteOrder.LITTLE_ENDIAN)
+                serializeSlots(first, last, buffer)
+                buffer.flip()
+                chain.write(first.toLong() * FatDirectoryEntry.SIZE, buffer)
 
-        if (writeVolumeLabel)
-            FatDirectoryEntry.createVolumeLabel(volumeLabel!!).serialize(buffer)
+                sector = nextDirtySector(end)
+            }
 
-        for (entry in entries!!) {
-            entry.serialize(buffer)
+            dirtySlots.clear()
         }
+    }
+
+    /**
+     * Moves all entries to the beginning of the directory, removing the
+     * gaps of deleted entries, and frees the clusters of the directory which
+     * are not needed anymore. This is useful after deleting many items,
+     * because the directory itself never shrinks otherwise.
+     *
+     *
+     * The whole directory is rewritten, the entries are written before the
+     * clusters are freed.
+     *
+     * @throws IOException
+     * If reading from or writing to the device fails.
+     */
+    @Throws(IOException::class)
+    fun compact() {
+        locked {
+            init()
+            if (deletedSlots.isEmpty) {
+                return
+            }
+
+            val ordered = ArrayList(slotMap.entries)
+            val labelSlot = volumeLabelSlot
+            slotMap.clear()
+            entrySlots.clear()
+            deletedSlots.clear()
+
+            // the volume label keeps its position relative to the other entries
+            var labelPlaced = labelSlot < 0
+            var slot = 0
+            for ((oldSlot, lfnEntry) in ordered) {
+                if (!labelPlaced && oldSlot > labelSlot) {
+                    volumeLabelSlot = slot++
+                    labelPlaced = true
+                }
+                slotMap[slot] = lfnEntry
+                entrySlots[lfnEntry] = slot
+                slot += lfnEntry.entryCount
+            }
+            if (!labelPlaced) {
+                volumeLabelSlot = slot++
+            }
+            slotCount = slot
+
+            dirtySlots.set(0, (chain.length / FatDirectoryEntry.SIZE).toInt())
+            write()
 
-        if (totalBytes % bootSector.bytesPerCluster != 0L || totalBytes == 0L) {
-            // add dummy entry filled with zeros to mark end of entries
-            buffer.put(ByteArray(buffer.remaining()))
+            // keep at least one cluster, the end marker is not needed if the
+            // directory fills the last cluster completely
+            val length = max(slotCount.toLong() * FatDirectoryEntry.SIZE, 1)
+            if (length < chain.length) {
+                chain.length = length
+            }
         }
+    }
 
-        buffer.flip()
-        chain.write(0, buffer)
+    /**
+     * Serializes the slots in the given range into the buffer. Slots after
+     * the last entry are filled with zeros to mark the end of the directory.
+     */
+    private fun serializeSlots(from: Int, to: Int, buffer: ByteBuffer) {
+        var slot = from
+        while (slot < to) {
+            val floor = slotMap.floorEntry(slot)
+            val lfnEntry = floor?.value
+            when {
+                slot >= slotCount -> buffer.put(ByteArray(FatDirectoryEntry.SIZE))
+                deletedSlots[slot] -> {
+                    buffer.put(FatDirectoryEntry.ENTRY_DELETED.toByte())
+                    buffer.put(ByteArray(FatDirectoryEntry.SIZE - 1))
+                }
+                slot == volumeLabelSlot ->
+                    FatDirectoryEntry.createVolumeLabel(volumeLabel!!).serialize(buffer)
+                lfnEntry != null && slot < floor.key + lfnEntry.entryCount -> {
+                    val entryBuffer = ByteBuffer.allocate(lfnEntry.entryCount * FatDirectoryEntry.SIZE)
+                    entryBuffer.order(ByteOrder.LITTLE_ENDIAN)
+                    // files update their times while being read
+                    synchronized(lfnEntry) { lfnEntry.serialize(entryBuffer) }
+                    val start = slot - floor.key
+                    val count = min(lfnEntry.entryCount, to - floor.key) - start
+                    buffer.put(entryBuffer.array(), start * FatDirectoryEntry.SIZE,
+                            count * FatDirectoryEntry.SIZE)
+                    slot += count
+                    continue
+                }
+                else -> throw IllegalStateException("slot $slot is not in use")
+            }
+            slot++
+        }
     }
 
     @Throws(IOException::class)
     override fun createFile(name: String): FatFile {
-        if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
-            throw IOException("Item already exists!")
+        locked {
+            init() // initialise the directory before creating files
 
-        init() // initialise the directory before creating files
+            if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
+                throw IOException("Item already exists!")
 
-        val shortName = ShortNameGenerator.generateShortName(name, shortNameMap.keys)
+            // alloc completely new chain
+            val file = addFile(name, fat.alloc(arrayOf(), 1)[0])
+            // write changes immediately to disk
+            write()
+
+            return file
+        }
+    }
+
+    /**
+     * Adds a new file entry without writing the directory.
+     *
+     * @param name
+     * The name of the file.
+     * @param startCluster
+     * The already allocated start cluster of the file.
+     * @return The new file.
+     */
+    private fun addFile(name: String, startCluster: Long): FatFile {
+        val shortName = ShortNameGenerator.generateShortName(name, shortNames)
 
         val entry = FatLfnDirectoryEntry(name, shortName)
-        // alloc completely new chain
-        val newStartCluster = fat.alloc(arrayOf(), 1)[0]
-        entry.startCluster = newStartCluster
+        entry.startCluster = startCluster
 
         Log.d(TAG, "adding entry: $entry with short name: $shortName")
         addEntry(entry, entry.actualEntry)
-        // write changes immediately to disk
-        write()
 
-        val file = FatFile(blockDevice, fat, bootSector, entry, this)
-        fs.fileCache[file.absolutePath] = file
+        val file = FatFile(blockDevice, fat, bootSector, entry, this, fs.mountOptions)
+        synchronized(fs.fileCache) { fs.fileCache[file.absolutePath] = file }
         return file
     }
 
     @Throws(IOException::class)
     override fun createDirectory(name: String): FatDirectory {
-        if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
-            throw IOException("Item already exists!")
+        locked {
+            init() // initialise the directory before creating files
+
+            if (lfnMap.containsKey(name.toLowerCase(Locale.getDefault())))
+                throw IOException("Item already exists!")
 
-        init() // initialise the directory before creating files
+            // alloc completely new chain
+            val result = addDirectory(name, fat.alloc(arrayOf(), 1)[0])
+            // write changes immediately to disk
+            write()
+
+            return result
+        }
+    }
 
-        val shortName = ShortNameGenerator.generateShortName(name, shortNameMap.keys)
+    /**
+     * Adds a new directory entry without writing this directory. The dot and
+     * dotdot entries of the new directory are written immediately.
+     *
+     * @param name
+     * The name of the directory.
+     * @param startCluster
+     * The already allocated start cluster of the directory.
+     * @return The new directory.
+     * @throws IOException
+     * If writing the new directory fails.
+     */
+    @Throws(IOException::class)
+    private fun addDirectory(name: String, startCluster: Long): FatDirectory {
+        val shortName = ShortNameGenerator.generateShortName(name, shortNames)
 
         val entry = FatLfnDirectoryEntry(name, shortName)
         entry.setDirectory()
-        // alloc completely new chain
-        val newStartCluster = fat.alloc(arrayOf(), 1)[0]
-        entry.startCluster = newStartCluster
+        entry.startCluster = startCluster
 
         Log.d(TAG, "adding entry: $entry with short name: $shortName")
         addEntry(entry, entry.actualEntry)
-        // write changes immediately to disk
-        write()
 
         val result = FatDirectory(fs, blockDevice, fat, bootSector, entry, this)
         result.hasBeenInited = true
 
         result.entries = ArrayList() // initialise entries before adding sub-directories
+        // the newly allocated cluster contains garbage, clear it completely
+        result.chain = ClusterChain(startCluster, blockDevice, fat, bootSector,
+                fs.mountOptions.maxClustersPerWrite)
+        result.dirtySlots.set(0, (result.chain.length / FatDirectoryEntry.SIZE).toInt())
 
         // first create the dot entry which points to the dir just created
         val dotEntry = FatLfnDirectoryEntry(null, ShortName(".", ""))
         dotEntry.setDirectory()
-        dotEntry.startCluster = newStartCluster
+        dotEntry.startCluster = startCluster
         FatLfnDirectoryEntry.copyDateTime(entry, dotEntry)
         result.addEntry(dotEntry, dotEntry.actualEntry)
 
@@ -367,10 +885,201 @@ internal constructor(
         // write changes immediately to disk
         result.write()
 
-        fs.fileCache[result.absolutePath] = result
+        synchronized(fs.fileCache) { fs.fileCache[result.absolutePath] = result }
         return result
     }
 
+    @Throws(IOException::class)
+    override fun beginTransaction(): DirectoryTransaction {
+        locked {
+            init()
+            return Transaction()
+        }
+    }
+
+    /**
+     * Applies all changes to the entries in memory and writes the directory
+     * once on commit. The start clusters for all new items are allocated at
+     * once using [FAT.allocChains].
+     *
+     *
+     * The directory may change between adding an operation and the commit,
+     * so the names are checked again against the current entries first. If
+     * an operation or writing the directory fails, the changes to the
+     * entries are undone and the allocated clusters are freed. Lengths of
+     * files are changed right away and set back on failure, the contents cut
+     * off by shrinking a file are not restored. The transaction is empty
+     * after every commit, successful or not.
+     */
+    private inner class Transaction : DirectoryTransaction {
+        private val names = HashSet<String>(lfnMap.keys)
+        private val operations = ArrayList<TransactionOperation>()
+        private var createCount = 0
+        private var deleteCount = 0
+
+        @Throws(IOException::class)
+        private fun add(names: MutableSet<String>, name: String) {
+            if (!names.add(name.toLowerCase(Locale.getDefault())))
+                throw IOException("Item already exists!")
+        }
+
+        @Throws(IOException::class)
+        private fun remove(names: MutableSet<String>, name: String) {
+            if (!names.remove(name.toLowerCase(Locale.getDefault())))
+                throw IOException("Item does not exist!")
+        }
+
+        @Throws(IOException::class)
+        private fun rename(names: MutableSet<String>, name: String, newName: String) {
+            val key = name.toLowerCase(Locale.getDefault())
+            val newKey = newName.toLowerCase(Locale.getDefault())
+            // check both names before changing the set
+            if (!names.contains(key))
+                throw IOException("Item does not exist!")
+            if (newKey != key && names.contains(newKey))
+                throw IOException("Item already exists!")
+            names.remove(key)
+            names.add(newKey)
+        }
+
+        @Throws(IOException::class)
+        private fun contains(names: Set<String>, name: String) {
+            if (!names.contains(name.toLowerCase(Locale.getDefault())))
+                throw IOException("Item does not exist!")
+        }
+
+        @Throws(IOException::class)
+        private fun get(name: String): FatLfnDirectoryEntry {
+            return lfnMap[name.toLowerCase(Locale.getDefault())]
+                    ?: throw IOException("Item does not exist!")
+        }
+
+        @Throws(IOException::class)
+        private fun stage(validate: (MutableSet<String>) -> Unit, apply: (CommitState) -> Unit) {
+            validate(names)
+            operations.add(TransactionOperation(validate, apply))
+        }
+
+        /**
+         * Removes a new item again when the commit fails.
+         */
+        private fun undoCreate(state: CommitState, name: String) {
+            state.undo.add { removeDeleted(lfnMap.getValue(name.toLowerCase(Locale.getDefault()))) }
+        }
+
+        @Throws(IOException::class)
+        override fun createFile(name: String) {
+            stage({ add(it, name) }) { state ->
+                state.created.add(addFile(name, state.clusters.next()))
+                undoCreate(state, name)
+            }
+            createCount++
+        }
+
+        @Throws(IOException::class)
+        override fun createDirectory(name: String) {
+            stage({ add(it, name) }) { state ->
+                state.created.add(addDirectory(name, state.clusters.next()))
+                undoCreate(state, name)
+            }
+            createCount++
+        }
+
+        @Throws(IOException::class)
+        override fun delete(name: String) {
+            stage({ remove(it, name) }) { state ->
+                val entry = get(name)
+                collectDeleted(entry, state.freedChains, state.deletedInUse)
+                state.undo.add(removeDeleted(entry))
+            }
+            deleteCount++
+        }
+
+        @Throws(IOException::class)
+        override fun rename(name: String, newName: String) {
+            stage({ rename(it, name, newName) }) { state ->
+                val entry = get(name)
+                val oldName = entry.name
+                changeName(entry, newName)
+                state.undo.add { changeName(entry, oldName) }
+            }
+        }
+
+        @Throws(IOException::class)
+        override fun setLength(name: String, length: Long) {
+            stage({ contains(it, name) }) { state ->
+                val entry = get(name)
+                val file = getFile(entry)
+                val oldLength = file.length
+                file.length = length
+                state.undo.add { file.length = oldLength }
+                markDirty(entry)
+            }
+        }
+
+        @Throws(IOException::class)
+        override fun commit(): List<UsbFile> {
+            // deleting changes whole directory trees, like in delete()
+            return if (deleteCount > 0) {
+                fs.treeLock.write { commitLocked() }
+            } else {
+                commitLocked()
+            }
+        }
+
+        @Throws(IOException::class)
+        private fun commitLocked(): List<UsbFile> {
+            locked {
+                try {
+                    init()
+                    val current = HashSet<String>(lfnMap.keys)
+                    operations.forEach { it.validate(current) }
+
+                    val clusters = if (createCount > 0) fat.allocChains(createCount) else arrayOf()
+                    val state = CommitState(clusters.iterator())
+                    try {
+                        operations.forEach { it.apply(state) }
+                        write()
+                    } catch (e: Exception) {
+                        rollback(state, clusters)
+                        throw e
+                    }
+
+                    // free the clusters after the entries are gone from the disk
+                    releaseDeleted(state.deletedInUse, state.freedChains)
+                    fat.freeChains(state.freedChains)
+                    return state.created
+                } finally {
+                    operations.clear()
+                    createCount = 0
+                    deleteCount = 0
+                    names.clear()
+                    names.addAll(lfnMap.keys)
+                }
+            }
+        }
+
+        /**
+         * Undoes the applied operations in reverse order and frees the
+         * clusters allocated for new items. Failures are only logged, so
+         * that the original exception reaches the caller.
+         */
+        private fun rollback(state: CommitState, clusters: Array<Long>) {
+            for (undo in state.undo.asReversed()) {
+                try {
+                    undo()
+                } catch (e: Exception) {
+                    Log.e(TAG, "error undoing transaction operation", e)
+                }
+            }
+            try {
+                fat.freeChains(clusters.map { arrayOf(it) })
+            } catch (e: IOException) {
+                Log.e(TAG, "error freeing clusters of transaction", e)
+            }
+        }
+    }
+
     override fun createdAt(): Long {
         check(!isRoot) { "root dir!" }
         return entry!!.actualEntry.createdDateTime
@@ -388,44 +1097,187 @@ internal constructor(
 
     @Throws(IOException::class)
     override fun list(): Array<String> {
-        init()
-        val list = ArrayList<String>(entries!!.size)
-        for (entry in entries!!) {
-            val name = entry.name
-            if (name != "." && name != "..") {
-                list.add(name)
+        locked {
+            init()
+            val list = ArrayList<String>(entries!!.size)
+            for (entry in entries!!) {
+                val name = entry.name
+                if (name != "." && name != "..") {
+                    list.add(name)
+                }
             }
-        }
 
-        return list.toTypedArray()
+            return list.toTypedArray()
+        }
     }
 
     @Throws(IOException::class)
     override fun listFiles(): Array<UsbFile> {
-        init()
-        val list = ArrayList<UsbFile>(entries!!.size)
-        for (entry in entries!!) {
-            val name = entry.name
-            if (name == "." || name == "..")
-                continue
+        locked {
+            init()
+            val list = ArrayList<UsbFile>(entries!!.size)
+            for (entry in entries!!) {
+                val name = entry.name
+                if (name == "." || name == "..")
+                    continue
+
+                list.add(getFile(entry))
+            }
 
-            val entryAbsolutePath = if (isRoot) {
-                UsbFile.separator + entry.name
-            } else {
-                absolutePath + UsbFile.separator + entry.name
+            return list.toTypedArray()
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun listEntries(): DirectoryListing {
+        locked {
+            init()
+            val listing = DirectoryListing(this, entries!!.size)
+            for (entry in entries!!) {
+                val name = entry.name
+                if (name == "." || name == "..")
+                    continue
+
+                addTo(listing, entry)
+            }
+
+            return listing
+        }
+    }
+
+    /**
+     * Returns the requested page from the index for the sort key. The index
+     * is created on the first request and then kept up to date, so getting a
+     * page only costs the binary searches done when entries change.
+     */
+    @Throws(IOException::class)
+    override fun listEntries(sortKey: SortKey, descending: Boolean, offset: Int, limit: Int): DirectoryListing {
+        locked {
+            init()
+            val index = getSortIndex(sortKey)
+            val range = DirectoryListing.pageRange(index.size, descending, offset, limit)
+            val listing = DirectoryListing(this, range.count())
+            for (position in range) {
+                addTo(listing, index[position].lfnEntry)
+            }
+
+            return listing
+        }
+    }
+
+    private fun addTo(listing: DirectoryListing, lfnEntry: FatLfnDirectoryEntry) {
+        val actualEntry = lfnEntry.actualEntry
+        listing.add(lfnEntry.name, actualEntry.attributes,
+                if (actualEntry.isDirectory) 0 else actualEntry.fileSize,
+                actualEntry.createdDateTime, actualEntry.lastModifiedDateTime,
+                actualEntry.lastAccessedDateTime)
+    }
+
+    /**
+     * Returns the files and directories of this directory while reading it.
+     * Only the clusters of the directory which are needed to produce the
+     * next element are read, thus the first elements are available after
+     * reading the first cluster.
+     */
+    override fun fileSequence(): Sequence<UsbFile> = sequence {
+        var index = 0
+        while (true) {
+            // the lock is not held while the caller processes the files
+            val files = ArrayList<UsbFile>()
+            val finished = locked {
+                initChain()
+                if (index == entries!!.size && !hasBeenInited) {
+                    readNextCluster()
+                }
+                while (index < entries!!.size) {
+                    val entry = entries!![index++]
+                    if (entry.name != "." && entry.name != "..") {
+                        files.add(getFile(entry))
+                    }
+                }
+                hasBeenInited && index == entries!!.size
+            }
+
+            yieldAll(files)
+            if (finished) {
+                break
+            }
+        }
+    }
+
+    /**
+     * Returns the absolute path of an item with the given name in this
+     * directory.
+     */
+    private fun childPath(name: String): String {
+        return if (isRoot) {
+            UsbFile.separator + name
+        } else {
+            absolutePath + UsbFile.separator + name
+        }
+    }
+
+    /**
+     * Resolves the path using the path cache of the file system.
+     */
+    @Throws(IOException::class)
+    override fun search(path: String): UsbFile? {
+        if (isRoot && path == UsbFile.separator) {
+            return this
+        }
+
+        // same normalization as in AbstractUsbFile.search
+        var relativePath = path
+        if (isRoot && relativePath.startsWith(UsbFile.separator)) {
+            relativePath = relativePath.substring(1)
+        }
+        if (relativePath.endsWith(UsbFile.separator)) {
+            relativePath = relativePath.substring(0, relativePath.length - 1)
+        }
+
+        return fs.pathCache.getOrResolve(childPath(relativePath)) { super.search(path) }
+    }
+
+    /**
+     * Looks up the name in [.lfnMap]. If the directory has not been read
+     * completely, only the clusters up to the one containing the name are
+     * read.
+     */
+    @Throws(IOException::class)
+    override fun lookup(name: String): UsbFile? {
+        locked {
+            if (name == "." || name == "..")
+                return null
+
+            initChain()
+            val key = name.toLowerCase(Locale.getDefault())
+            var entry = lfnMap[key]
+            while (entry == null && !hasBeenInited) {
+                readNextCluster()
+                entry = lfnMap[key]
             }
 
-            val file = when {
-                fs.fileCache[entryAbsolutePath] != null -> fs.fileCache[entryAbsolutePath]!!
+            // names are compared case sensitive, like the default implementation does
+            return if (entry != null && entry.name == name) getFile(entry) else null
+        }
+    }
+
+    /**
+     * Returns the file or directory for the given entry of this directory,
+     * either from the file cache of the file system or newly created.
+     */
+    private fun getFile(entry: FatLfnDirectoryEntry): UsbFile {
+        val entryAbsolutePath = childPath(entry.name)
+
+        synchronized(fs.fileCache) {
+            val file = fs.fileCache[entryAbsolutePath] ?: when {
                 entry.isDirectory -> FatDirectory(fs, blockDevice, fat, bootSector, entry, this)
-                else -> FatFile(blockDevice, fat, bootSector, entry, this)
+                else -> FatFile(blockDevice, fat, bootSector, entry, this, fs.mountOptions)
             }
 
             fs.fileCache[entryAbsolutePath] = file
-            list.add(file)
+            return file
         }
-
-        return list.toTypedArray()
     }
 
     @Throws(IOException::class)
@@ -450,26 +1302,29 @@ internal constructor(
 
     @Throws(IOException::class)
     override fun moveTo(destination: UsbFile) {
-        check(!isRoot) { "cannot move root dir!" }
-        check(destination.isDirectory) { "destination cannot be a file!" }
-        check(destination is FatDirectory) { "cannot move between different filesystems!" }
+        fs.treeLock.write {
+            check(!isRoot) { "cannot move root dir!" }
+            check(destination.isDirectory) { "destination cannot be a file!" }
+            check(destination is FatDirectory) { "cannot move between different filesystems!" }
 
-        // TODO check if destination is really on the same physical device or
-        // partition!
+            // TODO check if destination is really on the same physical device or
+            // partition!
 
-        if (destination.lfnMap.containsKey(entry!!.name.toLowerCase(Locale.getDefault())))
-            throw IOException("item already exists in destination!")
+            init()
+            destination.init()
 
-        init()
-        destination.init()
+            if (destination.lfnMap.containsKey(entry!!.name.toLowerCase(Locale.getDefault())))
+                throw IOException("item already exists in destination!")
 
-        // now the actual magic happens!
-        parent!!.removeEntry(entry)
-        destination.addEntry(entry!!, entry!!.actualEntry)
+            // now the actual magic happens!
+            updateFileCache(absolutePath, destination.childPath(entry!!.name), true)
+            parent!!.removeEntry(entry)
+            destination.addEntry(entry!!, entry!!.actualEntry)
 
-        parent!!.write()
-        destination.write()
-        parent = destination
+            parent!!.write()
+            destination.write()
+            parent = destination
+        }
     }
 
     /**
@@ -492,40 +1347,198 @@ internal constructor(
      */
     @Throws(IOException::class)
     internal fun move(entry: FatLfnDirectoryEntry, destination: UsbFile) {
-        check(destination.isDirectory) { "destination cannot be a file!" }
-        check(destination is FatDirectory) { "cannot move between different filesystems!" }
+        fs.treeLock.write {
+            check(destination.isDirectory) { "destination cannot be a file!" }
+            check(destination is FatDirectory) { "cannot move between different filesystems!" }
 
-        // TODO check if destination is really on the same physical device or
-        // partition!
+            // TODO check if destination is really on the same physical device or
+            // partition!
 
-        if (destination.lfnMap.containsKey(entry.name.toLowerCase(Locale.getDefault())))
-            throw IOException("item already exists in destination!")
+            init()
+            destination.init()
 
-        init()
-        destination.init()
+            if (destination.lfnMap.containsKey(entry.name.toLowerCase(Locale.getDefault())))
+                throw IOException("item already exists in destination!")
 
-        // now the actual magic happens!
-        removeEntry(entry)
-        destination.addEntry(entry, entry.actualEntry)
+            // now the actual magic happens!
+            updateFileCache(childPath(entry.name), destination.childPath(entry.name), entry.isDirectory)
+            removeEntry(entry)
+            destination.addEntry(entry, entry.actualEntry)
 
-        write()
-        destination.write()
+            write()
+            destination.write()
+        }
     }
 
     @Throws(IOException::class)
     override fun delete() {
-        check(!isRoot) { "Root dir cannot be deleted!" }
+        fs.treeLock.write {
+            check(!isRoot) { "Root dir cannot be deleted!" }
+
+            val chains = ArrayList<Array<Long>>()
+            val inUse = arrayListOf<UsbFile>(this)
+            collectChildren(chains, inUse)
+
+            val parent = parent!!
+            parent.locked {
+                val undo = parent.removeDeleted(entry!!)
+                try {
+                    parent.write()
+                } catch (e: IOException) {
+                    undo()
+                    throw e
+                }
+            }
+
+            releaseDeleted(inUse, chains)
+            fat.freeChains(chains)
+        }
+    }
+
+    /**
+     * Collects what has to be freed when the item with the given entry of
+     * this directory is deleted, including everything below it, so that all
+     * clusters can be freed at once using [FAT.freeChains].
+     *
+     *
+     * No instances are created for the items. The chains of items which are
+     * not in the file cache are read from the start clusters of their
+     * entries, directories are read through a temporary instance. Cached
+     * items may be in use, they are added to inUse and their chains are only
+     * detached by [releaseDeleted] after the entry has been removed from the
+     * disk.
+     *
+     * @param lfnEntry
+     * The entry of the item.
+     * @param chains
+     * The list the chains are added to.
+     * @param inUse
+     * The list the cached items are added to.
+     * @throws IOException
+     * If reading from the device fails.
+     */
+    @Throws(IOException::class)
+    private fun collectDeleted(lfnEntry: FatLfnDirectoryEntry, chains: MutableList<Array<Long>>,
+                               inUse: MutableList<UsbFile>) {
+        val file = synchronized(fs.fileCache) { fs.fileCache[childPath(lfnEntry.name)] }
+        when {
+            file != null -> {
+                inUse.add(file)
+                if (file is FatDirectory) {
+                    file.collectChildren(chains, inUse)
+                }
+            }
+            lfnEntry.isDirectory -> {
+                val directory = FatDirectory(fs, blockDevice, fat, bootSector, lfnEntry, this)
+                directory.collectChildren(chains, inUse)
+                chains.add(directory.chain.detach())
+            }
+            else -> chains.add(fat.getChain(lfnEntry.startCluster))
+        }
+    }
+
+    /**
+     * Calls [collectDeleted] for every item in this directory.
+     */
+    @Throws(IOException::class)
+    private fun collectChildren(chains: MutableList<Array<Long>>, inUse: MutableList<UsbFile>) {
+        locked {
+            init()
+            for (lfnEntry in entries!!) {
+                val name = lfnEntry.name
+                if (name == "." || name == "..")
+                    continue
+
+                collectDeleted(lfnEntry, chains, inUse)
+            }
+        }
+    }
+
+    /**
+     * Removes the entry of a deleted item like [deleteEntry], without
+     * writing the directory.
+     *
+     * @param lfnEntry
+     * The entry to remove.
+     * @return An action which adds the entry and the cached items again, in
+     * case writing the directory fails.
+     */
+    private fun removeDeleted(lfnEntry: FatLfnDirectoryEntry): () -> Unit {
+        locked {
+            val removed = updateFileCache(childPath(lfnEntry.name), null, lfnEntry.isDirectory)
+            removeEntry(lfnEntry)
+            return {
+                addEntry(lfnEntry, lfnEntry.actualEntry)
+                synchronized(fs.fileCache) {
+                    for ((path, file) in removed) {
+                        fs.fileCache[path] = file
+                    }
+                }
+            }
+        }
+    }
 
-        init()
-        val subElements = listFiles()
+    /**
+     * Detaches the chains of deleted items which are still in use, after
+     * their entries have been removed from the disk. Further access to the
+     * items fails instead of using clusters which may already belong to
+     * other items.
+     *
+     * @param inUse
+     * The items collected by [collectDeleted].
+     * @param chains
+     * The list the chains are added to.
+     * @throws IOException
+     * If reading from the FAT fails.
+     */
+    @Throws(IOException::class)
+    private fun releaseDeleted(inUse: List<UsbFile>, chains: MutableList<Array<Long>>) {
+        for (file in inUse) {
+            when (file) {
+                is FatDirectory -> chains.add(file.detachChain())
+                is FatFile -> chains.add(file.detachChain())
+            }
+        }
+    }
 
-        for (file in subElements) {
-            file.delete()
+    /**
+     * Empties the cluster chain of this directory without changing the FAT
+     * and marks the directory as deleted.
+     *
+     * @return The clusters of the directory.
+     * @throws IOException
+     * If reading from the FAT fails.
+     */
+    @Throws(IOException::class)
+    private fun detachChain(): Array<Long> {
+        locked {
+            initChain()
+            deleted = true
+            return chain.detach()
         }
+    }
+
+    /**
+     * A change staged in a [Transaction]. validate checks the names used by
+     * the change against a set of names and updates the set, apply makes
+     * the change.
+     */
+    private class TransactionOperation(val validate: (MutableSet<String>) -> Unit,
+                                       val apply: (CommitState) -> Unit)
 
-        parent!!.removeEntry(entry)
-        parent!!.write()
-        chain.length = 0
+    /**
+     * The state of a running [Transaction.commit].
+     *
+     * @property clusters The start clusters for the new items.
+     */
+    private class CommitState(val clusters: Iterator<Long>) {
+        val created = ArrayList<UsbFile>()
+        /**
+         * Actions undoing the applied operations.
+         */
+        val undo = ArrayList<() -> Unit>()
+        val freedChains = ArrayList<Array<Long>>()
+        val deletedInUse = ArrayList<UsbFile>()
     }
 
     companion object {
@@ -552,8 +1565,10 @@ internal constructor(
                               bootSector: Fat32BootSector): FatDirectory {
             val result = FatDirectory(fs, blockDevice, fat, bootSector, null, null)
             result.chain = ClusterChain(bootSector.rootDirStartCluster, blockDevice, fat,
-                    bootSector)
-            result.init() // init calls readEntries
+                    bootSector, fs.mountOptions.maxClustersPerWrite)
+            // the remaining clusters are read when they are needed
+            result.initChain()
+            result.readNextCluster()
             return result
         }
     }
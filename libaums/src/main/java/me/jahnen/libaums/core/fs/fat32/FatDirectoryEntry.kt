@@ -112,6 +112,13 @@ internal class FatDirectoryEntry
     private val flags: Int
         get() = data.get(ATTR_OFF).toInt()
 
+    /**
+     * The read only, hidden, system, directory and archive flags of this
+     * entry, matching the ATTR_ constants of DirectoryListing.
+     */
+    val attributes: Int
+        get() = flags and (FLAG_READONLY or FLAG_HIDDEN or FLAG_SYSTEM or FLAG_DIRECTORY or FLAG_ARCHIVE)
+
     val isShortNameLowerCase: Boolean
         get() = data.get(SHORTNAME_CASE_OFF) and 0x8.toByte() != 0.toByte()
 
@@ -601,6 +608,7 @@ internal class FatDirectoryEntry
             calendar.set(Calendar.HOUR_OF_DAY, time shr 11)
             calendar.set(Calendar.MINUTE, time shr 5 and 0x3f)
             calendar.set(Calendar.SECOND, (time and 0x1f) * 2)
+            calendar.set(Calendar.MILLISECOND, 0)
 
             return calendar.timeInMillis
         }
@@ -19,10 +19,28 @@ package me.jahnen.libaums.core.fs.fat32
 
 import me.jahnen.libaums.core.driver.BlockDeviceDriver
 import me.jahnen.libaums.core.fs.AbstractUsbFile
+import me.jahnen.libaums.core.fs.IoQueue
+import me.jahnen.libaums.core.fs.MountOptions
+import me.jahnen.libaums.core.fs.TimestampPolicy
 import me.jahnen.libaums.core.fs.UsbFile
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
 
+/**
+ * A file in a FAT32 file system.
+ *
+ *
+ * Several threads can read the file at the same time, writing and changing
+ * the length are exclusive. The entry in the parent directory is only
+ * changed while holding the monitor of the entry, because reading updates the
+ * last access time. The parent directory serializes the entry while holding
+ * the monitor as well, so it cannot use the lock of the file. The monitor
+ * only guards the bytes of the entry in memory, no device I/O happens while
+ * it is held. See [Fat32FileSystem] for the locking order.
+ */
 class FatFile
 /**
  * Constructs a new file with the given information.
@@ -37,10 +55,41 @@ class FatFile
  * The corresponding entry in a FAT directory.
  * @param parent
  * The parent directory of the newly constructed file.
+ * @param mountOptions
+ * The options of the file system, for example when to update the last
+ * access and modification times.
  */
 internal constructor(private val blockDevice: BlockDeviceDriver, private val fat: FAT, private val bootSector: Fat32BootSector,
-                    private val entry: FatLfnDirectoryEntry, override var parent: FatDirectory?) : AbstractUsbFile() {
-    private lateinit var chain: ClusterChain
+                    private val entry: FatLfnDirectoryEntry, @Volatile override var parent: FatDirectory?,
+                    private val mountOptions: MountOptions) : AbstractUsbFile() {
+    private val timestampPolicy = mountOptions.timestampPolicy
+    private val lock = ReentrantReadWriteLock()
+    @Volatile
+    private var chain: ClusterChain? = null
+    /**
+     * True if the entry has been changed since it has been written to the
+     * parent directory the last time.
+     */
+    @Volatile
+    private var entryChanged = false
+    /**
+     * True if the last access time has already been considered since the
+     * file has been closed the last time.
+     */
+    @Volatile
+    private var accessTimeUpdated = false
+    /**
+     * True if the file has been written since it has been closed the last
+     * time and the last modification time is only set when closing.
+     */
+    private var modifiedSinceClose = false
+    /**
+     * True after the file has been deleted together with the directory
+     * containing it while it was in use. Its clusters may already belong to
+     * other items.
+     */
+    @Volatile
+    private var deleted = false
 
     override val isDirectory: Boolean
         get() = false
@@ -54,25 +103,33 @@ internal constructor(private val blockDevice: BlockDeviceDriver, private val fat
         get() = entry.fileSize
         @Throws(IOException::class)
         set(newLength) {
-            initChain()
-            chain.length = newLength
-            entry.fileSize = newLength
+            lock.write {
+                checkNotDeleted()
+                initChain().length = newLength
+                synchronized(entry) { entry.fileSize = newLength }
+                entryChanged = true
+            }
         }
 
     override val isRoot: Boolean
         get() = false
 
+    override val ioQueue: IoQueue
+        get() = parent?.fs?.ioQueue ?: super.ioQueue
+
     /**
      * Initializes the cluster chain to access the contents of the file.
      *
+     * @return The cluster chain.
      * @throws IOException
      * If reading from FAT fails.
      */
     @Throws(IOException::class)
-    private fun initChain() {
-        if (!::chain.isInitialized) {
-            chain = ClusterChain(entry.startCluster, blockDevice, fat, bootSector)
-        }
+    private fun initChain(): ClusterChain {
+        // readers may create the chain at the same time, this is harmless
+        // because only writers, which are exclusive, change the chain
+        return chain ?: ClusterChain(entry.startCluster, blockDevice, fat, bootSector,
+                mountOptions.maxClustersPerWrite).also { chain = it }
     }
 
     override fun createdAt(): Long {
@@ -98,19 +155,66 @@ internal constructor(private val blockDevice: BlockDeviceDriver, private val fat
 
     @Throws(IOException::class)
     override fun read(offset: Long, destination: ByteBuffer) {
-        initChain()
-        entry.setLastAccessedTimeToNow()
-        chain.read(offset, destination)
+        lock.read {
+            checkNotDeleted()
+            val chain = initChain()
+            if (!accessTimeUpdated) {
+                updateLastAccessed()
+            }
+            chain.read(offset, destination)
+        }
+    }
+
+    /**
+     * Sets the last access time to now if the [TimestampPolicy] asks for it.
+     * The entry only needs to be written if the stored value changes, which
+     * for FAT32 happens at most once per day because only the date is stored.
+     * Writing the entry is left to [flush].
+     */
+    private fun updateLastAccessed() {
+        synchronized(entry) {
+            if (accessTimeUpdated) {
+                return
+            }
+            accessTimeUpdated = true
+
+            val actualEntry = entry.actualEntry
+            val update = when (timestampPolicy.accessTime) {
+                TimestampPolicy.AccessTime.ALWAYS -> true
+                TimestampPolicy.AccessTime.RELATIME -> {
+                    val lastAccessed = actualEntry.lastAccessedDateTime
+                    lastAccessed < actualEntry.lastModifiedDateTime ||
+                            System.currentTimeMillis() - lastAccessed >= DAY_MILLIS
+                }
+                TimestampPolicy.AccessTime.NEVER -> false
+            }
+
+            if (update) {
+                val lastAccessed = actualEntry.lastAccessedDateTime
+                entry.setLastAccessedTimeToNow()
+                if (actualEntry.lastAccessedDateTime != lastAccessed) {
+                    entryChanged = true
+                }
+            }
+        }
     }
 
     @Throws(IOException::class)
     override fun write(offset: Long, source: ByteBuffer) {
-        initChain()
-        val length = offset + source.remaining()
-        if (length > this.length)
-            this.length = length
-        entry.setLastModifiedTimeToNow()
-        chain.write(offset, source)
+        lock.write {
+            checkNotDeleted()
+            val chain = initChain()
+            val length = offset + source.remaining()
+            if (length > this.length)
+                this.length = length
+            if (timestampPolicy.lazyModifiedTime) {
+                modifiedSinceClose = true
+            } else {
+                synchronized(entry) { entry.setLastModifiedTimeToNow() }
+                entryChanged = true
+            }
+            chain.write(offset, source)
+        }
     }
 
     @Throws(IOException::class)
@@ -121,11 +225,34 @@ internal constructor(private val blockDevice: BlockDeviceDriver, private val fat
         // the parent directory is responsible for updating the
         // FatDirectoryEntry which
         // contains things like the file size and the date time fields
-        parent!!.write()
+        // the lock is not held while updating the parent, see Fat32FileSystem
+        val changed = lock.write {
+            entryChanged.also { entryChanged = false }
+        }
+        if (changed) {
+            try {
+                parent!!.markDirty(entry)
+                parent!!.write()
+            } catch (e: IOException) {
+                entryChanged = true
+                throw e
+            }
+        }
+        if (mountOptions.syncOnFlush) {
+            blockDevice.flush()
+        }
     }
 
     @Throws(IOException::class)
     override fun close() {
+        lock.write {
+            if (modifiedSinceClose) {
+                synchronized(entry) { entry.setLastModifiedTimeToNow() }
+                entryChanged = true
+                modifiedSinceClose = false
+            }
+            accessTimeUpdated = false
+        }
         flush()
     }
 
@@ -147,10 +274,52 @@ internal constructor(private val blockDevice: BlockDeviceDriver, private val fat
 
     @Throws(IOException::class)
     override fun delete() {
-        initChain()
-        parent!!.removeEntry(entry)
+        parent!!.deleteEntry(entry)
         parent!!.write()
-        chain.length = 0
+        release()
     }
 
+    /**
+     * Frees the cluster chain of this file. The entry in the parent directory
+     * has to be removed separately.
+     *
+     * @throws IOException
+     * If writing to the FAT fails.
+     */
+    @Throws(IOException::class)
+    internal fun release() {
+        lock.write {
+            initChain().length = 0
+        }
+    }
+
+    /**
+     * Empties the cluster chain of this file without changing the FAT, the
+     * returned clusters have to be freed by the caller. The file is marked
+     * as deleted, reading, writing and changing the length fail afterwards.
+     *
+     * @return The clusters of the file.
+     * @throws IOException
+     * If reading from FAT fails.
+     * @see FAT.freeChains
+     */
+    @Throws(IOException::class)
+    internal fun detachChain(): Array<Long> {
+        lock.write {
+            val chain = initChain()
+            deleted = true
+            return chain.detach()
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun checkNotDeleted() {
+        if (deleted) {
+            throw IOException("File has been deleted!")
+        }
+    }
+
+    companion object {
+        private const val DAY_MILLIS = 24 * 60 * 60 * 1000L
+    }
 }
@@ -0,0 +1,61 @@
+package me.jahnen.libaums.core.fs.fat32
+
+import me.jahnen.libaums.core.fs.UsbFile
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.*
+
+/**
+ * Maps absolute paths to the [UsbFile] instances in use, see
+ * [Fat32FileSystem.fileCache]. The instances are referenced weakly, an entry
+ * stays as long as somebody uses the instance. A [WeakHashMap] cannot be
+ * used for this, it references the keys weakly and the path strings are not
+ * referenced from anywhere else, so entries would vanish with the next
+ * garbage collection.
+ *
+ * The class is not thread safe.
+ */
+internal class FileCache {
+
+    private class Entry(val path: String, file: UsbFile, queue: ReferenceQueue<UsbFile>)
+        : WeakReference<UsbFile>(file, queue)
+
+    private val map = HashMap<String, Entry>()
+    private val queue = ReferenceQueue<UsbFile>()
+
+    operator fun get(path: String): UsbFile? {
+        expunge()
+        return map[path]?.get()
+    }
+
+    operator fun set(path: String, file: UsbFile) {
+        expunge()
+        map[path] = Entry(path, file, queue)
+    }
+
+    fun remove(path: String) {
+        expunge()
+        map.remove(path)
+    }
+
+    /**
+     * Returns the paths and instances of all items which are still in use.
+     */
+    fun entries(): List<Pair<String, UsbFile>> {
+        expunge()
+        return map.values.mapNotNull { entry -> entry.get()?.let { Pair(entry.path, it) } }
+    }
+
+    /**
+     * Removes the entries of collected instances.
+     */
+    private fun expunge() {
+        while (true) {
+            val entry = queue.poll() as Entry? ?: return
+            // the path may already be used by a newer instance
+            if (map[entry.path] === entry) {
+                map.remove(entry.path)
+            }
+        }
+    }
+}
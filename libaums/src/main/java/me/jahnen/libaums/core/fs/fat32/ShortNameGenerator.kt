@@ -87,21 +87,19 @@ internal object ShortNameGenerator {
     }
 
     /**
-     * Generate the next possible hex part for using in SFN. We are using a
-     * similar approach as what Windows 2000 did.
+     * Creates the short name with the given numeric tail. The tail is made up
+     * of four hex digits and one decimal digit after the tilde, like
+     * Windows 2000 did.
      */
-    private fun getNextHexPart(hexPart: String, limit: Int): String? {
-        var hexValue = java.lang.Long.parseLong(hexPart, 16)
-        hexValue += 1
-        val tempHexString = java.lang.Long.toHexString(hexValue)
-        if (tempHexString.length <= limit) {
-            val sb = StringBuilder()
-            for (i in 0 until limit - tempHexString.length) {
-                sb.append("0")
-            }
-            return sb.toString() + tempHexString
+    private fun createShortName(filePrefix: String, tail: Int, extSuffix: String): ShortName {
+        val hexPart = Integer.toHexString(tail % HEX_PART_VALUES)
+        val builder = StringBuilder(8)
+        builder.append(filePrefix)
+        for (i in hexPart.length until 4) {
+            builder.append('0')
         }
-        return null
+        builder.append(hexPart).append('~').append(tail / HEX_PART_VALUES)
+        return ShortName(builder.toString(), extSuffix)
     }
 
     /**
@@ -117,6 +115,22 @@ internal object ShortNameGenerator {
      */
     fun generateShortName(lfnName: String,
                                         existingShortNames: Collection<ShortName>): ShortName {
+        return generateShortName(lfnName, ShortNameIndex(existingShortNames))
+    }
+
+    /**
+     * Generates an 8.3 short name for a given long file name like
+     * [.generateShortName], but uses the index of the directory to find
+     * an unused suffix. Tails which have already been tried for the same
+     * base name are skipped, which makes this nearly constant time.
+     *
+     * @param lfnName
+     * Long file name.
+     * @param index
+     * The short names already existing in the directory.
+     * @return The generated short name.
+     */
+    fun generateShortName(lfnName: String, index: ShortNameIndex): ShortName {
         var lfnName = lfnName
         lfnName = lfnName.toUpperCase(Locale.ROOT).trim { it <= ' ' }
 
@@ -176,37 +190,44 @@ internal object ShortNameGenerator {
             extensionPart.length == 2 -> extSuffix = extensionPart + "0"
         }
 
-        var hexPart = "0000"
-        var tildeDigit = 0
+        val baseName = "$filePrefix.$extSuffix"
+        val firstTail = index.getNextTail(baseName) % MAX_TAILS
+        var tail = firstTail
 
-        var result = ShortName("$filePrefix$hexPart~$tildeDigit", extSuffix)
-        while (containShortName(existingShortNames, result)) {
-            val hexPartNullable = getNextHexPart(hexPart, 4)
-            if (hexPartNullable != null) {
-                hexPart = hexPartNullable
-            } else {
-                if (tildeDigit + 1 < 10) {
-                    tildeDigit += 1
-                    hexPart = "0000"
-                } else {
-                    // This should not happen
-                    break
-                }
+        var result = createShortName(filePrefix, tail, extSuffix)
+        while (result in index) {
+            tail = (tail + 1) % MAX_TAILS
+            if (tail == firstTail) {
+                // This should not happen, a directory cannot hold that many entries
+                break
             }
-            result = ShortName("$filePrefix$hexPart~$tildeDigit", extSuffix)
+            result = createShortName(filePrefix, tail, extSuffix)
         }
+        index.setNextTail(baseName, (tail + 1) % MAX_TAILS)
 
         return result
     }
 
-    private fun containShortName(shortNames: Collection<ShortName>, shortName: ShortName): Boolean {
-        var contain = false
-        for (temp in shortNames) {
-            if (temp.string.equals(shortName.string, ignoreCase = true)) {
-                contain = true
-                break
-            }
-        }
-        return contain
+    /**
+     * Returns the base name and numeric tail of a short name created by
+     * [.createShortName], or null if the short name has no such tail.
+     */
+    internal fun parseTail(name: String, extension: String): Pair<String, Int>? {
+        if (name.length != 8 || name[6] != '~' || name[7] !in '0'..'9')
+            return null
+        val hexPart = name.substring(2, 6)
+        if (hexPart.any { Character.digit(it, 16) == -1 })
+            return null
+        val tail = (name[7] - '0') * HEX_PART_VALUES + Integer.parseInt(hexPart, 16)
+        return Pair("${name.substring(0, 2)}.$extension", tail)
     }
+
+    /**
+     * Number of different values of the four hex digits in the tail.
+     */
+    private const val HEX_PART_VALUES = 0x10000
+    /**
+     * Number of different tails, the decimal digit after the tilde can be 0 to 9.
+     */
+    private const val MAX_TAILS = 10 * HEX_PART_VALUES
 }
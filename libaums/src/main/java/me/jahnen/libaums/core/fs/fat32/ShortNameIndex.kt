@@ -0,0 +1,75 @@
+package me.jahnen.libaums.core.fs.fat32
+
+import java.util.*
+
+/**
+ * Index of the short names used in one directory. It allows checking for
+ * existing short names in constant time and remembers for every base name,
+ * which is the short name prefix and extension without the numeric tail,
+ * the first tail which may still be free. Removing a short name lowers that
+ * tail again, so freed tails are reused. This way generating a unique
+ * short name does not get slower when many long file names in a directory
+ * share the same first characters.
+ *
+ * @see ShortNameGenerator
+ */
+internal class ShortNameIndex() {
+
+    private val names = HashSet<String>()
+    private val nextTails = HashMap<String, Int>()
+
+    /**
+     * Creates an index containing the given short names.
+     *
+     * @param shortNames
+     * The existing short names.
+     */
+    constructor(shortNames: Collection<ShortName>) : this() {
+        shortNames.forEach { add(it) }
+    }
+
+    operator fun contains(shortName: ShortName): Boolean {
+        return names.contains(key(shortName))
+    }
+
+    fun add(shortName: ShortName) {
+        names.add(key(shortName))
+    }
+
+    /**
+     * Removes the short name from the index. If it has a numeric tail, the
+     * tail can be used again for its base name.
+     */
+    fun remove(shortName: ShortName) {
+        val key = key(shortName)
+        if (!names.remove(key))
+            return
+
+        val dot = key.indexOf('.')
+        val (baseName, tail) = (if (dot == -1) ShortNameGenerator.parseTail(key, "")
+                else ShortNameGenerator.parseTail(key.substring(0, dot), key.substring(dot + 1)))
+                ?: return
+        val nextTail = nextTails[baseName] ?: return
+        if (tail < nextTail)
+            nextTails[baseName] = tail
+    }
+
+    /**
+     * Returns the first numeric tail which may be free for the base name.
+     */
+    fun getNextTail(baseName: String): Int {
+        return nextTails[baseName] ?: 0
+    }
+
+    /**
+     * Remembers that all tails before the given one are used for the base
+     * name.
+     */
+    fun setNextTail(baseName: String, tail: Int) {
+        nextTails[baseName] = tail
+    }
+
+    private fun key(shortName: ShortName): String {
+        return shortName.string.toUpperCase(Locale.ROOT)
+    }
+}
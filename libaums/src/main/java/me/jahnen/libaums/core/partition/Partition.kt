@@ -22,6 +22,7 @@ import me.jahnen.libaums.core.driver.BlockDeviceDriver
 import me.jahnen.libaums.core.driver.ByteBlockDevice
 import me.jahnen.libaums.core.fs.FileSystem
 import me.jahnen.libaums.core.fs.FileSystemFactory
+import me.jahnen.libaums.core.fs.MountOptions
 import java.io.IOException
 
 /**
@@ -72,16 +73,20 @@ class Partition(blockDevice: BlockDeviceDriver, entry: PartitionTableEntry) : By
          * @param blockDevice
          * The underlying block device. This block device must already been initialized, see
          * [BlockDeviceDriver.init].
+         * @param options
+         * Options for mounting the file system on the partition.
          * @return The newly created Partition.
          * @throws IOException
          * If reading from the device fails.
          */
         @Throws(IOException::class)
-        fun createPartition(entry: PartitionTableEntry, blockDevice: BlockDeviceDriver): Partition? {
+        @JvmOverloads
+        fun createPartition(entry: PartitionTableEntry, blockDevice: BlockDeviceDriver,
+                            options: MountOptions = MountOptions.DEFAULT): Partition? {
             return try {
                 val partition = Partition(blockDevice, entry)
                 // TODO weird triangle relationship between partiton and fs??
-                val fs = FileSystemFactory.createFileSystem(entry, partition)
+                val fs = FileSystemFactory.createFileSystem(entry, partition, options)
                 partition.fileSystem = fs
                 partition
             } catch (e: FileSystemFactory.UnsupportedFileSystemException) {
@@ -40,9 +40,10 @@ object UsbCommunicationFactory {
             usbDevice: UsbDevice,
             usbInterface: UsbInterface,
             outEndpoint: UsbEndpoint,
-            inEndpoint: UsbEndpoint
+            inEndpoint: UsbEndpoint,
+            type: UnderlyingUsbCommunication = underlyingUsbCommunication
     ): UsbCommunication {
-        when(underlyingUsbCommunication) {
+        when(type) {
             UnderlyingUsbCommunication.DEVICE_CONNECTION_SYNC ->
                 return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
                     JellyBeanMr2Communication(usbManager, usbDevice, usbInterface, outEndpoint, inEndpoint)
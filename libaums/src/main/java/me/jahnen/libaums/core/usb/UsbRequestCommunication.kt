@@ -6,6 +6,8 @@ import androidx.annotation.RequiresApi
 
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
 
 /**
  * Created by magnusja on 21/12/16.
@@ -19,6 +21,11 @@ internal class UsbRequestCommunication(
         inEndpoint: UsbEndpoint
 ) : AndroidUsbCommunication(usbManager, usbDevice, usbInterface, outEndpoint, inEndpoint) {
 
+    /**
+     * Serializes transfers, a lock does not pin the carrier of virtual
+     * threads while waiting for the request.
+     */
+    private val lock = ReentrantLock()
     private val outRequest = UsbRequest().apply { initialize(deviceConnection, outEndpoint) }
     private val inRequest = UsbRequest().apply { initialize(deviceConnection, inEndpoint) }
     private val workaroundBuffer = ByteBuffer.allocate(1024 * 32 * 4)
@@ -64,13 +71,14 @@ internal class UsbRequestCommunication(
     }
 
     
-    @Synchronized
     @Throws(IOException::class)
     override fun bulkOutTransfer(src: ByteBuffer): Int {
-        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            bulkOutTransferApiO(src)
-        } else {
-            bulkOutTransferApiLesserO(src)
+        lock.withLock {
+            return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                bulkOutTransferApiO(src)
+            } else {
+                bulkOutTransferApiLesserO(src)
+            }
         }
     }
 
@@ -113,13 +121,14 @@ internal class UsbRequestCommunication(
         throw IOException("requestWait failed! Request: $request")
     }
 
-    @Synchronized
     @Throws(IOException::class)
     override fun bulkInTransfer(dest: ByteBuffer): Int {
-        return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            bulkInTransferApiO(dest)
-        } else {
-            bulkInTransferApiLesserO(dest)
+        lock.withLock {
+            return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                bulkInTransferApiO(dest)
+            } else {
+                bulkInTransferApiLesserO(dest)
+            }
         }
     }
 }
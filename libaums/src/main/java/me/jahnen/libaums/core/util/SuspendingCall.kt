@@ -0,0 +1,25 @@
+package me.jahnen.libaums.core.util
+
+import java.util.concurrent.Executor
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+import kotlin.coroutines.suspendCoroutine
+
+/**
+ * Runs the blocking call on the executor and suspends the calling coroutine
+ * until it has finished. Only the standard library is used, so that the
+ * library does not depend on kotlinx.coroutines.
+ *
+ * The call cannot be cancelled once it has been handed to the executor.
+ */
+internal suspend fun <T> Executor.call(block: () -> T): T = suspendCoroutine { continuation ->
+    execute {
+        val result = try {
+            block()
+        } catch (e: Throwable) {
+            continuation.resumeWithException(e)
+            return@execute
+        }
+        continuation.resume(result)
+    }
+}
@@ -0,0 +1,154 @@
+package me.jahnen.libaums.core.driver.file;
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriverSuspending;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kotlin.Result;
+import kotlin.Unit;
+import kotlin.coroutines.Continuation;
+import kotlin.coroutines.CoroutineContext;
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.coroutines.intrinsics.IntrinsicsKt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileBlockDeviceDriverTest {
+
+    private static final int BLOCKS = 256;
+
+    private File image;
+
+    @Before
+    public void setUp() throws IOException {
+        image = File.createTempFile("libaums_file_driver_test", ".bin");
+        image.deleteOnExit();
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        byte[] block = new byte[512];
+        for (int i = 0; i < BLOCKS; i++) {
+            block[0] = (byte) i;
+            file.write(block);
+        }
+        file.close();
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    @Test
+    public void directBuffer() throws Exception {
+        FileBlockDeviceDriver driver = new FileBlockDeviceDriver(image, 0, 512,
+                FileBlockDeviceDriver.SyncMode.ON_FLUSH);
+        assertEquals(BLOCKS, driver.getBlocks());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        driver.read(3, buffer);
+        assertEquals(1024, buffer.position());
+        assertEquals(3, buffer.get(0));
+        assertEquals(4, buffer.get(512));
+
+        buffer.clear();
+        buffer.put(0, (byte) 42);
+        driver.write(10, buffer);
+        driver.flush();
+
+        ByteBuffer result = ByteBuffer.allocate(512);
+        driver.read(10, result);
+        assertEquals(42, result.get(0));
+        driver.close();
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        final FileBlockDeviceDriver driver = new FileBlockDeviceDriver(image, 0, 512,
+                FileBlockDeviceDriver.SyncMode.NONE);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            final int thread = i;
+            results.add(executor.submit(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(512);
+                for (int j = 0; j < 1000; j++) {
+                    int block = (thread * 31 + j) % BLOCKS;
+                    buffer.clear();
+                    driver.read(block, buffer);
+                    if (buffer.get(0) != (byte) block) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+        }
+
+        for (Future<Boolean> result : results) {
+            assertEquals(true, result.get());
+        }
+
+        executor.shutdown();
+        driver.close();
+    }
+
+    @Test(timeout = 30000)
+    public void manySuspendedReadsOnFewThreads() throws Exception {
+        final FileBlockDeviceDriver driver = new FileBlockDeviceDriver(image, 0, 512,
+                FileBlockDeviceDriver.SyncMode.NONE);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final int count = 5000;
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger failures = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            final int block = i % BLOCKS;
+            final ByteBuffer buffer = ByteBuffer.allocate(512);
+            Continuation<Unit> continuation = new Continuation<Unit>() {
+                @NotNull
+                @Override
+                public CoroutineContext getContext() {
+                    return EmptyCoroutineContext.INSTANCE;
+                }
+
+                @Override
+                public void resumeWith(@NotNull Object result) {
+                    if (result instanceof Result.Failure
+                            || buffer.position() != 512 || buffer.get(0) != (byte) block) {
+                        failures.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            };
+
+            // the calling thread never blocks, the result is only returned
+            // directly if the read has already finished on the executor
+            Object result = BlockDeviceDriverSuspending.readSuspending(driver, block, buffer,
+                    executor, continuation);
+            if (result != IntrinsicsKt.getCOROUTINE_SUSPENDED()) {
+                continuation.resumeWith(result);
+            }
+        }
+
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        executor.shutdown();
+        driver.close();
+    }
+}
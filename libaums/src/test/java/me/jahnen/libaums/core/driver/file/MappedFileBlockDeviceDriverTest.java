@@ -0,0 +1,103 @@
+package me.jahnen.libaums.core.driver.file;
+
+import me.jahnen.libaums.core.driver.ByteBlockDevice;
+import me.jahnen.libaums.core.fs.UsbFile;
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.fs.fat32.Fat32Formatter;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileBlockDeviceDriverTest {
+
+    private static final long SIZE = 8 * 1024 * 1024;
+
+    private File image;
+    private final List<Closeable> drivers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.create("libaums_mapped_driver_test", SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Closeable driver : drivers) {
+            driver.close();
+        }
+        image.delete();
+    }
+
+    private <T extends Closeable> T open(T driver) {
+        drivers.add(driver);
+        return driver;
+    }
+
+    @Test
+    public void readWriteAcrossWindows() throws Exception {
+        MappedFileBlockDeviceDriver driver = open(new MappedFileBlockDeviceDriver(image, 0, 512, false, 4096, 2));
+        assertEquals(SIZE / 512, driver.getBlocks());
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) (i / 512));
+        }
+        // starts in the middle of the first window and spans three windows
+        driver.write(4, buffer);
+        driver.flush();
+        assertEquals(2, driver.getResidentWindowCount());
+        assertEquals(3, driver.getMappedWindowCount());
+
+        FileBlockDeviceDriver fileDriver = open(new FileBlockDeviceDriver(image));
+        ByteBuffer result = ByteBuffer.allocate(8192);
+        fileDriver.read(4, result);
+        assertEquals(0, result.get(0));
+        assertEquals(15, result.get(8191));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(8192);
+        driver.read(4, direct);
+        direct.flip();
+        result.flip();
+        assertEquals(result, direct);
+    }
+
+    @Test(expected = IOException.class)
+    public void readBeyondEnd() throws Exception {
+        MappedFileBlockDeviceDriver driver = open(new MappedFileBlockDeviceDriver(image));
+        driver.read(SIZE / 512, ByteBuffer.allocate(512));
+    }
+
+    @Test
+    public void mountFat32() throws Exception {
+        MappedFileBlockDeviceDriver driver = open(new MappedFileBlockDeviceDriver(image, 0, 512, false, 1024 * 1024, 4));
+        ByteBlockDevice blockDevice = new ByteBlockDevice(driver);
+        Fat32Formatter.format(blockDevice, new Fat32Formatter.Options(SIZE));
+
+        Fat32FileSystem fs = Fat32FileSystem.read(blockDevice);
+        assertNotNull(fs);
+        UsbFile file = fs.getRootDirectory().createFile("test.txt");
+        file.write(0, ByteBuffer.wrap("mapped".getBytes()));
+        file.close();
+        driver.close();
+
+        MappedFileBlockDeviceDriver readOnly = open(new MappedFileBlockDeviceDriver(image, 0, 512, true));
+        fs = Fat32FileSystem.read(new ByteBlockDevice(readOnly));
+        UsbFile read = fs.getRootDirectory().search("test.txt");
+        assertNotNull(read);
+        assertEquals(6, read.getLength());
+        assertTrue(readOnly.getResidentWindowCount() <= MappedFileBlockDeviceDriver.DEFAULT_MAX_RESIDENT_WINDOWS);
+    }
+}
@@ -0,0 +1,163 @@
+package me.jahnen.libaums.core.driver.file;
+
+import com.sun.net.httpserver.HttpServer;
+
+import me.jahnen.libaums.core.driver.ByteBlockDevice;
+import me.jahnen.libaums.core.fs.MountOptions;
+import me.jahnen.libaums.core.fs.UsbFile;
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RemoteBlockDeviceDriverTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+    private HttpServer server;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_remote_driver_test", SIZE, 0);
+
+        FileBlockDeviceDriver driver = TestImages.openDriver(image);
+        Fat32FileSystem fs = TestImages.mount(driver, MountOptions.DEFAULT);
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        UsbFile test = dir.createFile("test.bin");
+        ByteBuffer content = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < content.capacity(); i++) {
+            content.put(i, (byte) i);
+        }
+        test.write(0, content);
+        test.close();
+        driver.close();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long start = Long.parseLong(bounds[0]);
+            long end = Long.parseLong(bounds[1]);
+            byte[] data = new byte[(int) (end - start + 1)];
+            try (RandomAccessFile raf = new RandomAccessFile(image, "r")) {
+                raf.seek(start);
+                raf.readFully(data);
+            }
+
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+            exchange.sendResponseHeaders(206, data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+        });
+        // claims to be larger than 1 TiB
+        server.createContext("/huge", exchange -> {
+            exchange.getResponseHeaders().add("Content-Range", "bytes 0-0/" + (1L << 41));
+            exchange.sendResponseHeaders(206, 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(0);
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/image");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        image.delete();
+    }
+
+    @Test
+    public void mountFetchesOnlyUsedBlocks() throws Exception {
+        RemoteBlockDeviceDriver driver = new RemoteBlockDeviceDriver(url);
+        driver.init();
+        assertEquals(SIZE / 512, driver.getBlocks());
+
+        Fat32FileSystem fs = Fat32FileSystem.read(new ByteBlockDevice(driver));
+        assertNotNull(fs);
+        UsbFile test = fs.getRootDirectory().search("dir/test.bin");
+        assertNotNull(test);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        test.read(0, buffer);
+        assertEquals((byte) 12345, buffer.get(12345));
+
+        long fetched = driver.getFetchedBytes();
+        assertTrue(fetched < SIZE / 100);
+
+        // everything is cached now
+        fs.getRootDirectory().search("dir/test.bin").read(0, ByteBuffer.allocate(4096));
+        assertEquals(fetched, driver.getFetchedBytes());
+        driver.close();
+    }
+
+    @Test
+    public void writesStayLocal() throws Exception {
+        RemoteBlockDeviceDriver driver = new RemoteBlockDeviceDriver(url);
+        driver.init();
+
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.put(0, (byte) 42);
+        driver.write(20000, buffer);
+
+        ByteBuffer result = ByteBuffer.allocate(512);
+        driver.read(20000, result);
+        assertEquals(42, result.get(0));
+        assertEquals(0, driver.getRequestCount());
+
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        file.seek(20000 * 512);
+        assertEquals(0, file.read());
+        file.close();
+        driver.close();
+    }
+
+    @Test
+    public void sequentialReadAhead() throws Exception {
+        RemoteBlockDeviceDriver driver = new RemoteBlockDeviceDriver(url, 0, 512, null, 64);
+        driver.init();
+
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        for (int i = 0; i < 128; i++) {
+            buffer.clear();
+            driver.read(1000 + i, buffer);
+        }
+
+        // first read and first read ahead, then one request per 64 blocks
+        assertTrue(driver.getRequestCount() <= 4);
+        assertTrue(driver.getFetchedBytes() <= (128 + 64) * 512);
+        driver.close();
+    }
+
+    @Test
+    public void rejectsTooManyBlocks() throws Exception {
+        RemoteBlockDeviceDriver driver = new RemoteBlockDeviceDriver(
+                new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/huge"));
+        try {
+            driver.init();
+            fail("blocks cannot be tracked");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            driver.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package me.jahnen.libaums.core.driver.overlay;
+
+import me.jahnen.libaums.core.driver.ByteBlockDevice;
+import me.jahnen.libaums.core.driver.file.FileBlockDeviceDriver;
+import me.jahnen.libaums.core.fs.UsbFile;
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class OverlayBlockDeviceDriverTest {
+
+    private static final long SIZE = 16 * 1024 * 1024;
+
+    private File image;
+    private File delta;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_overlay_test", SIZE, 0);
+        delta = File.createTempFile("libaums_overlay_delta", ".bin");
+        delta.deleteOnExit();
+
+        Fat32FileSystem fs = TestImages.mount(image);
+        UsbFile file1 = fs.getRootDirectory().createFile("base.txt");
+        file1.write(0, ByteBuffer.wrap("base".getBytes()));
+        file1.close();
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+        delta.delete();
+    }
+
+    private OverlayBlockDeviceDriver createOverlay(boolean fileBacked) throws IOException {
+        return new OverlayBlockDeviceDriver(new FileBlockDeviceDriver(image, 0, 512,
+                FileBlockDeviceDriver.SyncMode.NONE), fileBacked ? delta : null);
+    }
+
+    @Test
+    public void baseIsNeverWritten() throws Exception {
+        byte[] before = Files.readAllBytes(image.toPath());
+
+        OverlayBlockDeviceDriver overlay = createOverlay(false);
+        ByteBuffer buffer = ByteBuffer.allocate(2048);
+        Arrays.fill(buffer.array(), (byte) 7);
+        overlay.write(30003, buffer);
+
+        ByteBuffer result = ByteBuffer.allocate(4096);
+        overlay.read(30001, result);
+        assertEquals(0, result.get(0));
+        assertEquals(7, result.get(1024));
+        assertEquals(7, result.get(3071));
+        assertEquals(0, result.get(3072));
+        assertEquals(4, overlay.getDeltaBlockCount());
+
+        assertArrayEquals(before, Files.readAllBytes(image.toPath()));
+    }
+
+    @Test
+    public void snapshotAndRollbackInMemory() throws Exception {
+        snapshotAndRollback(createOverlay(false));
+    }
+
+    @Test
+    public void snapshotAndRollbackFileBacked() throws Exception {
+        snapshotAndRollback(createOverlay(true));
+        assertEquals(0, delta.length());
+    }
+
+    private void snapshotAndRollback(OverlayBlockDeviceDriver overlay) throws Exception {
+        Fat32FileSystem fs = Fat32FileSystem.read(new ByteBlockDevice(overlay));
+        fs.getRootDirectory().createFile("first.txt").close();
+
+        assertEquals(1, overlay.snapshot());
+        fs = Fat32FileSystem.read(new ByteBlockDevice(overlay));
+        long freeSpace = fs.getFreeSpace();
+        UsbFile file = fs.getRootDirectory().createFile("second.txt");
+        file.write(0, ByteBuffer.allocate(100000));
+        file.close();
+        fs.getRootDirectory().search("base.txt").delete();
+
+        fs = Fat32FileSystem.read(new ByteBlockDevice(overlay));
+        assertNotNull(fs.getRootDirectory().search("second.txt"));
+        assertNull(fs.getRootDirectory().search("base.txt"));
+
+        overlay.rollback();
+        assertEquals(0, overlay.getSnapshotCount());
+        fs = Fat32FileSystem.read(new ByteBlockDevice(overlay));
+        assertEquals(freeSpace, fs.getFreeSpace());
+        assertNotNull(fs.getRootDirectory().search("first.txt"));
+        assertNotNull(fs.getRootDirectory().search("base.txt"));
+        assertNull(fs.getRootDirectory().search("second.txt"));
+
+        overlay.rollback();
+        fs = Fat32FileSystem.read(new ByteBlockDevice(overlay));
+        assertNull(fs.getRootDirectory().search("first.txt"));
+        assertEquals(0, overlay.getDeltaBlockCount());
+        overlay.close();
+    }
+}
@@ -0,0 +1,215 @@
+package me.jahnen.libaums.core.driver.scsi;
+
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriverSuspending;
+import me.jahnen.libaums.core.usb.UsbCommunication;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kotlin.Result;
+import kotlin.Unit;
+import kotlin.coroutines.Continuation;
+import kotlin.coroutines.CoroutineContext;
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.coroutines.intrinsics.IntrinsicsKt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScsiBlockDeviceTest {
+
+    private static final int BLOCKS = 256;
+    private static final int BLOCK_SIZE = 512;
+
+    @Test(timeout = 30000)
+    public void contendedSuspendedReadsDoNotBlockCallers() throws Exception {
+        FakeMassStorage device = new FakeMassStorage();
+        ScsiBlockDevice driver = new ScsiBlockDevice(device, (byte) 0);
+        driver.init();
+        assertEquals(BLOCK_SIZE, driver.getBlockSize());
+        assertEquals(BLOCKS - 1, driver.getBlocks());
+
+        // the first read holds the lock of the driver and waits for the
+        // device, the other threads of the executor wait for the lock
+        device.stall();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final int count = 1000;
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger failures = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            final int block = i % BLOCKS;
+            final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            Continuation<Unit> continuation = new Continuation<Unit>() {
+                @NotNull
+                @Override
+                public CoroutineContext getContext() {
+                    return EmptyCoroutineContext.INSTANCE;
+                }
+
+                @Override
+                public void resumeWith(@NotNull Object result) {
+                    if (result instanceof Result.Failure
+                            || buffer.position() != BLOCK_SIZE || buffer.get(0) != (byte) block) {
+                        failures.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            };
+
+            // no read can finish while the device is stalled, so every call
+            // has to suspend instead of blocking the calling thread
+            assertSame(IntrinsicsKt.getCOROUTINE_SUSPENDED(), BlockDeviceDriverSuspending
+                    .readSuspending(driver, block, buffer, executor, continuation));
+        }
+        assertEquals(count, done.getCount());
+
+        device.resume();
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(0, device.overlaps.get());
+        executor.shutdown();
+    }
+
+    /**
+     * Bulk-only mass storage device answering the commands used by
+     * {@link ScsiBlockDevice}. The data phase of reads can be stalled to simulate a
+     * slow device. Commands which overlap are counted, the driver has to send
+     * them one after another.
+     */
+    private static class FakeMassStorage implements UsbCommunication {
+        private static final int CBW_SIZE = 31;
+        private static final int CSW_SIZE = 13;
+        private static final int CBW_SIGNATURE = 0x43425355;
+        private static final int CSW_SIGNATURE = 0x53425355;
+
+        final AtomicInteger overlaps = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile CountDownLatch stalled = new CountDownLatch(0);
+        private ByteBuffer data;
+        private boolean stallData;
+        private int tag;
+
+        void stall() {
+            stalled = new CountDownLatch(1);
+        }
+
+        void resume() {
+            stalled.countDown();
+        }
+
+        @Override
+        public int bulkOutTransfer(@NotNull ByteBuffer src) {
+            int length = src.remaining();
+            ByteBuffer cbw = src.slice().order(ByteOrder.LITTLE_ENDIAN);
+            src.position(src.limit());
+            if (length != CBW_SIZE || cbw.getInt(0) != CBW_SIGNATURE) {
+                // data phase of a write, not used here
+                return length;
+            }
+
+            if (active.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+            tag = cbw.getInt(4);
+            int transferLength = cbw.getInt(8);
+            cbw.order(ByteOrder.BIG_ENDIAN);
+            data = ByteBuffer.allocate(transferLength);
+            stallData = false;
+            switch (cbw.get(15)) {
+                case 0x12: // inquiry, direct access block device
+                    break;
+                case 0x25: // read capacity
+                    data.putInt(0, BLOCKS - 1);
+                    data.putInt(4, BLOCK_SIZE);
+                    break;
+                case 0x28: // read(10), the first byte of every block is its number
+                    int block = cbw.getInt(17);
+                    for (int i = 0; i < transferLength; i += BLOCK_SIZE) {
+                        data.put(i, (byte) (block + i / BLOCK_SIZE));
+                    }
+                    stallData = true;
+                    break;
+                default:
+                    break;
+            }
+            return length;
+        }
+
+        @Override
+        public int bulkInTransfer(@NotNull ByteBuffer dest) throws IOException {
+            if (data != null && data.hasRemaining()) {
+                if (stallData) {
+                    try {
+                        stalled.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                int count = Math.min(dest.remaining(), data.remaining());
+                ByteBuffer chunk = data.slice();
+                chunk.limit(count);
+                dest.put(chunk);
+                data.position(data.position() + count);
+                return count;
+            }
+
+            ByteBuffer csw = ByteBuffer.allocate(CSW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            csw.putInt(CSW_SIGNATURE).putInt(tag).putInt(0).put((byte) 0);
+            csw.flip();
+            dest.put(csw);
+            data = null;
+            active.decrementAndGet();
+            return CSW_SIZE;
+        }
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index,
+                                   @NotNull byte[] buffer, int length) {
+            return -1;
+        }
+
+        @Override
+        public void resetDevice() {
+        }
+
+        @Override
+        public void clearFeatureHalt(@NotNull UsbEndpoint endpoint) {
+        }
+
+        @NotNull
+        @Override
+        public UsbEndpoint getInEndpoint() {
+            throw new UnsupportedOperationException();
+        }
+
+        @NotNull
+        @Override
+        public UsbEndpoint getOutEndpoint() {
+            throw new UnsupportedOperationException();
+        }
+
+        @NotNull
+        @Override
+        public UsbInterface getUsbInterface() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
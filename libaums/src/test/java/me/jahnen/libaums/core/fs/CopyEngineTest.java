@@ -0,0 +1,166 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.util.TestImages;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CopyEngineTest {
+    private static final long SIZE = 64L * 1024 * 1024;
+
+    private File image;
+    private File local;
+    private FileSystem fs;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_copy_test", SIZE, 4096);
+        fs = TestImages.mount(image);
+
+        local = File.createTempFile("libaums_copy_test", ".local");
+        local.deleteOnExit();
+
+        // several buffers and not a multiple of the cluster size
+        content = new byte[5 * 64 * 1024 + 1234];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 13 + i / 1000);
+        }
+        FileOutputStream out = new FileOutputStream(local);
+        out.write(content);
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+        local.delete();
+    }
+
+    @Test
+    public void copyBetweenLocalAndUsb() throws Exception {
+        CopyEngine engine = new CopyEngine(new CopyEngine.Options(64 * 1024, 2, true));
+        UsbFile root = fs.getRootDirectory();
+
+        final List<Long> progress = new ArrayList<>();
+        UsbFile file = root.createFile("file");
+        assertEquals(content.length, engine.copy(local, file, new CopyEngine.Listener() {
+            @Override
+            public boolean onProgress(long copied, long total) {
+                assertEquals(content.length, total);
+                progress.add(copied);
+                return true;
+            }
+        }));
+        assertEquals(6, progress.size());
+        assertEquals(content.length, (long) progress.get(5));
+        assertEquals(content.length, file.getLength());
+
+        UsbFile copy = root.createFile("copy");
+        assertEquals(content.length, engine.copy(file, copy));
+        assertEquals(content.length, copy.getLength());
+
+        File back = File.createTempFile("libaums_copy_test", ".back");
+        back.deleteOnExit();
+        assertEquals(content.length, engine.copy(copy, back));
+        assertTrue(Arrays.equals(content, read(back)));
+        back.delete();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(content.length, engine.copy(copy, out));
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+    }
+
+    @Test
+    public void copyStreamOfUnknownSize() throws Exception {
+        UsbFile file = fs.getRootDirectory().createFile("file");
+        // overwriting a longer file truncates it
+        file.write(0, ByteBuffer.allocate(content.length + 100000));
+
+        assertEquals(content.length, new CopyEngine().copy(new ByteArrayInputStream(content), file));
+        assertEquals(content.length, file.getLength());
+        ByteBuffer buffer = ByteBuffer.allocate(content.length);
+        file.read(0, buffer);
+        assertTrue(Arrays.equals(content, buffer.array()));
+    }
+
+    @Test
+    public void cancelAndFailures() throws Exception {
+        CopyEngine engine = new CopyEngine(new CopyEngine.Options(64 * 1024, 2));
+        UsbFile root = fs.getRootDirectory();
+
+        try {
+            engine.copy(local, root.createFile("cancelled"), new CopyEngine.Listener() {
+                @Override
+                public boolean onProgress(long copied, long total) {
+                    return copied < 2 * 64 * 1024;
+                }
+            });
+            fail("copy should be cancelled");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        // the preallocated file is shrunk to what has been copied
+        assertEquals(2 * 64 * 1024, root.search("cancelled").getLength());
+
+        InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (++count > 100000) {
+                    throw new IOException("stream failed");
+                }
+                return 0;
+            }
+        };
+        try {
+            engine.copy(failing, root.createFile("failed"), -1, null);
+            fail("copy should fail");
+        } catch (IOException e) {
+            assertEquals("stream failed", e.getMessage());
+        }
+        assertEquals(64 * 1024, root.search("failed").getLength());
+
+        long freeSpace = fs.getFreeSpace();
+        try {
+            engine.copy(failing, root.createFile("announced"), content.length, null);
+            fail("copy should fail");
+        } catch (IOException e) {
+            assertEquals("stream failed", e.getMessage());
+        }
+        assertEquals(0, root.search("announced").getLength());
+        assertEquals(freeSpace, fs.getFreeSpace());
+
+        // the engine can still be used afterwards
+        assertEquals(content.length, engine.copy(local, root.createFile("file")));
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] result = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        int offset = 0;
+        while (offset < result.length) {
+            offset += in.read(result, offset, result.length - offset);
+        }
+        in.close();
+        return result;
+    }
+}
@@ -0,0 +1,131 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.CountingBlockDevice;
+import me.jahnen.libaums.core.util.TestImages;
+
+import kotlin.Unit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IoQueueTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+    private CountingBlockDevice counter;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_io_queue_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        counter = new CountingBlockDevice(TestImages.openDriver(image));
+        return TestImages.mount(counter, MountOptions.DEFAULT);
+    }
+
+    @Test(timeout = 60000)
+    public void queuedReadsAreMerged() throws Exception {
+        Fat32FileSystem fs = mount();
+        final UsbFile root = fs.getRootDirectory();
+        int chunkSize = fs.getChunkSize();
+        UsbFile file = root.createFile("file");
+        file.write(0, ByteBuffer.wrap(content(1, 0, 16 * chunkSize)));
+        file.flush();
+
+        // block the queue so that all reads end up in one batch
+        IoQueue queue = new IoQueue();
+        final CountDownLatch gate = new CountDownLatch(1);
+        queue.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                gate.await();
+                return null;
+            }
+        });
+        // quarter clusters, every read on its own would be a request to the device
+        int size = chunkSize / 4;
+        ByteBuffer[] buffers = new ByteBuffer[16];
+        List<IoFuture<Unit>> futures = new ArrayList<>();
+        for (int i = buffers.length - 1; i >= 0; i--) {
+            buffers[i] = ByteBuffer.allocate(size);
+            futures.add(queue.read(file, (long) i * size, buffers[i]));
+        }
+        final CountDownLatch notified = new CountDownLatch(futures.size());
+        for (IoFuture<Unit> future : futures) {
+            future.addListener(new IoFuture.Listener<Unit>() {
+                @Override
+                public void onDone(IoFuture<Unit> future) {
+                    notified.countDown();
+                }
+            });
+        }
+
+        int readCount = counter.readCount;
+        gate.countDown();
+        for (IoFuture<Unit> future : futures) {
+            future.get();
+        }
+        // listeners may still be running when get() returns
+        assertTrue(notified.await(10, TimeUnit.SECONDS));
+        assertEquals(4, counter.readCount - readCount);
+        ByteBuffer all = ByteBuffer.allocate(4 * chunkSize);
+        for (ByteBuffer buffer : buffers) {
+            assertEquals(0, buffer.remaining());
+            buffer.flip();
+            all.put(buffer);
+        }
+        assertTrue(Arrays.equals(content(1, 0, 4 * chunkSize), all.array()));
+
+        // operations of the file itself run on the queue of the file system
+        ByteBuffer source = ByteBuffer.wrap(content(2, 0, chunkSize));
+        IoFuture<Unit> write = file.writeAsync(16 * chunkSize, source);
+        ByteBuffer destination = ByteBuffer.allocate(chunkSize);
+        IoFuture<Unit> read = file.readAsync(16 * chunkSize, destination);
+        IoFuture<Unit> flush = file.flushAsync();
+        UsbFile[] files = root.listFilesAsync().get();
+        write.get();
+        read.get();
+        flush.get();
+        assertTrue(Arrays.equals(content(2, 0, chunkSize), destination.array()));
+        assertEquals(1, files.length);
+
+        try {
+            file.readAsync(20 * chunkSize, ByteBuffer.allocate(chunkSize)).get();
+            fail("read beyond the end");
+        } catch (ExecutionException e) {
+            assertNotNull(e.getCause());
+        }
+    }
+
+    private static byte[] content(int thread, int index, int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (thread * 31 + index * 7 + i / 512);
+        }
+        return content;
+    }
+}
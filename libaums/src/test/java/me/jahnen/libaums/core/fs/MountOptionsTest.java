@@ -0,0 +1,79 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.CountingBlockDevice;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MountOptionsTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+    private CountingBlockDevice counter;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_mount_options_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        return mount(MountOptions.DEFAULT);
+    }
+
+    private Fat32FileSystem mount(MountOptions options) throws IOException {
+        counter = new CountingBlockDevice(TestImages.openDriver(image));
+        return TestImages.mount(counter, options);
+    }
+
+    @Test
+    public void optionsAreApplied() throws Exception {
+        MountOptions options = new MountOptions(TimestampPolicy.DEFAULT, false,
+                MountOptions.AllocationPolicy.FIRST_FIT, 8, 1, 1, 16);
+        Fat32FileSystem fs = mount(options);
+        assertEquals(options, fs.getMountOptions());
+        assertEquals(16, fs.getPathCache().getMaxSize());
+
+        UsbFile first = fs.getRootDirectory().createFile("first.bin");
+        first.setLength(10 * fs.getChunkSize());
+        first.close();
+        long freeSpace = fs.getFreeSpace();
+        first.delete();
+
+        // the freed clusters at the beginning are used again
+        byte[] data = new byte[5 * fs.getChunkSize()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        UsbFile second = fs.getRootDirectory().createFile("second.bin");
+        second.write(0, ByteBuffer.wrap(data));
+        second.flush();
+        assertEquals(0, counter.flushCount);
+        second.close();
+        assertEquals(freeSpace + 5 * fs.getChunkSize(), fs.getFreeSpace());
+
+        fs = mount();
+        UsbFile read = fs.getRootDirectory().search("second.bin");
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        read.read(0, buffer);
+        assertTrue(Arrays.equals(data, buffer.array()));
+        read.close();
+        assertTrue(counter.flushCount > 0);
+    }
+}
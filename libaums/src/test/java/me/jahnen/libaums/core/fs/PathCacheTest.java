@@ -0,0 +1,102 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.CountingBlockDevice;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathCacheTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+    private CountingBlockDevice counter;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_path_cache_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        counter = new CountingBlockDevice(TestImages.openDriver(image));
+        return TestImages.mount(counter, MountOptions.DEFAULT);
+    }
+
+    @Test
+    public void hitsAndInvalidation() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile root = fs.getRootDirectory();
+        UsbFile dir = root.createDirectory("dir");
+        dir.createDirectory("sub").createFile("file");
+        PathCache cache = fs.getPathCache();
+
+        UsbFile file = root.search("dir/sub/file");
+        assertNotNull(file);
+        assertNull(root.search("dir/missing"));
+        long missCount = cache.getMissCount();
+        long hitCount = cache.getHitCount();
+        long bytesRead = counter.bytesRead;
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(file, root.search("/dir/sub/file"));
+            assertNull(root.search("dir/missing"));
+        }
+        assertEquals(missCount, cache.getMissCount());
+        assertEquals(hitCount + 200, cache.getHitCount());
+        assertEquals(bytesRead, counter.bytesRead);
+        assertTrue(cache.getHitRate() > 0.9f);
+
+        // negative entries are invalidated by creating the item
+        dir.createFile("missing");
+        assertNotNull(root.search("dir/missing"));
+
+        // renaming a directory invalidates everything below
+        dir.search("sub").setName("renamed");
+        assertNull(root.search("dir/sub/file"));
+        assertEquals(file, root.search("dir/renamed/file"));
+
+        file.moveTo(dir);
+        assertNull(root.search("dir/renamed/file"));
+        assertEquals(file, root.search("dir/file"));
+
+        file.delete();
+        assertNull(root.search("dir/file"));
+        dir.search("missing").delete();
+        assertNull(root.search("dir/missing"));
+    }
+
+    @Test
+    public void isBounded() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile root = fs.getRootDirectory();
+        for (int i = 0; i < 2 * PathCache.DEFAULT_MAX_SIZE; i++) {
+            assertNull(root.search("missing-" + i));
+        }
+        PathCache cache = fs.getPathCache();
+        assertEquals(PathCache.DEFAULT_MAX_SIZE, cache.getSize());
+
+        // the oldest paths have been dropped
+        long missCount = cache.getMissCount();
+        root.search("missing-0");
+        assertEquals(missCount + 1, cache.getMissCount());
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,78 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.CountingBlockDevice;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampPolicyTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+    private CountingBlockDevice counter;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_timestamp_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        return mount(TimestampPolicy.DEFAULT);
+    }
+
+    private Fat32FileSystem mount(TimestampPolicy timestampPolicy) throws IOException {
+        counter = new CountingBlockDevice(TestImages.openDriver(image));
+        return TestImages.mount(counter, new MountOptions(timestampPolicy));
+    }
+
+    @Test
+    public void coalescesDirectoryWrites() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile file = fs.getRootDirectory().createFile("stream.bin");
+        file.write(0, ByteBuffer.allocate(4096));
+        file.close();
+
+        long eager = overwrite(mount(), 10);
+        fs = mount(new TimestampPolicy(TimestampPolicy.AccessTime.NEVER, true));
+        long before = System.currentTimeMillis() - 2000;
+        long lazy = overwrite(fs, 10);
+        // the directory is only written once when closing
+        assertEquals(9 * 512, eager - lazy);
+        assertTrue(fs.getRootDirectory().search("stream.bin").lastModified() >= before);
+
+        file = fs.getRootDirectory().search("stream.bin");
+        long lastAccessed = file.lastAccessed();
+        counter.bytesWritten = 0;
+        file.read(0, ByteBuffer.allocate(512));
+        file.close();
+        assertEquals(0, counter.bytesWritten);
+        assertEquals(lastAccessed, file.lastAccessed());
+    }
+
+    private long overwrite(Fat32FileSystem fs, int count) throws IOException {
+        UsbFile file = fs.getRootDirectory().search("stream.bin");
+        counter.bytesWritten = 0;
+        for (int i = 0; i < count; i++) {
+            file.write(0, ByteBuffer.allocate(512));
+            file.flush();
+        }
+        file.close();
+        return counter.bytesWritten;
+    }
+}
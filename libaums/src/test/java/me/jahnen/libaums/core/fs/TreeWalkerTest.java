@@ -0,0 +1,181 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TreeWalkerTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_tree_walker_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        return TestImages.mount(image);
+    }
+
+    @Test
+    public void visitsTreeInParallel() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile tree = fs.getRootDirectory().createDirectory("tree");
+        for (int i = 0; i < 8; i++) {
+            UsbFile dir = tree.createDirectory("dir-" + i);
+            for (int j = 0; j < 3; j++) {
+                DirectoryTransaction transaction = dir.createDirectory("sub-" + j).beginTransaction();
+                for (int k = 0; k < 5; k++) {
+                    transaction.createFile("file-" + k);
+                }
+                transaction.commit();
+            }
+        }
+        tree.createDirectory("skip").createFile("hidden");
+
+        Set<String> sequential = walk(mount(), 1);
+        Set<String> parallel = walk(mount(), 4);
+        assertEquals(8 * 3 * 5 + 8 * 3 + 8 + 1, sequential.size());
+        assertEquals(sequential, parallel);
+        assertTrue(parallel.contains("/tree/dir-7/sub-2/file-4"));
+        assertTrue(parallel.contains("/tree/dir-7/sub-2/"));
+        assertTrue(parallel.contains("/tree/"));
+
+        fs = mount();
+        try {
+            fs.walk(fs.getRootDirectory(), new TreeVisitor() {
+                @Override
+                public boolean preVisitDirectory(UsbFile directory) {
+                    return true;
+                }
+
+                @Override
+                public void visitFile(UsbFile file) throws IOException {
+                    if (file.getName().equals("hidden")) {
+                        throw new IOException("stop");
+                    }
+                }
+
+                @Override
+                public void postVisitDirectory(UsbFile directory, int entryCount, long listTimeNanos) {
+                }
+            }, 4);
+            fail("exception of visitor is not thrown");
+        } catch (IOException e) {
+            assertEquals("stop", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void interruptedWalkKeepsDeviceOpen() throws Exception {
+        final Fat32FileSystem fs = mount();
+        UsbFile root = fs.getRootDirectory();
+        for (int i = 0; i < 4; i++) {
+            root.createDirectory("dir-" + i).createFile("file").write(0, ByteBuffer.allocate(4096));
+        }
+
+        final CountDownLatch visiting = new CountDownLatch(1);
+        final AtomicBoolean release = new AtomicBoolean();
+        final AtomicBoolean visitorRunning = new AtomicBoolean();
+        final List<Throwable> result = new ArrayList<>();
+        Thread walker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fs.walk(fs.getRootDirectory(), new TreeVisitor() {
+                        @Override
+                        public boolean preVisitDirectory(UsbFile directory) {
+                            return true;
+                        }
+
+                        @Override
+                        public void visitFile(UsbFile file) throws IOException {
+                            visitorRunning.set(true);
+                            visiting.countDown();
+                            ByteBuffer buffer = ByteBuffer.allocate(4096);
+                            while (!release.get()) {
+                                buffer.clear();
+                                file.read(0, buffer);
+                            }
+                            visitorRunning.set(false);
+                        }
+
+                        @Override
+                        public void postVisitDirectory(UsbFile directory, int entryCount, long listTimeNanos) {
+                        }
+                    }, 2);
+                    result.add(null);
+                } catch (Throwable e) {
+                    result.add(e);
+                }
+            }
+        });
+        walker.start();
+        visiting.await();
+        walker.interrupt();
+        Thread.sleep(100);
+        release.set(true);
+        walker.join();
+
+        assertTrue(result.get(0) instanceof InterruptedIOException);
+        assertFalse(visitorRunning.get());
+        // the workers have not been interrupted, so the device is still open
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        fs.getRootDirectory().search("dir-0/file").read(0, buffer);
+        assertEquals(4096, buffer.position());
+    }
+
+    /**
+     * Walks the tree below /tree, skipping /tree/skip.
+     *
+     * @return The paths of the files and directories, directories end with a slash.
+     */
+    private static Set<String> walk(Fat32FileSystem fs, int parallelism) throws IOException {
+        final Set<String> paths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        fs.walk(fs.getRootDirectory().search("tree"), new TreeVisitor() {
+            @Override
+            public boolean preVisitDirectory(UsbFile directory) {
+                return !directory.getName().equals("skip");
+            }
+
+            @Override
+            public void visitFile(UsbFile file) {
+                assertTrue(paths.add(file.getAbsolutePath()));
+            }
+
+            @Override
+            public void postVisitDirectory(UsbFile directory, int entryCount, long listTimeNanos) {
+                assertTrue(listTimeNanos >= 0);
+                assertTrue(paths.add(directory.getAbsolutePath() + "/"));
+            }
+        }, parallelism);
+        return paths;
+    }
+}
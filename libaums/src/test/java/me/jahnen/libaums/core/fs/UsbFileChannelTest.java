@@ -0,0 +1,157 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.util.TestImages;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UsbFileChannelTest {
+    private static final long SIZE = 64L * 1024 * 1024;
+
+    private File image;
+    private File local;
+    private FileSystem fs;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_channel_test", SIZE, 4096);
+        fs = TestImages.mount(image);
+
+        local = File.createTempFile("libaums_channel_test", ".local");
+        local.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+        local.delete();
+    }
+
+    @Test
+    public void seekAndPositionalAccess() throws Exception {
+        UsbFileChannel channel = UsbFileStreamFactory.createChannel(
+                fs.getRootDirectory().createFile("file"), fs);
+
+        assertEquals(10, channel.write(ByteBuffer.wrap("0123456789".getBytes())));
+        assertEquals(10, channel.position());
+        assertEquals(10, channel.size());
+
+        channel.position(2);
+        ByteBuffer buffer = ByteBuffer.allocate(3);
+        assertEquals(3, channel.read(buffer));
+        assertEquals("234", new String(buffer.array()));
+        assertEquals(5, channel.position());
+
+        assertEquals(2, channel.write(ByteBuffer.wrap("ab".getBytes()), 8));
+        assertEquals(5, channel.position());
+        buffer = ByteBuffer.allocate(20);
+        assertEquals(10, channel.read(buffer, 0));
+        assertEquals("01234567ab", new String(buffer.array(), 0, 10));
+
+        // reading at or behind the end
+        channel.position(10);
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        assertEquals(-1, channel.read(ByteBuffer.allocate(1), 100));
+
+        channel.truncate(4);
+        assertEquals(4, channel.size());
+        assertEquals(4, channel.position());
+        channel.truncate(100);
+        assertEquals(4, channel.size());
+
+        channel.force(true);
+        channel.close();
+        assertFalse(channel.isOpen());
+        try {
+            channel.position();
+            throw new AssertionError("channel is closed");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+        assertEquals(4, fs.getRootDirectory().search("file").getLength());
+    }
+
+    @Test
+    public void transferFromAndToFileChannel() throws Exception {
+        int chunkSize = fs.getChunkSize();
+        // not a multiple of the cluster size and larger than the transfer buffer
+        byte[] content = new byte[10 * chunkSize + 123];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 7 + i / 4096);
+        }
+        RandomAccessFile file = new RandomAccessFile(local, "rw");
+        file.write(content);
+        file.close();
+
+        long freeSpace = fs.getFreeSpace();
+        UsbFileChannel channel = new UsbFileChannel(fs.getRootDirectory().createFile("copy"),
+                chunkSize, 4 * chunkSize);
+        FileInputStream in = new FileInputStream(local);
+        FileChannel source = in.getChannel();
+        assertEquals(content.length, channel.transferFrom(source, 0, Long.MAX_VALUE));
+        in.close();
+        assertEquals(content.length, channel.size());
+        assertEquals(0, channel.position());
+        assertEquals(freeSpace - 11 * chunkSize, fs.getFreeSpace());
+
+        // a source shorter than count which is not a file channel
+        long appended = channel.transferFrom(Channels.newChannel(new ByteArrayInputStream(
+                new byte[]{1, 2, 3})), content.length, 100);
+        assertEquals(3, appended);
+        assertEquals(content.length + 3, channel.size());
+        channel.truncate(content.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(content.length, channel.transferTo(0, Long.MAX_VALUE, Channels.newChannel(out)));
+        assertTrue(Arrays.equals(content, out.toByteArray()));
+
+        out.reset();
+        assertEquals(100, channel.transferTo(chunkSize - 50, 100, Channels.newChannel(out)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, chunkSize - 50, chunkSize + 50),
+                out.toByteArray()));
+        assertEquals(0, channel.transferTo(content.length, 100, Channels.newChannel(out)));
+        channel.close();
+    }
+
+    @Test
+    public void failedTransferShrinksFile() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(local, "rw");
+        file.setLength(10 * fs.getChunkSize());
+        file.close();
+
+        long freeSpace = fs.getFreeSpace();
+        UsbFileChannel channel = UsbFileStreamFactory.createChannel(
+                fs.getRootDirectory().createFile("file"), fs);
+        // the size of a write only channel is known, but reading fails
+        FileChannel source = FileChannel.open(local.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.transferFrom(source, 0, Long.MAX_VALUE);
+            throw new AssertionError("transfer should fail");
+        } catch (NonReadableChannelException e) {
+            // expected
+        }
+        source.close();
+
+        assertEquals(0, channel.size());
+        assertEquals(freeSpace, fs.getFreeSpace());
+        channel.close();
+    }
+}
@@ -3,8 +3,6 @@ package me.jahnen.libaums.core.fs;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnit;
@@ -13,12 +11,14 @@ import org.mockito.stubbing.Answer;
 
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,17 +30,30 @@ public class UsbFileInputStreamTest {
     @Rule
     public MockitoRule rule = MockitoJUnit.rule();
 
-    @Captor
-    private ArgumentCaptor<Long> longCaptor;
-    @Captor
-    private ArgumentCaptor<ByteBuffer> byteBufferCaptor;
-
     @Mock
     private UsbFile file;
 
+    /**
+     * Offset and length of every read from the file.
+     */
+    private final List<List<Long>> reads = new ArrayList<>();
+
     @Before
     public void setUp() throws Exception {
         when(file.getLength()).thenReturn((long) 123);
+        // every byte contains the lowest byte of its offset
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                long offset = invocation.getArgument(0);
+                ByteBuffer buffer = invocation.getArgument(1);
+                reads.add(Arrays.asList(offset, (long) buffer.remaining()));
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) offset++);
+                }
+                return null;
+            }
+        }).when(file).read(any(Long.class), any(ByteBuffer.class));
     }
 
     @Test(expected = UnsupportedOperationException.class)
@@ -59,56 +72,52 @@ public class UsbFileInputStreamTest {
 
     @Test
     public void readInt() throws Exception {
-
         InputStream is = new UsbFileInputStream(file);
 
-        doAnswer(new Answer<Void>() {
-            @Override
-            public Void answer(InvocationOnMock invocation) throws Throwable {
-                ByteBuffer buffer = invocation.getArgument(1);
-                buffer.put((byte) 1);
-                return null;
-            }
-        }).when(file).read(any(Long.class), any(ByteBuffer.class));
-
         for (int i = 0; i < 20; i++) {
             int b = is.read();
-            assertEquals(1, b);
-            verify(file, times(i + 1)).read(longCaptor.capture(), byteBufferCaptor.capture());
-            assertEquals(i, longCaptor.getValue().longValue());
-            assertNotNull(byteBufferCaptor.getValue());
+            assertEquals(i, b);
         }
+        // the first read fetches the whole cluster, which is the whole file here
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 123L)), reads);
+    }
+
+    @Test
+    public void readIntIsUnsigned() throws Exception {
+        when(file.getLength()).thenReturn((long) 1000);
+        InputStream is = new UsbFileInputStream(file);
+
+        assertEquals(200, is.skip(200));
+        assertEquals(200, is.read());
     }
 
     @Test
     public void read() throws Exception {
         InputStream is = new UsbFileInputStream(file);
 
-        is.read(new byte[50]);
-        verify(file).read(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(0, longCaptor.getValue().longValue());
-        assertEquals(50, byteBufferCaptor.getValue().remaining());
+        byte[] buffer = new byte[50];
+        assertEquals(50, is.read(buffer));
+        assertEquals(0, buffer[0]);
+        assertEquals(49, buffer[49]);
+        assertEquals(50, is.read(buffer));
+        assertEquals(50, buffer[0]);
 
-        is.read(new byte[50]);
-        verify(file, times(2)).read(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(50, longCaptor.getValue().longValue());
-        assertEquals(50, byteBufferCaptor.getValue().remaining());
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 123L)), reads);
     }
 
     @Test
     public void readOffset() throws Exception {
         InputStream is = new UsbFileInputStream(file);
 
-        is.read(new byte[50], 0, 50);
-        verify(file).read(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(0, longCaptor.getValue().longValue());
-        assertEquals(50, byteBufferCaptor.getValue().remaining());
+        byte[] buffer = new byte[50];
+        assertEquals(50, is.read(buffer, 0, 50));
+        assertEquals(30, is.read(buffer, 10, 30));
+        assertEquals(9, buffer[9]);
+        assertEquals(50, buffer[10]);
+        assertEquals(79, buffer[39]);
+        assertEquals(0, is.read(buffer, 0, 0));
 
-        is.read(new byte[50], 10, 30);
-        verify(file, times(2)).read(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(50, longCaptor.getValue().longValue());
-        assertEquals(10, byteBufferCaptor.getValue().position());
-        assertEquals(30, byteBufferCaptor.getValue().remaining());
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 123L)), reads);
     }
 
     @Test
@@ -118,12 +127,12 @@ public class UsbFileInputStreamTest {
         long skipped = is.skip(50);
         assertEquals(50, skipped);
 
-        is.read(new byte[1]);
-        verify(file).read(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(50, longCaptor.getValue().longValue());
+        assertEquals(50, is.read());
+        assertEquals(Collections.singletonList(Arrays.asList(50L, 73L)), reads);
 
         skipped = is.skip(100);
         assertEquals(123 - 50 - 1, skipped);
+        assertEquals(-1, is.read());
     }
 
     @Test
@@ -137,4 +146,58 @@ public class UsbFileInputStreamTest {
         assertEquals(-1, read);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void available() throws Exception {
+        InputStream is = new UsbFileInputStream(file);
+
+        assertEquals(123, is.available());
+        is.read(new byte[23]);
+        assertEquals(100, is.available());
+        is.skip(1000);
+        assertEquals(0, is.available());
+    }
+
+    @Test
+    public void readaheadGrowsAndResetsOnSkip() throws Exception {
+        when(file.getLength()).thenReturn((long) 1024 * 1024);
+        InputStream is = new UsbFileInputStream(file, 1024, 8 * 1024);
+
+        // start in the middle of a cluster, refills end at cluster boundaries
+        assertEquals(100, is.skip(100));
+        for (int i = 0; i < 100 + 924 + 2048 + 4096 + 8192 + 8192; i++) {
+            assertEquals((100 + i) & 0xff, is.read());
+        }
+        assertEquals(Arrays.asList(
+                Arrays.asList(100L, 924L),
+                Arrays.asList(1024L, 2048L),
+                Arrays.asList(3072L, 4096L),
+                Arrays.asList(7168L, 8192L),
+                Arrays.asList(15360L, 8192L),
+                Arrays.asList(23552L, 8192L)), reads);
+
+        // skipping within the buffer keeps the readahead, skipping behind it resets it
+        reads.clear();
+        is.skip(10);
+        is.skip(100000);
+        is.read();
+        assertEquals(Collections.singletonList(Arrays.asList(23552L + 100 + 10 + 100000,
+                1024L - (23552 + 100 + 10 + 100000) % 1024)), reads);
+    }
+
+    @Test
+    public void largeReadsBypassBuffer() throws Exception {
+        when(file.getLength()).thenReturn((long) 1024 * 1024);
+        InputStream is = new UsbFileInputStream(file, 1024, 8 * 1024);
+
+        byte[] buffer = new byte[5000];
+        assertEquals(10, is.read(buffer, 0, 10));
+        assertEquals(5000, is.read(buffer));
+        assertEquals(10 & 0xff, buffer[0] & 0xff);
+        assertEquals(5009 & 0xff, buffer[4999] & 0xff);
+
+        // the rest of the first cluster comes from the buffer
+        assertEquals(Arrays.asList(
+                Arrays.asList(0L, 1024L),
+                Arrays.asList(1024L, 3986L)), reads);
+    }
+}
@@ -1,18 +1,33 @@
 package me.jahnen.libaums.core.fs;
 
+import kotlin.Unit;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,12 +41,30 @@ public class UsbFileOutputStreamTest {
 
     @Captor
     private ArgumentCaptor<Long> longCaptor;
-    @Captor
-    private ArgumentCaptor<ByteBuffer> byteBufferCaptor;
 
     @Mock
     private UsbFile file;
 
+    /**
+     * Offset and length of every write to the file.
+     */
+    private final List<List<Long>> writes = Collections.synchronizedList(new ArrayList<List<Long>>());
+    private final byte[] disk = new byte[64 * 1024];
+
+    @Before
+    public void setUp() throws Exception {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                long offset = invocation.getArgument(0);
+                ByteBuffer buffer = invocation.getArgument(1);
+                writes.add(Arrays.asList(offset, (long) buffer.remaining()));
+                buffer.get(disk, (int) offset, buffer.remaining());
+                return null;
+            }
+        }).when(file).write(any(Long.class), any(ByteBuffer.class));
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     public void throwIfDirectory() {
         when(file.isDirectory()).thenReturn(true);
@@ -57,16 +90,16 @@ public class UsbFileOutputStreamTest {
     public void writeInt() throws Exception {
         OutputStream os = new UsbFileOutputStream(file);
 
-        os.write(0);
-
-        verify(file).write(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(0, longCaptor.getValue().longValue());
-        assertNotNull(byteBufferCaptor.getValue());
+        for (int i = 0; i < 20; i++) {
+            os.write(i);
+        }
+        // nothing is written before the buffer is full or flushed
+        assertEquals(Collections.emptyList(), writes);
 
-        os.write(new byte[1]);
-        verify(file, times(2)).write(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(1, longCaptor.getValue().longValue());
-        assertNotNull(byteBufferCaptor.getValue());
+        os.flush();
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 20L)), writes);
+        verify(file).flush();
+        assertEquals(19, disk[19]);
     }
 
     @Test
@@ -74,34 +107,29 @@ public class UsbFileOutputStreamTest {
         OutputStream os = new UsbFileOutputStream(file);
 
         os.write(new byte[20]);
-
-        verify(file).write(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(0, longCaptor.getValue().longValue());
-        assertEquals(20, byteBufferCaptor.getValue().remaining());
-
         os.write(new byte[20]);
-        verify(file, times(2)).write(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(20, longCaptor.getValue().longValue());
-        assertEquals(20, byteBufferCaptor.getValue().remaining());
+        os.close();
+
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 40L)), writes);
     }
 
     @Test
     public void writeOffset() throws Exception {
-
         OutputStream os = new UsbFileOutputStream(file);
 
-        os.write(new byte[20], 10, 5);
-
-        verify(file).write(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(0, longCaptor.getValue().longValue());
-        assertEquals(10, byteBufferCaptor.getValue().position());
-        assertEquals(5, byteBufferCaptor.getValue().remaining());
+        byte[] data = new byte[20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        os.write(data, 10, 5);
+        os.write(data, 5, 10);
+        os.close();
 
-        os.write(new byte[20], 5, 10);
-        verify(file, times(2)).write(longCaptor.capture(), byteBufferCaptor.capture());
-        assertEquals(5, longCaptor.getValue().longValue());
-        assertEquals(5, byteBufferCaptor.getValue().position());
-        assertEquals(10, byteBufferCaptor.getValue().remaining());
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 15L)), writes);
+        assertEquals(10, disk[0]);
+        assertEquals(14, disk[4]);
+        assertEquals(5, disk[5]);
+        assertEquals(14, disk[14]);
     }
 
 
@@ -114,6 +142,7 @@ public class UsbFileOutputStreamTest {
         verify(file).setLength(longCaptor.capture());
 
         assertEquals(20, longCaptor.getValue().longValue());
+        verify(file).close();
     }
 
     @Test
@@ -127,7 +156,100 @@ public class UsbFileOutputStreamTest {
         verify(file).setLength(longCaptor.capture());
 
         assertEquals(40, longCaptor.getValue().longValue());
+        assertEquals(Collections.singletonList(Arrays.asList(20L, 20L)), writes);
     }
 
+    @Test
+    public void alignedWritesAndAllocationSteps() throws Exception {
+        OutputStream os = new UsbFileOutputStream(file, false,
+                new UsbFileOutputStream.Options(1024, 4096, 16384));
+
+        os.write(new byte[100]);
+        os.write(new byte[10000]);
+        // the first buffer is filled up, the aligned part of the rest goes to the file directly
+        assertEquals(Arrays.asList(
+                Arrays.asList(0L, 4096L),
+                Arrays.asList(4096L, 5120L)), writes);
+        // the first buffer grows the file by itself, then it is grown in large steps
+        verify(file).setLength(20480);
+
+        os.flush();
+        assertEquals(Arrays.asList(9216L, 884L), writes.get(2));
+        verify(file).setLength(10100);
 
-}
\ No newline at end of file
+        os.close();
+        verify(file, times(2)).setLength(10100);
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        writeAsyncOnQueue();
+        OutputStream os = new UsbFileOutputStream(file, false,
+                new UsbFileOutputStream.Options(1024, 1024, 1024, true));
+
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+            os.write(i);
+        }
+        os.close();
+
+        assertEquals(5, writes.size());
+        assertEquals(Arrays.asList(4096L, 904L), writes.get(4));
+        assertTrue(Arrays.equals(data, Arrays.copyOf(disk, data.length)));
+        verify(file).close();
+    }
+
+    @Test
+    public void writeBehindReportsFailure() throws Exception {
+        writeAsyncOnQueue();
+        doThrow(new IOException("device gone")).when(file).write(eq(1024L), any(ByteBuffer.class));
+        OutputStream os = new UsbFileOutputStream(file, false,
+                new UsbFileOutputStream.Options(1024, 1024, 1024, true));
+
+        try {
+            for (int i = 0; i < 5000; i++) {
+                os.write(i);
+            }
+            fail("write should fail");
+        } catch (IOException e) {
+            assertEquals("device gone", e.getMessage());
+        }
+
+        // the stream stays broken, but close still closes the file
+        try {
+            os.write(0);
+            fail("write should fail");
+        } catch (IOException e) {
+            assertEquals("device gone", e.getMessage());
+        }
+        try {
+            os.close();
+            fail("close should fail");
+        } catch (IOException e) {
+            assertEquals("device gone", e.getMessage());
+        }
+        verify(file).close();
+    }
+
+    /**
+     * Executes {@link UsbFile#writeAsync} with {@link UsbFile#write} on a queue.
+     */
+    private void writeAsyncOnQueue() {
+        final IoQueue queue = new IoQueue();
+        when(file.writeAsync(any(Long.class), any(ByteBuffer.class))).thenAnswer(new Answer<IoFuture<Unit>>() {
+            @Override
+            public IoFuture<Unit> answer(InvocationOnMock invocation) {
+                final long offset = invocation.getArgument(0);
+                final ByteBuffer buffer = invocation.getArgument(1);
+                return queue.submit(new Callable<Unit>() {
+                    @Override
+                    public Unit call() throws Exception {
+                        file.write(offset, buffer);
+                        return Unit.INSTANCE;
+                    }
+                });
+            }
+        });
+    }
+}
@@ -0,0 +1,191 @@
+package me.jahnen.libaums.core.fs;
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriverSuspending;
+import me.jahnen.libaums.core.driver.file.FileBlockDeviceDriver;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import kotlin.Result;
+import kotlin.coroutines.Continuation;
+import kotlin.coroutines.CoroutineContext;
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.coroutines.intrinsics.IntrinsicsKt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UsbFileSuspendingTest {
+    private static final long SIZE = 64L * 1024 * 1024;
+
+    private File image;
+    private FileSystem fs;
+    private ExecutorService executor;
+
+    /**
+     * A call of a suspending function from Java, which gets the continuation
+     * as last parameter.
+     */
+    private interface SuspendingCall<T> {
+        Object invoke(Continuation<? super T> continuation);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_suspending_test", SIZE, 4096);
+        fs = TestImages.mount(image);
+
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        image.delete();
+    }
+
+    @Test(timeout = 30000)
+    public void callsRunOnExecutor() throws Throwable {
+        final UsbFile root = fs.getRootDirectory();
+        final UsbFile file = root.createFile("file");
+        final ByteBuffer source = ByteBuffer.wrap("suspended".getBytes());
+
+        await(new SuspendingCall<Object>() {
+            @Override
+            public Object invoke(Continuation<? super Object> continuation) {
+                return UsbFileSuspending.writeSuspending(file, 0, source, executor, continuation);
+            }
+        });
+        assertEquals(9, file.getLength());
+        await(new SuspendingCall<Object>() {
+            @Override
+            public Object invoke(Continuation<? super Object> continuation) {
+                return UsbFileSuspending.flushSuspending(file, executor, continuation);
+            }
+        });
+
+        final ByteBuffer destination = ByteBuffer.allocate(9);
+        await(new SuspendingCall<Object>() {
+            @Override
+            public Object invoke(Continuation<? super Object> continuation) {
+                return UsbFileSuspending.readSuspending(file, 0, destination, executor, continuation);
+            }
+        });
+        assertEquals("suspended", new String(destination.array()));
+
+        UsbFile[] files = await(new SuspendingCall<UsbFile[]>() {
+            @Override
+            public Object invoke(Continuation<? super UsbFile[]> continuation) {
+                return UsbFileSuspending.listFilesSuspending(root, executor, continuation);
+            }
+        });
+        assertEquals(1, files.length);
+        assertEquals("file", files[0].getName());
+
+        assertNotNull(await(new SuspendingCall<UsbFile>() {
+            @Override
+            public Object invoke(Continuation<? super UsbFile> continuation) {
+                return UsbFileSuspending.searchSuspending(root, "file", executor, continuation);
+            }
+        }));
+        assertNull(await(new SuspendingCall<UsbFile>() {
+            @Override
+            public Object invoke(Continuation<? super UsbFile> continuation) {
+                return UsbFileSuspending.searchSuspending(root, "missing", executor, continuation);
+            }
+        }));
+
+        await(new SuspendingCall<Object>() {
+            @Override
+            public Object invoke(Continuation<? super Object> continuation) {
+                return UsbFileSuspending.closeSuspending(file, executor, continuation);
+            }
+        });
+    }
+
+    @Test(timeout = 30000)
+    public void failuresResumeWithException() throws Throwable {
+        final FileBlockDeviceDriver driver = new FileBlockDeviceDriver(image, 0, 512,
+                FileBlockDeviceDriver.SyncMode.NONE);
+        driver.close();
+        try {
+            await(new SuspendingCall<Object>() {
+                @Override
+                public Object invoke(Continuation<? super Object> continuation) {
+                    return BlockDeviceDriverSuspending.readSuspending(driver, 0,
+                            ByteBuffer.allocate(512), executor, continuation);
+                }
+            });
+            fail("reading from a closed driver should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        final UsbFile root = fs.getRootDirectory();
+        try {
+            await(new SuspendingCall<Object>() {
+                @Override
+                public Object invoke(Continuation<? super Object> continuation) {
+                    return UsbFileSuspending.writeSuspending(root, 0, ByteBuffer.allocate(1),
+                            executor, continuation);
+                }
+            });
+            fail("writing a directory should fail");
+        } catch (UnsupportedOperationException e) {
+            assertEquals("This is a directory!", e.getMessage());
+        }
+    }
+
+    /**
+     * Starts the suspending call and waits until the continuation is resumed.
+     * If the call has already finished when the coroutine would suspend, its
+     * result is returned or thrown directly, like a coroutine would see it.
+     *
+     * @return The value the coroutine has been resumed with.
+     * @throws Throwable The exception the coroutine has been resumed with.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T await(SuspendingCall<T> call) throws Throwable {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<>();
+
+        Object immediate = call.invoke(new Continuation<T>() {
+            @NotNull
+            @Override
+            public CoroutineContext getContext() {
+                return EmptyCoroutineContext.INSTANCE;
+            }
+
+            @Override
+            public void resumeWith(@NotNull Object value) {
+                result.set(value);
+                done.countDown();
+            }
+        });
+        if (immediate != IntrinsicsKt.getCOROUTINE_SUSPENDED()) {
+            return (T) immediate;
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+
+        Object value = result.get();
+        if (value instanceof Result.Failure) {
+            throw ((Result.Failure) value).exception;
+        }
+        return (T) value;
+    }
+}
@@ -823,8 +823,8 @@ public class UsbFileTest {
         UsbFile srcPtr = root.search("testissue187");
         long srcLen = srcPtr.getLength();
         UsbFile dstPtr = root.createFile("testissue187_copy");
-        InputStream inputStream = UsbFileStreamFactory.createBufferedInputStream(srcPtr, fs);
-        OutputStream outStream  = UsbFileStreamFactory.createBufferedOutputStream(dstPtr, fs);
+        InputStream inputStream = UsbFileStreamFactory.createInputStream(srcPtr, fs);
+        OutputStream outStream  = UsbFileStreamFactory.createOutputStream(dstPtr, fs);
 
         byte[] bytes = new byte[fs.getChunkSize()];
 
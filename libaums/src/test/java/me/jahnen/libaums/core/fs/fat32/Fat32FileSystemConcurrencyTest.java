@@ -0,0 +1,125 @@
+package me.jahnen.libaums.core.fs.fat32;
+
+import me.jahnen.libaums.core.fs.UsbFile;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Fat32FileSystemConcurrencyTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_concurrency_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        return TestImages.mount(image);
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentWritersAndReaders() throws Exception {
+        final Fat32FileSystem fs = mount();
+        final UsbFile root = fs.getRootDirectory();
+        final int chunkSize = fs.getChunkSize();
+        final UsbFile shared = root.createFile("shared");
+        shared.write(0, ByteBuffer.wrap(content(99, 0, 16 * chunkSize)));
+        shared.close();
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        UsbFile dir = root.createDirectory("thread-" + thread);
+                        for (int i = 0; i < 20; i++) {
+                            UsbFile file = dir.createFile("file-" + i);
+                            // grow the file in several steps to interleave allocations
+                            for (int part = 0; part < 3; part++) {
+                                file.write(part * chunkSize, ByteBuffer.wrap(
+                                        content(thread, i, 3 * chunkSize + i), part * chunkSize,
+                                        part == 2 ? chunkSize + i : chunkSize));
+                            }
+                            file.close();
+
+                            ByteBuffer buffer = ByteBuffer.allocate(16 * chunkSize);
+                            shared.read(0, buffer);
+                            assertTrue(Arrays.equals(content(99, 0, 16 * chunkSize), buffer.array()));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        for (UsbFile file : root.listFiles()) {
+                            if (file.isDirectory()) {
+                                file.list();
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+
+        long freeSpace = fs.getFreeSpace();
+        Fat32FileSystem remounted = mount();
+        assertEquals(freeSpace, remounted.getFreeSpace());
+        for (int t = 0; t < 4; t++) {
+            UsbFile dir = remounted.getRootDirectory().search("thread-" + t);
+            assertEquals(20, dir.list().length);
+            for (int i = 0; i < 20; i++) {
+                UsbFile file = dir.search("file-" + i);
+                ByteBuffer buffer = ByteBuffer.allocate((int) file.getLength());
+                file.read(0, buffer);
+                assertTrue(Arrays.equals(content(t, i, 3 * chunkSize + i), buffer.array()));
+            }
+        }
+    }
+
+    private static byte[] content(int thread, int index, int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (thread * 31 + index * 7 + i / 512);
+        }
+        return content;
+    }
+}
@@ -5,13 +5,13 @@ import com.eclipsesource.json.JsonObject;
 import me.jahnen.libaums.core.driver.BlockDeviceDriver;
 import me.jahnen.libaums.core.driver.ByteBlockDevice;
 import me.jahnen.libaums.core.driver.file.FileBlockDeviceDriver;
+import me.jahnen.libaums.core.driver.overlay.OverlayBlockDeviceDriver;
 import me.jahnen.libaums.core.util.Pair;
 
 import org.apache.commons.io.IOUtils;
 import org.xenei.junit.contract.IProducer;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
@@ -25,9 +25,7 @@ import static org.junit.Assert.fail;
  */
 
 public class Fat32FileSystemProducer implements IProducer<Pair<Fat32FileSystem, JsonObject>> {
-    private File originalFile;
-    private File tempFile;
-    private BlockDeviceDriver blockDevice;
+    private OverlayBlockDeviceDriver overlay;
     private JsonObject expecteValues;
 
     public Fat32FileSystemProducer(String jsonUrl, String imageUrl) {
@@ -43,10 +41,14 @@ public class Fat32FileSystemProducer implements IProducer<Pair<Fat32FileSystem,
             FileOutputStream fos = new FileOutputStream(tempFile);
             fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
 
-            this.originalFile = tempFile;
-
-            // force first copy
-            cleanUp();
+            // the image itself is never written, every test only changes the overlay
+            overlay = new OverlayBlockDeviceDriver(
+                    new FileBlockDeviceDriver(
+                            tempFile,
+                            expecteValues.get("blockSize").asInt() * expecteValues.get("fileSystemOffset").asInt(),
+                            expecteValues.get("blockSize").asInt(),
+                            FileBlockDeviceDriver.SyncMode.NONE));
+            overlay.init();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -57,11 +59,7 @@ public class Fat32FileSystemProducer implements IProducer<Pair<Fat32FileSystem,
 
     public synchronized Pair<Fat32FileSystem, JsonObject> newInstance() {
         try {
-            blockDevice = new ByteBlockDevice(
-                    new FileBlockDeviceDriver(
-                            tempFile,
-                            expecteValues.get("blockSize").asInt() * expecteValues.get("fileSystemOffset").asInt(),
-                            expecteValues.get("blockSize").asInt()));
+            BlockDeviceDriver blockDevice = new ByteBlockDevice(overlay);
             blockDevice.init();
             return new Pair<>(Fat32FileSystem.read(blockDevice), expecteValues);
         } catch (IOException e) {
@@ -74,13 +72,7 @@ public class Fat32FileSystemProducer implements IProducer<Pair<Fat32FileSystem,
 
     public synchronized void cleanUp() {
         try {
-            ReadableByteChannel rbc = Channels.newChannel(new FileInputStream(originalFile));
-            File tempFile = File.createTempFile("libaums_test_blockdevice", ".bin");
-            tempFile.deleteOnExit();
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-
-            this.tempFile = tempFile;
+            overlay.rollback();
         } catch (IOException e) {
             e.printStackTrace();
             fail();
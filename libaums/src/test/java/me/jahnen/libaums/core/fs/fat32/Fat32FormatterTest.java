@@ -0,0 +1,87 @@
+package me.jahnen.libaums.core.fs.fat32;
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriver;
+import me.jahnen.libaums.core.driver.ByteBlockDevice;
+import me.jahnen.libaums.core.fs.UsbFile;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class Fat32FormatterTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.create("libaums_format_test", SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private BlockDeviceDriver createDevice() throws IOException {
+        BlockDeviceDriver blockDevice = new ByteBlockDevice(TestImages.openDriver(image));
+        blockDevice.init();
+        return blockDevice;
+    }
+
+    @Test
+    public void formatAndMount() throws Exception {
+        Fat32Formatter.format(createDevice(), new Fat32Formatter.Options(SIZE, 4096, 2, "libaums"));
+
+        Fat32FileSystem fs = Fat32FileSystem.read(createDevice());
+        assertNotNull(fs);
+        assertEquals("LIBAUMS", fs.getVolumeLabel().trim());
+        assertEquals(4096, fs.getChunkSize());
+        assertEquals(SIZE, fs.getCapacity());
+        assertTrue(fs.getFreeSpace() > SIZE * 9 / 10);
+        assertEquals(0, fs.getRootDirectory().list().length);
+    }
+
+    @Test
+    public void quickFormatReadWrite() throws Exception {
+        Fat32Formatter.format(createDevice(), new Fat32Formatter.Options(SIZE, 0, 2, "QUICK", true));
+
+        Fat32FileSystem fs = Fat32FileSystem.read(createDevice());
+        long freeSpace = fs.getFreeSpace();
+
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        UsbFile file = fs.getRootDirectory().createDirectory("dir").createFile("file.bin");
+        file.write(0, ByteBuffer.wrap(data));
+        file.close();
+
+        fs = Fat32FileSystem.read(createDevice());
+        UsbFile read = fs.getRootDirectory().search("dir/file.bin");
+        assertNotNull(read);
+        assertEquals(data.length, read.getLength());
+
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        read.read(0, buffer);
+        assertArrayEquals(data, buffer.array());
+        assertTrue(fs.getFreeSpace() < freeSpace);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidClusterSize() throws Exception {
+        Fat32Formatter.format(createDevice(), new Fat32Formatter.Options(SIZE, 3000));
+    }
+}
@@ -0,0 +1,509 @@
+package me.jahnen.libaums.core.fs.fat32;
+
+import me.jahnen.libaums.core.fs.DirectoryListing;
+import me.jahnen.libaums.core.fs.DirectoryTransaction;
+import me.jahnen.libaums.core.fs.MountOptions;
+import me.jahnen.libaums.core.fs.SortKey;
+import me.jahnen.libaums.core.fs.UsbFile;
+import me.jahnen.libaums.core.util.CountingBlockDevice;
+import me.jahnen.libaums.core.util.TestImages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FatDirectoryTest {
+
+    private static final long SIZE = 64 * 1024 * 1024;
+
+    private File image;
+    private CountingBlockDevice counter;
+
+    @Before
+    public void setUp() throws IOException {
+        image = TestImages.createFat32("libaums_directory_test", SIZE, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        image.delete();
+    }
+
+    private Fat32FileSystem mount() throws IOException {
+        counter = new CountingBlockDevice(TestImages.openDriver(image));
+        return TestImages.mount(counter, MountOptions.DEFAULT);
+    }
+
+    @Test
+    public void createWritesOnlyChangedSectors() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        for (int i = 0; i < 500; i++) {
+            dir.createFile("file-with-long-name-" + i + ".txt");
+        }
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        assertNotNull(dir);
+        counter.bytesWritten = 0;
+        UsbFile file = dir.createFile("another-file.txt");
+        file.write(0, ByteBuffer.wrap("hello".getBytes()));
+        long beforeFlush = counter.bytesWritten;
+        file.close();
+
+        // directory has more than 500 * 96 bytes, but only one sector per change is written
+        assertTrue(counter.bytesWritten - beforeFlush <= 1024);
+        assertTrue(counter.bytesWritten < 8 * 1024);
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        assertEquals(501, dir.list().length);
+        UsbFile read = dir.search("another-file.txt");
+        assertNotNull(read);
+        assertEquals(5, read.getLength());
+    }
+
+    @Test
+    public void deleteAndRenameKeepOtherEntries() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        for (int i = 0; i < 100; i++) {
+            dir.createFile("entry-" + i);
+        }
+
+        dir.search("entry-10").delete();
+        dir.search("entry-20").setName("e20");
+        dir.search("entry-30").setName("entry-30-with-a-much-longer-name");
+        UsbFile moved = dir.search("entry-40");
+        moved.moveTo(fs.getRootDirectory());
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        Set<String> names = new HashSet<>(Arrays.asList(dir.list()));
+        assertEquals(98, names.size());
+        assertTrue(names.contains("e20"));
+        assertTrue(names.contains("entry-30-with-a-much-longer-name"));
+        assertTrue(names.contains("entry-99"));
+        assertNull(dir.search("entry-10"));
+        assertNull(dir.search("entry-20"));
+        assertNull(dir.search("entry-40"));
+        assertNotNull(fs.getRootDirectory().search("entry-40"));
+        assertEquals("NO NAME", fs.getVolumeLabel().trim());
+    }
+
+    @Test
+    public void transactionCreatesInOneGo() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        long freeSpace = fs.getFreeSpace();
+
+        counter.bytesWritten = 0;
+        DirectoryTransaction transaction = dir.beginTransaction();
+        for (int i = 0; i < 300; i++) {
+            transaction.createFile("batch-file-" + i + ".txt");
+        }
+        transaction.createDirectory("sub");
+        assertEquals(0, counter.bytesWritten);
+        List<UsbFile> created = transaction.commit();
+
+        assertEquals(301, created.size());
+        assertEquals("batch-file-299.txt", created.get(299).getName());
+        assertTrue(created.get(300).isDirectory());
+        // directory clusters, new directory, FAT blocks and fs info only
+        assertTrue(counter.bytesWritten < 64 * 1024);
+        assertTrue(freeSpace - fs.getFreeSpace() < (301 + 10) * fs.getChunkSize());
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        assertEquals(301, dir.list().length);
+        UsbFile file = dir.search("batch-file-150.txt");
+        file.write(0, ByteBuffer.wrap("batch".getBytes()));
+        file.close();
+        assertNotNull(dir.search("sub"));
+    }
+
+    @Test
+    public void transactionDeleteRenameAndLength() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        dir.createFile("a");
+        dir.createFile("b");
+        dir.createDirectory("c").createFile("inside");
+
+        DirectoryTransaction transaction = dir.beginTransaction();
+        transaction.delete("a");
+        transaction.rename("b", "bb");
+        transaction.setLength("bb", 10000);
+        transaction.delete("c");
+        transaction.createFile("a");
+        try {
+            transaction.createFile("bb");
+            fail("bb already exists");
+        } catch (IOException e) {
+            // expected
+        }
+        transaction.commit();
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        Set<String> names = new HashSet<>(Arrays.asList(dir.list()));
+        assertEquals(new HashSet<>(Arrays.asList("a", "bb")), names);
+        assertEquals(10000, dir.search("bb").getLength());
+        assertEquals(0, dir.search("a").getLength());
+    }
+
+    @Test
+    public void transactionChecksAgainAndRollsBack() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        dir.createFile("a");
+        dir.createFile("x");
+        // the last write of createFile is the one of the directory
+        long directoryOffset = counter.lastWriteOffset;
+        long freeSpace = fs.getFreeSpace();
+
+        DirectoryTransaction transaction = dir.beginTransaction();
+        transaction.createFile("b");
+        dir.createFile("b");
+        try {
+            transaction.commit();
+            fail("b has been created in the meantime");
+        } catch (IOException e) {
+            // expected
+        }
+        // nothing is left from the failed commit
+        assertEquals(0, transaction.commit().size());
+
+        transaction.delete("b");
+        dir.search("b").delete();
+        try {
+            transaction.commit();
+            fail("b has been deleted in the meantime");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(freeSpace, fs.getFreeSpace());
+
+        transaction.createFile("new");
+        transaction.rename("a", "renamed");
+        transaction.delete("x");
+        counter.failWritesFrom = directoryOffset;
+        try {
+            transaction.commit();
+            fail("writing the directory fails");
+        } catch (IOException e) {
+            // expected
+        }
+        counter.failWritesFrom = Long.MAX_VALUE;
+        assertEquals(new HashSet<>(Arrays.asList("a", "x")), new HashSet<>(Arrays.asList(dir.list())));
+        assertNull(dir.search("renamed"));
+        assertEquals(freeSpace, fs.getFreeSpace());
+
+        transaction.createFile("new");
+        transaction.rename("a", "renamed");
+        transaction.delete("x");
+        assertEquals(1, transaction.commit().size());
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        assertEquals(new HashSet<>(Arrays.asList("new", "renamed")), new HashSet<>(Arrays.asList(dir.list())));
+        assertEquals(freeSpace, fs.getFreeSpace());
+    }
+
+    @Test
+    public void fileSequenceReadsClusterByCluster() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        DirectoryTransaction transaction = dir.beginTransaction();
+        for (int i = 0; i < 300; i++) {
+            transaction.createFile("streamed-file-" + i + ".txt");
+        }
+        transaction.commit();
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        counter.bytesRead = 0;
+        Iterator<UsbFile> iterator = dir.fileSequence().iterator();
+        assertEquals("streamed-file-0.txt", iterator.next().getName());
+        // one cluster of the directory and the FAT blocks to follow its chain
+        assertTrue(counter.bytesRead <= fs.getChunkSize() + 2048);
+
+        int count = 1;
+        while (iterator.hasNext()) {
+            assertEquals("streamed-file-" + count + ".txt", iterator.next().getName());
+            count++;
+        }
+        assertEquals(300, count);
+        // the directory spans several clusters
+        assertTrue(counter.bytesRead > 5 * fs.getChunkSize());
+
+        long bytesRead = counter.bytesRead;
+        assertEquals(300, dir.listFiles().length);
+        assertNull(dir.search("streamed-file-300.txt"));
+        assertEquals(bytesRead, counter.bytesRead);
+    }
+
+    @Test
+    public void searchDoesNotListDirectory() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        DirectoryTransaction transaction = dir.beginTransaction();
+        for (int i = 0; i < 300; i++) {
+            transaction.createFile("lookup-file-" + i + ".txt");
+        }
+        transaction.createDirectory("sub");
+        transaction.commit();
+        dir.search("sub").createFile("inner");
+
+        fs = mount();
+        counter.bytesRead = 0;
+        UsbFile file = fs.getRootDirectory().search("/dir/lookup-file-3.txt");
+        assertNotNull(file);
+        assertEquals("/dir/lookup-file-3.txt", file.getAbsolutePath());
+        // only the first cluster of dir is needed
+        assertTrue(counter.bytesRead <= fs.getChunkSize() + 2048);
+
+        assertNotNull(fs.getRootDirectory().search("dir/sub/inner"));
+        assertNull(fs.getRootDirectory().search("dir/LOOKUP-FILE-3.TXT"));
+        assertNull(fs.getRootDirectory().search("dir/."));
+        assertNull(fs.getRootDirectory().search("dir/missing"));
+        assertEquals(file, fs.getRootDirectory().search("dir").search("lookup-file-3.txt"));
+    }
+
+    @Test
+    public void listEntriesReturnsMetadata() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        DirectoryTransaction transaction = dir.beginTransaction();
+        for (int i = 0; i < 300; i++) {
+            transaction.createFile("listed-file-" + i + ".txt");
+        }
+        transaction.createDirectory("sub");
+        transaction.commit();
+        UsbFile file = dir.search("listed-file-7.txt");
+        file.write(0, ByteBuffer.wrap("listed".getBytes()));
+        file.close();
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        DirectoryListing listing = dir.listEntries();
+        assertEquals(301, listing.getSize());
+        assertEquals(Arrays.asList(dir.list()), namesOf(listing));
+
+        int index = listing.indexOf("listed-file-7.txt");
+        assertEquals(6, listing.getLength(index));
+        assertTrue(!listing.isDirectory(index));
+        assertEquals(0, listing.getAttributes(index) & DirectoryListing.ATTR_DIRECTORY);
+        assertTrue(listing.lastModified(index) > 0);
+        assertEquals(dir.search("listed-file-7.txt"), listing.open(index));
+
+        index = listing.indexOf("sub");
+        assertTrue(listing.isDirectory(index));
+        assertEquals(0, listing.getLength(index));
+        assertTrue(listing.open(index).isDirectory());
+        assertEquals(-1, listing.indexOf("listed-file-300.txt"));
+    }
+
+    @Test
+    public void sortedPagesFollowChanges() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile dir = fs.getRootDirectory().createDirectory("dir");
+        DirectoryTransaction transaction = dir.beginTransaction();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String name = "Sorted-" + i + (i % 2 == 0 ? ".txt" : ".jpg");
+            names.add(name);
+            transaction.createFile(name);
+            transaction.setLength(name, i * 10);
+        }
+        transaction.createDirectory("zz-dir");
+        transaction.commit();
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("dir");
+        names.add("zz-dir");
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        assertEquals(names.subList(10, 15), namesOf(dir.listEntries(SortKey.NAME, false, 10, 5)));
+        assertEquals(names.subList(96, 101), namesOf(dir.listEntries(SortKey.NAME, false, 96, 10)));
+        assertEquals(0, dir.listEntries(SortKey.NAME, false, 101, 10).getSize());
+
+        DirectoryListing page = dir.listEntries(SortKey.SIZE, true, 0, 3);
+        assertEquals(Arrays.asList("Sorted-99.jpg", "Sorted-98.txt", "Sorted-97.jpg"), namesOf(page));
+        assertEquals(990, page.getLength(0));
+        page = dir.listEntries(SortKey.TYPE, false, 0, 2);
+        assertEquals(Arrays.asList("zz-dir", "Sorted-1.jpg"), namesOf(page));
+
+        // the indexes are kept up to date
+        UsbFile file = dir.createFile("a-new-file.bin");
+        file.setLength(5000);
+        file.close();
+        dir.search("Sorted-99.jpg").delete();
+        dir.search("Sorted-98.txt").setName("0-renamed.txt");
+        assertEquals(Arrays.asList("a-new-file.bin", "0-renamed.txt", "Sorted-97.jpg", "Sorted-96.txt"),
+                namesOf(dir.listEntries(SortKey.SIZE, true, 0, 4)));
+        assertEquals(Arrays.asList("0-renamed.txt", "a-new-file.bin"),
+                namesOf(dir.listEntries(SortKey.NAME, false, 0, 2)));
+        assertEquals("zz-dir", dir.listEntries(SortKey.TYPE, false, 0, 1).getName(0));
+        assertEquals(101, dir.listEntries(SortKey.LAST_MODIFIED, true, 0, 1000).getSize());
+    }
+
+    @Test
+    public void deleteTreeFreesClustersAtOnce() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile root = fs.getRootDirectory();
+        root.createFile("keep").write(0, ByteBuffer.wrap("keep".getBytes()));
+        long freeSpace = fs.getFreeSpace();
+
+        UsbFile dir = root.createDirectory("photos");
+        DirectoryTransaction transaction = dir.beginTransaction();
+        for (int i = 0; i < 200; i++) {
+            transaction.createFile("photo-" + i + ".jpg");
+        }
+        transaction.createDirectory("sub");
+        transaction.commit();
+        dir.search("photo-0.jpg").setLength(20 * fs.getChunkSize());
+        UsbFile sub = dir.search("sub");
+        for (int i = 0; i < 50; i++) {
+            sub.createFile("nested-" + i);
+        }
+        assertNotNull(sub.search("nested-1"));
+        assertTrue(fs.getFreeSpace() < freeSpace - 270 * fs.getChunkSize());
+
+        fs = mount();
+        dir = fs.getRootDirectory().search("photos");
+        counter.bytesWritten = 0;
+        dir.delete();
+        // the root directory, the FAT blocks holding the clusters and the fs info
+        assertTrue(counter.bytesWritten <= 8 * 1024);
+        assertEquals(freeSpace, fs.getFreeSpace());
+        assertNull(fs.getRootDirectory().search("photos"));
+        assertNull(fs.getRootDirectory().search("photos/sub/nested-1"));
+
+        fs = mount();
+        assertEquals(freeSpace, fs.getFreeSpace());
+        assertEquals(Arrays.asList("keep"), Arrays.asList(fs.getRootDirectory().list()));
+        UsbFile file = fs.getRootDirectory().createFile("new");
+        file.write(0, ByteBuffer.wrap("new".getBytes()));
+        file.close();
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        fs.getRootDirectory().search("keep").read(0, buffer);
+        assertEquals("keep", new String(buffer.array()));
+    }
+
+    @Test
+    public void deleteTreeWithItemsInUse() throws Exception {
+        Fat32FileSystem fs = mount();
+        UsbFile root = fs.getRootDirectory();
+        long freeSpace = fs.getFreeSpace();
+        UsbFile dir = root.createDirectory("dir");
+        UsbFile sub = dir.createDirectory("sub");
+        UsbFile open = sub.createFile("open");
+        open.write(0, ByteBuffer.allocate(3 * fs.getChunkSize()));
+        dir.createFile("other");
+
+        // nothing changes if the parent cannot be written
+        counter.failWritesFrom = 0;
+        try {
+            dir.delete();
+            fail("write should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        counter.failWritesFrom = Long.MAX_VALUE;
+        assertEquals(Arrays.asList("dir"), Arrays.asList(root.list()));
+        open.read(0, ByteBuffer.allocate(10));
+        open.write(0, ByteBuffer.wrap("still here".getBytes()));
+
+        dir.delete();
+        assertEquals(freeSpace, fs.getFreeSpace());
+        assertNull(root.search("dir"));
+        // the items in use do not touch the freed clusters anymore
+        try {
+            open.write(0, ByteBuffer.allocate(1));
+            fail("file has been deleted");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            sub.createFile("new");
+            fail("directory has been deleted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(freeSpace, fs.getFreeSpace());
+
+        fs = mount();
+        assertEquals(freeSpace, fs.getFreeSpace());
+        assertEquals(0, fs.getRootDirectory().list().length);
+    }
+
+    @Test
+    public void deletedSlotsAreReusedAndCompacted() throws Exception {
+        Fat32FileSystem fs = mount();
+        FatDirectory dir = (FatDirectory) fs.getRootDirectory().createDirectory("dir");
+        long emptyFreeSpace = fs.getFreeSpace();
+
+        for (int i = 0; i < 300; i++) {
+            dir.createFile("file-" + i + ".txt");
+        }
+        long freeSpace = fs.getFreeSpace();
+        assertTrue(freeSpace < emptyFreeSpace);
+
+        // new entries with the same number of slots fill the gaps
+        for (int i = 0; i < 300; i += 2) {
+            dir.search("file-" + i + ".txt").delete();
+        }
+        for (int i = 0; i < 150; i++) {
+            dir.createFile("newer-" + i + ".txt");
+        }
+        assertEquals(freeSpace, fs.getFreeSpace());
+
+        fs = mount();
+        dir = (FatDirectory) fs.getRootDirectory().search("dir");
+        assertEquals(300, dir.list().length);
+        for (UsbFile file : dir.listFiles()) {
+            String name = file.getName();
+            if (!name.equals("file-1.txt") && !name.equals("file-151.txt") && !name.equals("file-299.txt")) {
+                file.delete();
+            }
+        }
+        // every file has one cluster, the directory does not shrink by deleting
+        long filesSize = 3 * fs.getChunkSize();
+        assertEquals(freeSpace + 297 * fs.getChunkSize(), fs.getFreeSpace());
+        dir.compact();
+        assertEquals(emptyFreeSpace - filesSize, fs.getFreeSpace());
+        dir.createFile("after.txt");
+
+        fs = mount();
+        dir = (FatDirectory) fs.getRootDirectory().search("dir");
+        assertEquals(emptyFreeSpace - filesSize - fs.getChunkSize(), fs.getFreeSpace());
+        assertEquals(Arrays.asList("after.txt", "file-1.txt", "file-151.txt", "file-299.txt"),
+                namesOf(dir.listEntries(SortKey.NAME, false, 0, 10)));
+        assertNotNull(dir.search("file-151.txt"));
+    }
+
+    private static List<String> namesOf(DirectoryListing listing) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < listing.getSize(); i++) {
+            names.add(listing.getName(i));
+        }
+        return names;
+    }
+}
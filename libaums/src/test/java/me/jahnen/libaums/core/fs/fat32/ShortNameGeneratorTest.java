@@ -0,0 +1,110 @@
+package me.jahnen.libaums.core.fs.fat32;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShortNameGeneratorTest {
+
+    private static final ShortNameGenerator GENERATOR = ShortNameGenerator.INSTANCE;
+
+    @Test
+    public void generateShortName() {
+        List<ShortName> existing = new ArrayList<>();
+        assertEquals("IM0000~0.JPG", GENERATOR.generateShortName("img_0001.jpg", existing).getString());
+        assertEquals("HI0000~0.000", GENERATOR.generateShortName(".hidden", existing).getString());
+
+        existing.add(new ShortName("IM0000~0", "JPG"));
+        existing.add(new ShortName("IM0001~0", "JPG"));
+        assertEquals("IM0002~0.JPG", GENERATOR.generateShortName("img_0003.jpg", existing).getString());
+    }
+
+    @Test
+    public void indexSkipsUsedTails() {
+        ShortNameIndex index = new ShortNameIndex();
+        ShortName first = GENERATOR.generateShortName("document.txt", index);
+        index.add(first);
+        ShortName second = GENERATOR.generateShortName("document.txt", index);
+        index.add(second);
+        assertEquals("DO0000~0.TXT", first.getString());
+        assertEquals("DO0001~0.TXT", second.getString());
+
+        // existing names are compared ignoring case
+        index.add(new ShortName("do0002~0", "txt"));
+        assertEquals("DO0003~0.TXT", GENERATOR.generateShortName("document.txt", index).getString());
+
+        index.remove(first);
+        assertFalse(index.contains(first));
+        assertTrue(index.contains(second));
+    }
+
+    @Test
+    public void removedTailsAreReused() {
+        ShortNameIndex index = new ShortNameIndex();
+        List<ShortName> generated = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ShortName shortName = GENERATOR.generateShortName("document.txt", index);
+            index.add(shortName);
+            generated.add(shortName);
+        }
+
+        index.remove(generated.get(2));
+        index.remove(generated.get(1));
+        assertEquals("DO0001~0.TXT", GENERATOR.generateShortName("document.txt", index).getString());
+        index.add(generated.get(1));
+        assertEquals("DO0002~0.TXT", GENERATOR.generateShortName("document.txt", index).getString());
+        index.add(generated.get(2));
+        ShortName next = GENERATOR.generateShortName("document.txt", index);
+        assertEquals("DO0004~0.TXT", next.getString());
+        index.add(next);
+
+        // names without a numeric tail do not change the cursor
+        index.add(new ShortName("DOCUMENT", "TXT"));
+        index.remove(new ShortName("DOCUMENT", "TXT"));
+        assertEquals("DO0005~0.TXT", GENERATOR.generateShortName("document.txt", index).getString());
+    }
+
+    @Test
+    public void tailWrapsAround() {
+        ShortNameIndex index = new ShortNameIndex();
+        index.setNextTail("DO.TXT", 10 * 0x10000 - 2);
+        index.add(new ShortName("DOFFFF~9", "TXT"));
+        index.add(new ShortName("DO0000~0", "TXT"));
+
+        ShortName last = GENERATOR.generateShortName("document.txt", index);
+        index.add(last);
+        assertEquals("DOFFFE~9.TXT", last.getString().toUpperCase(Locale.ROOT));
+
+        // the highest tail is used, the generator continues at the lowest one
+        ShortName wrapped = GENERATOR.generateShortName("document.txt", index);
+        index.add(wrapped);
+        assertEquals("DO0001~0.TXT", wrapped.getString());
+
+        index.remove(new ShortName("DO0000~0", "TXT"));
+        assertEquals("DO0000~0.TXT", GENERATOR.generateShortName("document.txt", index).getString());
+    }
+
+    @Test(timeout = 20000)
+    public void generateManyNamesWithCommonPrefix() {
+        ShortNameIndex index = new ShortNameIndex();
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < 60000; i++) {
+            ShortName shortName = GENERATOR.generateShortName(
+                    String.format(Locale.ROOT, "IMG_%05d.JPG", i), index);
+            index.add(shortName);
+            assertTrue(names.add(shortName.getString().toUpperCase(Locale.ROOT)));
+        }
+        assertEquals(60000, names.size());
+        assertTrue(names.contains("IMEA5F~0.JPG"));
+        assertEquals("IMEA60~0.JPG", GENERATOR.generateShortName("img_60000.jpg", index).getString()
+                .toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,64 @@
+package me.jahnen.libaums.core.util;
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Counts the bytes read from and written to the underlying device.
+ */
+public class CountingBlockDevice implements BlockDeviceDriver {
+    private final BlockDeviceDriver device;
+    public long bytesRead;
+    public long bytesWritten;
+    public int readCount;
+    public int flushCount;
+    public long lastWriteOffset = -1;
+    /**
+     * Writes at or behind this offset fail.
+     */
+    public long failWritesFrom = Long.MAX_VALUE;
+
+    public CountingBlockDevice(BlockDeviceDriver device) {
+        this.device = device;
+    }
+
+    @Override
+    public void init() throws IOException {
+        device.init();
+    }
+
+    @Override
+    public void read(long deviceOffset, ByteBuffer buffer) throws IOException {
+        bytesRead += buffer.remaining();
+        readCount++;
+        device.read(deviceOffset, buffer);
+    }
+
+    @Override
+    public void write(long deviceOffset, ByteBuffer buffer) throws IOException {
+        if (deviceOffset >= failWritesFrom) {
+            throw new IOException("write failed");
+        }
+        bytesWritten += buffer.remaining();
+        lastWriteOffset = deviceOffset;
+        device.write(deviceOffset, buffer);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushCount++;
+        device.flush();
+    }
+
+    @Override
+    public int getBlockSize() {
+        return device.getBlockSize();
+    }
+
+    @Override
+    public long getBlocks() {
+        return device.getBlocks();
+    }
+}
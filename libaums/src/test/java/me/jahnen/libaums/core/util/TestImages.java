@@ -0,0 +1,84 @@
+package me.jahnen.libaums.core.util;
+
+import me.jahnen.libaums.core.driver.BlockDeviceDriver;
+import me.jahnen.libaums.core.driver.ByteBlockDevice;
+import me.jahnen.libaums.core.driver.file.FileBlockDeviceDriver;
+import me.jahnen.libaums.core.fs.MountOptions;
+import me.jahnen.libaums.core.fs.fat32.Fat32FileSystem;
+import me.jahnen.libaums.core.fs.fat32.Fat32Formatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Temporary image files for tests which need a real file system but no
+ * downloaded image.
+ */
+public final class TestImages {
+
+    private TestImages() {
+    }
+
+    /**
+     * Creates an empty temporary image, it is deleted when the JVM exits.
+     *
+     * @param prefix The prefix of the file name.
+     * @param size The size of the image in bytes.
+     * @return The image file.
+     */
+    public static File create(String prefix, long size) throws IOException {
+        File image = File.createTempFile(prefix, ".bin");
+        image.deleteOnExit();
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        file.setLength(size);
+        file.close();
+        return image;
+    }
+
+    /**
+     * Creates a temporary image formatted with FAT32.
+     *
+     * @param prefix The prefix of the file name.
+     * @param size The size of the image in bytes.
+     * @param bytesPerCluster The cluster size or 0 to let the formatter choose.
+     * @return The image file.
+     */
+    public static File createFat32(String prefix, long size, int bytesPerCluster) throws IOException {
+        File image = create(prefix, size);
+        FileBlockDeviceDriver driver = openDriver(image);
+        try {
+            Fat32Formatter.format(new ByteBlockDevice(driver),
+                    new Fat32Formatter.Options(size, bytesPerCluster));
+        } finally {
+            driver.close();
+        }
+        return image;
+    }
+
+    /**
+     * Opens the image with 512 byte blocks, writes are not synced to disk.
+     */
+    public static FileBlockDeviceDriver openDriver(File image) throws IOException {
+        return new FileBlockDeviceDriver(image, 0, 512, FileBlockDeviceDriver.SyncMode.NONE);
+    }
+
+    /**
+     * Mounts the FAT32 file system of the image with the default options.
+     */
+    public static Fat32FileSystem mount(File image) throws IOException {
+        return mount(openDriver(image), MountOptions.DEFAULT);
+    }
+
+    /**
+     * Mounts the FAT32 file system on the driver.
+     *
+     * @param driver The driver, it is wrapped in a {@link ByteBlockDevice}.
+     * @param options The mount options.
+     */
+    public static Fat32FileSystem mount(BlockDeviceDriver driver, MountOptions options) throws IOException {
+        BlockDeviceDriver blockDevice = new ByteBlockDevice(driver);
+        blockDevice.init();
+        return Fat32FileSystem.read(blockDevice, options);
+    }
+}